@@ -24,13 +24,26 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
 
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.Reader;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
@@ -110,6 +123,103 @@ public class GsonUtils {
         return mGson.fromJson(json, type);
     }
 
+    /**
+     * 逐个读取 json 数组的元素，内存占用和数组长度无关。用完需要 close，会关闭 reader
+     *
+     * @param json 内容是一个 json 数组
+     * @param type 元素的类型
+     * @param <T>  <T>
+     * @return 元素的迭代器，解析出错时 next / hasNext 抛出 JsonSyntaxException 或 JsonIOException
+     */
+    @NonNull
+    public static <T> JsonArrayIterator<T> iterateArray(@NonNull Reader json, @NonNull Type type) {
+        JsonReader reader = new JsonReader(json);
+        //和 fromJson 一样宽松解析
+        reader.setLenient(true);
+        return new JsonArrayIterator<>(reader, GsonUtils.<T>getAdapter(type));
+    }
+
+    /**
+     * 逐个读取 json 数组的元素并回调，读完后关闭 reader
+     *
+     * @param json     内容是一个 json 数组
+     * @param type     元素的类型
+     * @param callback 返回 false 时停止读取
+     * @param <T>      <T>
+     * @return 回调过的元素个数
+     */
+    public static <T> int forEachInArray(@NonNull Reader json, @NonNull Type type, @NonNull ElementCallback<T> callback) {
+        JsonArrayIterator<T> iterator = iterateArray(json, type);
+        int count = 0;
+        try {
+            while (iterator.hasNext()) {
+                count++;
+                if (!callback.onElement(iterator.next())) {
+                    break;
+                }
+            }
+        } finally {
+            closeQuietly(iterator);
+        }
+        return count;
+    }
+
+    /**
+     * 逐个读取 json 数组的元素，每 batchSize 个回调一次，最后一批可能不足 batchSize 个。读完后关闭 reader
+     *
+     * @param json      内容是一个 json 数组
+     * @param type      元素的类型
+     * @param batchSize 每批的个数
+     * @param callback  每批是新的 List，可以保留；返回 false 时停止读取
+     * @param <T>       <T>
+     * @return 回调过的元素个数
+     */
+    public static <T> int forEachBatchInArray(@NonNull Reader json, @NonNull Type type, int batchSize,
+                                              @NonNull BatchCallback<T> callback) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        JsonArrayIterator<T> iterator = iterateArray(json, type);
+        int count = 0;
+        try {
+            List<T> batch = new ArrayList<>(batchSize);
+            while (iterator.hasNext()) {
+                batch.add(iterator.next());
+                if (batch.size() >= batchSize) {
+                    count += batch.size();
+                    if (!callback.onBatch(batch)) {
+                        return count;
+                    }
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                count += batch.size();
+                callback.onBatch(batch);
+            }
+        } finally {
+            closeQuietly(iterator);
+        }
+        return count;
+    }
+
+    /**
+     * 关闭出错不能覆盖解析过程中的异常，也不能让已经读完的结果作废
+     */
+    private static void closeQuietly(@NonNull Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static <T> TypeAdapter<T> getAdapter(@NonNull Type type) {
+        return (TypeAdapter<T>) mGson.getAdapter(TypeToken.get(type));
+    }
+
     /**
      * toJson
      *
@@ -190,4 +300,94 @@ public class GsonUtils {
         }
         return jsonObject;
     }
+
+    /**
+     * 逐个元素的回调
+     */
+    public interface ElementCallback<T> {
+        /**
+         * @return 是否继续读取
+         */
+        boolean onElement(T element);
+    }
+
+    /**
+     * 按批的回调
+     */
+    public interface BatchCallback<T> {
+        /**
+         * @return 是否继续读取
+         */
+        boolean onBatch(@NonNull List<T> batch);
+    }
+
+    /**
+     * json 数组的流式迭代器，每次 next 只解析一个元素，用同一个 TypeAdapter，不会为每个元素查找类型信息
+     */
+    public static final class JsonArrayIterator<T> implements Iterator<T>, Closeable {
+        @NonNull
+        private final JsonReader mReader;
+        @NonNull
+        private final TypeAdapter<T> mAdapter;
+        private boolean mStarted;
+        private boolean mFinished;
+
+        JsonArrayIterator(@NonNull JsonReader reader, @NonNull TypeAdapter<T> adapter) {
+            mReader = reader;
+            mAdapter = adapter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mFinished) {
+                return false;
+            }
+            try {
+                if (!mStarted) {
+                    mStarted = true;
+                    if (mReader.peek() == JsonToken.NULL) {
+                        mReader.nextNull();
+                        mFinished = true;
+                        return false;
+                    }
+                    mReader.beginArray();
+                }
+                if (mReader.hasNext()) {
+                    return true;
+                }
+                mReader.endArray();
+                mFinished = true;
+                return false;
+            } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return mAdapter.read(mReader);
+            } catch (MalformedJsonException | EOFException | IllegalStateException e) {
+                throw new JsonSyntaxException(e);
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mFinished = true;
+            mReader.close();
+        }
+    }
 }
@@ -17,10 +17,27 @@
 package top.shixinzhang.utils;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import top.shixinzhang.utils.log.CachedClock;
+import top.shixinzhang.utils.log.LogChunker;
+import top.shixinzhang.utils.log.LogCrashHandler;
+import top.shixinzhang.utils.log.LogEvent;
+import top.shixinzhang.utils.log.LogIndex;
+import top.shixinzhang.utils.log.LogLevelFilter;
+import top.shixinzhang.utils.log.LogMetrics;
+import top.shixinzhang.utils.log.LogQuery;
+import top.shixinzhang.utils.log.LogRing;
+import top.shixinzhang.utils.log.LogSuppressor;
+import top.shixinzhang.utils.log.LogUploader;
+import top.shixinzhang.utils.log.MmapLogBuffer;
 
 
 /**
@@ -39,11 +56,11 @@ public final class LogUtils {
     /**
      * Priority constant for the println method
      */
-    private static final int VERBOSE = 2;
-    private static final int DEBUG = 3;
-    private static final int INFO = 4;
-    private static final int WARN = 5;
-    private static final int ERROR = 6;
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
 
     /**
      * 是否显示日志，默认为 true
@@ -52,6 +69,47 @@ public final class LogUtils {
 
     private volatile static boolean saveLogToFile = false;
 
+    /**
+     * 按 tag 过滤日志级别，默认全部输出
+     */
+    private static final LogLevelFilter levelFilter = new LogLevelFilter(VERBOSE);
+
+    /**
+     * 重复日志合并、限流、采样，默认关闭
+     */
+    private static final LogSuppressor suppressor = new LogSuppressor();
+
+    static {
+        //重复日志停止后，窗口结束时补发被合并的次数
+        suppressor.setSummaryListener(new LogSuppressor.SummaryListener() {
+            @Override
+            public void onSummary(@NonNull String tag, @NonNull String template, int level, int repeated) {
+                emit(tag, "previous message repeated " + repeated + " times: " + template, level);
+            }
+        });
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String LEVELS = "??VDIWEA";
+
+    /**
+     * 保证写 log.txt 和更新索引的顺序一致
+     */
+    private static final Object fileLock = new Object();
+
+    private static LogIndex logIndex;
+
+    private volatile static boolean indexEnabled = true;
+
+    @Nullable
+    private volatile static LogRing recentLogs;
+
+    /**
+     * 不为 null 时日志先写入 mmap 缓冲，崩溃也不会丢失
+     */
+    private volatile static MmapLogBuffer mmapLogBuffer;
+
     public static boolean isSaveLogToFile() {
         return saveLogToFile;
     }
@@ -60,6 +118,207 @@ public final class LogUtils {
         LogUtils.saveLogToFile = saveLogToFile;
     }
 
+    /**
+     * 没有单独配置的 tag 使用的最低级别
+     *
+     * @param level {@link #VERBOSE} ~ {@link #ERROR}
+     */
+    public static void setMinLevel(int level) {
+        levelFilter.setDefaultLevel(level);
+    }
+
+    /**
+     * 指定 tag 的最低级别，优先于前缀配置
+     */
+    public static void setTagLevel(@NonNull String tag, int level) {
+        levelFilter.setTagLevel(tag, level);
+    }
+
+    /**
+     * 以 prefix 开头的 tag 的最低级别，多个前缀都匹配时取最长的
+     */
+    public static void setTagPrefixLevel(@NonNull String prefix, int level) {
+        levelFilter.setTagPrefixLevel(prefix, level);
+    }
+
+    public static void removeTagLevel(@NonNull String tag) {
+        levelFilter.removeTagLevel(tag);
+    }
+
+    public static void removeTagPrefixLevel(@NonNull String prefix) {
+        levelFilter.removeTagPrefixLevel(prefix);
+    }
+
+    public static void clearTagLevels() {
+        levelFilter.clear();
+    }
+
+    public static boolean isLoggable(@NonNull String tag, int type) {
+        return levelFilter.isLoggable(tag, type);
+    }
+
+    /**
+     * 相同 tag 和模板的日志在 millis 内只输出一次，之后再出现时先输出被合并的次数
+     *
+     * @param millis 0 表示不合并
+     */
+    public static void setRepeatWindow(long millis) {
+        suppressor.setRepeatWindow(millis);
+    }
+
+    /**
+     * 按 tag 限流
+     *
+     * @param permitsPerSecond 每秒允许的条数，&lt;= 0 表示不限
+     * @param burst            允许的突发条数
+     */
+    public static void setRateLimit(@NonNull String tag, double permitsPerSecond, int burst) {
+        suppressor.setRateLimit(tag, permitsPerSecond, burst);
+    }
+
+    /**
+     * 按级别采样，一般用于 VERBOSE / DEBUG
+     *
+     * @param rate 0 ~ 1
+     */
+    public static void setSampleRate(int level, float rate) {
+        suppressor.setSampleRate(level, rate);
+    }
+
+    @NonNull
+    public static LogSuppressor getSuppressor() {
+        return suppressor;
+    }
+
+    /**
+     * 设置日志上传并开始定时上传，isDebug 为 false 时日志不再输出到 logcat，而是批量压缩后上传。
+     * 原来的 uploader 会封批并停止
+     *
+     * @param uploader 传 null 关闭上传
+     */
+    public static synchronized void setLogUploader(@Nullable LogUploader uploader) {
+        LogUploader previous = logUploader;
+        logUploader = uploader;
+        if (uploader != null) {
+            uploader.start();
+        }
+        if (previous != null && previous != uploader) {
+            previous.shutdown();
+        }
+    }
+
+    @Nullable
+    public static LogUploader getLogUploader() {
+        return logUploader;
+    }
+
+    /**
+     * 开启 mmap 日志缓冲，开启后 saveLog 写入映射文件，由后台线程批量转存到 log.txt；
+     * 上次进程残留在映射文件里的日志会在这里恢复到 log.txt
+     *
+     * @return 映射失败时返回 false，继续直接写文件
+     */
+    public static synchronized boolean enableMmapLog() {
+        if (mmapLogBuffer != null) {
+            return true;
+        }
+        synchronized (fileLock) {
+            //恢复残留日志会改变 log.txt 长度
+            resetLogIndex();
+            mmapLogBuffer = MmapLogBuffer.open(new File(getMmapLogFilePath()), new File(getLogFilePath()),
+                    MmapLogBuffer.DEFAULT_CAPACITY);
+        }
+        return mmapLogBuffer != null;
+    }
+
+    public static synchronized void disableMmapLog() {
+        synchronized (fileLock) {
+            MmapLogBuffer buffer = mmapLogBuffer;
+            mmapLogBuffer = null;
+            if (buffer != null) {
+                buffer.close();
+            }
+        }
+    }
+
+    public static boolean isMmapLogEnabled() {
+        return mmapLogBuffer != null;
+    }
+
+    /**
+     * 补发被合并的重复日志的汇总，再把缓冲中的日志和未满的索引块立即写入文件
+     */
+    public static void flushLog() {
+        suppressor.flushSummaries();
+        synchronized (fileLock) {
+            MmapLogBuffer buffer = mmapLogBuffer;
+            if (buffer != null) {
+                buffer.flush();
+            }
+            if (logIndex != null) {
+                logIndex.flush();
+            }
+        }
+    }
+
+    /**
+     * flush 之后再把 log.txt 同步到磁盘（fsync），用于需要抵御断电的场景，开销较大。
+     * 开启了 mmap 缓冲时，随后同步映射文件，保证断电后不会把已经写入 log.txt 的内容再恢复一遍
+     */
+    public static void syncLog() {
+        synchronized (fileLock) {
+            flushLog();
+            FileOutputStream out = null;
+            try {
+                long start = System.nanoTime();
+                out = new FileOutputStream(getLogFilePath(), true);
+                out.getFD().sync();
+                LogMetrics.get().onSync(System.nanoTime() - start);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                FileUtils.close(out);
+            }
+            MmapLogBuffer buffer = mmapLogBuffer;
+            if (buffer != null) {
+                buffer.sync();
+            }
+        }
+    }
+
+    /**
+     * 日志管道的运行指标，和使用哪种输出方式无关
+     */
+    @NonNull
+    public static LogMetrics.Snapshot getMetrics() {
+        return LogMetrics.get().snapshot();
+    }
+
+    public static void resetMetrics() {
+        LogMetrics.get().reset();
+    }
+
+    /**
+     * 在内存中保留最近 capacity 条日志（不受 isDebug 影响），崩溃报告中会带上
+     *
+     * @param capacity 0 表示不保留
+     */
+    public static void setRecentLogCapacity(int capacity) {
+        recentLogs = capacity > 0 ? new LogRing(capacity) : null;
+    }
+
+    @Nullable
+    public static LogRing getRecentLogs() {
+        return recentLogs;
+    }
+
+    /**
+     * 安装崩溃处理：崩溃时先把日志落盘，再在 crash 目录下生成崩溃报告
+     */
+    public static void installCrashHandler() {
+        LogCrashHandler.install(new File(AppInfo.DIRECTORY_PATH, "crash"), LogCrashHandler.DEFAULT_DEADLINE_MILLIS);
+    }
+
     public static boolean isDebug() {
         return isDebug;
     }
@@ -68,9 +327,58 @@ public final class LogUtils {
         LogUtils.isDebug = isDebug;
     }
 
+    /**
+     * 结构化日志输出：logcat 输出 JSON 文本，保存文件时追加到 log.jsonl；
+     * 和普通日志一样，不输出日志时 JSON 文本交给 LogUploader
+     */
+    private static final LogEvent.Sink eventSink = new LogEvent.Sink() {
+        @Override
+        public void write(@NonNull LogEvent event) {
+            if (!isDebug) {
+                LogUploader uploader = logUploader;
+                if (uploader != null) {
+                    uploader.enqueue(event.getTag(), event.toString(), event.getLevel());
+                }
+                return;
+            }
+            if (saveLogToFile) {
+                saveEvent(event);
+            }
+            Log.println(event.getLevel(), event.getTag(), event.toString());
+        }
+    };
+
+    private static FileOutputStream eventStream;
+
+    /**
+     * 不输出日志时，日志交给它落盘、上传
+     */
+    private volatile static LogUploader logUploader;
+
     private LogUtils() {
     }
 
+    /**
+     * 结构化日志，默认 INFO 级别
+     * <p>
+     * LogUtils.event("Login").put("uid", uid).put("cost", cost).log();
+     *
+     * @param tag
+     * @return 被过滤、或者不输出日志又没有设置 LogUploader 时返回空实现，调用方不需要判断
+     */
+    @NonNull
+    public static LogEvent event(@NonNull String tag) {
+        return event(tag, INFO);
+    }
+
+    @NonNull
+    public static LogEvent event(@NonNull String tag, int type) {
+        if (!isDebug && logUploader == null || TextUtils.isEmpty(tag) || !levelFilter.isLoggable(tag, type)) {
+            return LogEvent.DISABLED;
+        }
+        return LogEvent.obtain(tag, type, eventSink);
+    }
+
     /**
      * 直接传 log
      *
@@ -103,23 +411,23 @@ public final class LogUtils {
      * @param params
      */
     public static void v(@NonNull String format, Object... params) {
-        v(TAG, String.format(format, params), VERBOSE);
+        println(TAG, format, String.format(format, params), VERBOSE);
     }
 
     public static void d(@NonNull String format, Object... params) {
-        d(TAG, String.format(format, params), DEBUG);
+        println(TAG, format, String.format(format, params), DEBUG);
     }
 
     public static void i(@NonNull String format, Object... params) {
-        i(TAG, String.format(format, params), INFO);
+        println(TAG, format, String.format(format, params), INFO);
     }
 
     public static void w(@NonNull String format, Object... params) {
-        w(TAG, String.format(format, params), WARN);
+        println(TAG, format, String.format(format, params), WARN);
     }
 
     public static void e(@NonNull String format, Object... params) {
-        e(TAG, String.format(format, params), ERROR);
+        println(TAG, format, String.format(format, params), ERROR);
     }
 
     /**
@@ -156,19 +464,84 @@ public final class LogUtils {
      * @param type
      */
     public static void println(String tag, @NonNull String log, int type) {
+        println(tag, log, log, type);
+    }
+
+    /**
+     * @param template 用于合并重复日志，格式化输出时为 format
+     */
+    private static void println(String tag, @NonNull String template, @NonNull String log, int type) {
+        LogMetrics metrics = LogMetrics.get();
         if (TextUtils.isEmpty(tag) || TextUtils.isEmpty(log)) {
+            metrics.onDrop(LogMetrics.DROP_EMPTY);
+            return;
+        }
+
+        if (!levelFilter.isLoggable(tag, type)) {
+            metrics.onDrop(LogMetrics.DROP_LEVEL);
             return;
         }
 
-        if (!isDebug) {
-            // TODO: 17/4/21 当不输出日志时，可以考虑将日志文件保存，上传
+        LogRing ring = recentLogs;
+        if (ring != null) {
+            ring.add(tag, log, type);
+        }
+
+        int repeated = suppressor.check(tag, template, type);
+        if (repeated < 0) {
+            metrics.onDrop(repeated == LogSuppressor.DROP_SAMPLED ? LogMetrics.DROP_SAMPLED
+                    : repeated == LogSuppressor.DROP_RATE_LIMITED ? LogMetrics.DROP_RATE_LIMITED : LogMetrics.DROP_DUPLICATE);
             return;
         }
+        if (repeated > 0) {
+            emit(tag, "last message repeated " + repeated + " times", type);
+        }
+        if (emit(tag, log, type)) {
+            metrics.onRecord(type);
+        } else {
+            metrics.onDrop(LogMetrics.DROP_NO_OUTPUT);
+        }
+    }
+
+    /**
+     * 输出到 logcat / 文件，不输出日志时交给 LogUploader 落盘、上传
+     *
+     * @return 没有任何输出时返回 false
+     */
+    private static boolean emit(@NonNull String tag, @NonNull String log, int type) {
+        if (isDebug) {
+            output(tag, log, type);
+            return true;
+        }
+        LogUploader uploader = logUploader;
+        if (uploader == null) {
+            return false;
+        }
+        uploader.enqueue(tag, log, type);
+        return true;
+    }
 
+    private static void output(@NonNull String tag, @NonNull String log, int type) {
         if (saveLogToFile) {
-            saveLog(log);
+            saveLog(tag, log, type);
         }
 
+        LogMetrics.get().onLogcatChars(log.length());
+        if (!LogChunker.needSplit(log, LogChunker.MAX_CHUNK_BYTES)) {
+            printToLogcat(tag, log, type);
+            return;
+        }
+        //logcat 单条有长度限制，分段输出，文件中仍是完整的一条
+        int[] ends = LogChunker.split(log, LogChunker.MAX_CHUNK_BYTES);
+        int id = LogChunker.nextId();
+        int start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            printToLogcat(tag, LogChunker.chunk(log, start, ends[i], id, i + 1, ends.length), type);
+            start = ends[i];
+        }
+    }
+
+    private static void printToLogcat(@NonNull String tag, @NonNull String log, int type) {
         switch (type) {
             default:
             case VERBOSE:
@@ -195,13 +568,143 @@ public final class LogUtils {
      * @param log
      */
     public static void saveLog(@NonNull String log) {
+        saveLog(null, log, 0);
+    }
+
+    /**
+     * 日志保存到本地，时间后面带上级别和 tag，同时更新索引供 {@link #query()} 使用
+     *
+     * @param tag  可以为 null
+     * @param log
+     * @param type
+     */
+    public static void saveLog(@Nullable String tag, @NonNull String log, int type) {
         if (TextUtils.isEmpty(log)) {
             return;
         }
+        long now = System.currentTimeMillis();
+        StringBuilder builder = new StringBuilder(log.length() + 32);
+        CachedClock.append(builder, now);
+        if (tag != null) {
+            builder.append(' ').append(LEVELS.charAt(type >= 0 && type < LEVELS.length() ? type : 0)).append('/').append(tag);
+        }
+        builder.append("\n ").append(log);
         if (!log.endsWith("\n"))
-            log = log.concat("\n");
+            builder.append('\n');
+
+        byte[] bytes = builder.toString().getBytes(UTF_8);
+        LogMetrics.get().onFileBytes(bytes.length);
+        synchronized (fileLock) {
+            MmapLogBuffer buffer = mmapLogBuffer;
+            if (indexEnabled && logIndex == null) {
+                //索引按 log.txt 的长度计算偏移，先把缓冲里的内容落盘
+                if (buffer != null) {
+                    buffer.flush();
+                }
+                logIndex = LogIndex.open(new File(getLogFilePath()), new File(getLogIndexFilePath()));
+            }
+            if (buffer != null) {
+                buffer.write(bytes);
+            } else {
+                long start = System.nanoTime();
+                boolean written = appendToLogFile(bytes);
+                LogMetrics.get().onFlush(System.nanoTime() - start);
+                if (!written) {
+                    //可能只写入了一部分，索引按文件实际长度重新打开，这部分当作未索引区域
+                    resetLogIndex();
+                    return;
+                }
+            }
+            if (logIndex != null) {
+                logIndex.append(bytes.length, now, type, tag);
+            }
+        }
+    }
 
-        FileUtils.writeFile(getLogFilePath(), DateUtils.getDateString(System.currentTimeMillis()) + "\n " + log, true);
+    /**
+     * @return 写入失败时返回 false
+     */
+    private static boolean appendToLogFile(@NonNull byte[] bytes) {
+        String path = getLogFilePath();
+        FileOutputStream out = null;
+        try {
+            FileUtils.makeDirs(path);
+            out = new FileOutputStream(path, true);
+            out.write(bytes);
+            out.close();
+            out = null;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 按时间、级别、tag 查询 log.txt，借助索引跳过无关的块
+     * <p>
+     * LogUtils.query().timeRange(from, to).minLevel(LogUtils.WARN).execute();
+     */
+    @NonNull
+    public static LogQuery query() {
+        flushLog();
+        return new LogQuery(new File(getLogFilePath()), new File(getLogIndexFilePath()));
+    }
+
+    /**
+     * 是否在写 log.txt 时同时写索引，默认开启
+     */
+    public static void setLogIndexEnabled(boolean enabled) {
+        synchronized (fileLock) {
+            indexEnabled = enabled;
+            resetLogIndex();
+        }
+    }
+
+    /**
+     * 写入方式变化时索引需要按新的文件长度重新打开，调用方需持有 fileLock
+     */
+    private static void resetLogIndex() {
+        if (logIndex != null) {
+            logIndex.flush();
+            logIndex = null;
+        }
+    }
+
+    /**
+     * 结构化日志按行追加到 log.jsonl，输出流一直打开，不再每条重新打开文件
+     */
+    private static synchronized void saveEvent(@NonNull LogEvent event) {
+        try {
+            if (eventStream == null) {
+                String path = getEventLogFilePath();
+                FileUtils.makeDirs(path);
+                eventStream = new FileOutputStream(path, true);
+            }
+            eventStream.write(event.getBuffer(), 0, event.getLength());
+            LogMetrics.get().onFileBytes(event.getLength());
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                if (eventStream != null) {
+                    eventStream.close();
+                }
+            } catch (IOException ignored) {
+            }
+            eventStream = null;
+        }
+    }
+
+    @NonNull
+    public static String getEventLogFilePath() {
+        return AppInfo.DIRECTORY_PATH + File.separator + "log.jsonl";
     }
 
     @NonNull
@@ -209,4 +712,14 @@ public final class LogUtils {
         return AppInfo.DIRECTORY_PATH + File.separator + "log.txt";
     }
 
+    @NonNull
+    public static String getLogIndexFilePath() {
+        return AppInfo.DIRECTORY_PATH + File.separator + "log.idx";
+    }
+
+    @NonNull
+    public static String getMmapLogFilePath() {
+        return AppInfo.DIRECTORY_PATH + File.separator + "log.mmap";
+    }
+
 }
@@ -18,10 +18,34 @@ package top.shixinzhang.utils;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Build;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+import android.support.annotation.WorkerThread;
 
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import top.shixinzhang.utils.sp.EncryptedPreferences;
+import top.shixinzhang.utils.sp.ExpiringPreferences;
+import top.shixinzhang.utils.sp.MigratingPreferences;
+import top.shixinzhang.utils.sp.MmapPreferences;
+import top.shixinzhang.utils.sp.SpChangeDispatcher;
+import top.shixinzhang.utils.sp.SpMigrator;
+import top.shixinzhang.utils.sp.SpPreloader;
+import top.shixinzhang.utils.sp.SpillPreferences;
+import top.shixinzhang.utils.sp.WrappedPreferences;
+import top.shixinzhang.utils.sp.WriteBehindPreferences;
 
 /**
  * <br> Description: SharedPreferences 工具类
@@ -36,7 +60,103 @@ import java.util.Set;
 public class SpUtils {
 
     private static final String DEFAULT_NAME = "shixinzhang_sp";
-    private static final Object mLockObj = new Object();     // TODO: 17/4/21 改成读写锁，效率更好？
+    private static final String EXPIRY_SUFFIX = "_expiry";
+    private static final String SPILL_SUFFIX = "_spill";
+
+    /**
+     * SharedPreferences 本身读取是线程安全的，这里缓存实例避免每次都走 getSharedPreferences 的同步查找；
+     * 读不加锁，写只按文件串行
+     */
+    private static final ConcurrentHashMap<String, SharedPreferences> sPreferences = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Object> sWriteLocks = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, SpChangeDispatcher> sDispatchers = new ConcurrentHashMap<>();
+
+    /**
+     * saveData / getData 按值的 Class 查表，代替按类名字符串 switch
+     */
+    private static final ConcurrentHashMap<Class<?>, ValueAccessor> sAccessors = new ConcurrentHashMap<>();
+
+    static {
+        sAccessors.put(String.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putString(key, (String) value);
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getString(key, (String) defaultValue);
+            }
+        });
+        sAccessors.put(Integer.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putInt(key, (Integer) value);
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getInt(key, (Integer) defaultValue);
+            }
+        });
+        sAccessors.put(Long.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putLong(key, (Long) value);
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getLong(key, (Long) defaultValue);
+            }
+        });
+        sAccessors.put(Float.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putFloat(key, (Float) value);
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getFloat(key, (Float) defaultValue);
+            }
+        });
+        sAccessors.put(Double.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putLong(key, Double.doubleToRawLongBits((Double) value));
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.contains(key) ? Double.longBitsToDouble(sp.getLong(key, 0)) : defaultValue;
+            }
+        });
+        sAccessors.put(Boolean.class, new ValueAccessor() {
+            @Override
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putBoolean(key, (Boolean) value);
+            }
+
+            @Override
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getBoolean(key, (Boolean) defaultValue);
+            }
+        });
+        sAccessors.put(Set.class, new ValueAccessor() {
+            @Override
+            @SuppressWarnings("unchecked")
+            void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value) {
+                editor.putStringSet(key, (Set<String>) value);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue) {
+                return sp.getStringSet(key, (Set<String>) defaultValue);
+            }
+        });
+    }
 
     @NonNull
     private static String mName = DEFAULT_NAME;
@@ -44,6 +164,351 @@ public class SpUtils {
     private SpUtils() {
     }
 
+    /**
+     * 获取 spName 对应的 SharedPreferences，首次获取后缓存；正在预加载时等待预加载完成
+     */
+    @NonNull
+    public static SharedPreferences getPreferences(@NonNull Context context, @NonNull String spName) {
+        SharedPreferences sp = sPreferences.get(spName);
+        if (sp == null) {
+            sp = SpPreloader.await(spName);
+            if (sp == null) {
+                sp = cachePreferences(spName, openPreferences(context, spName));
+            }
+        }
+        return sp;
+    }
+
+    @NonNull
+    private static SharedPreferences openPreferences(@NonNull Context context, @NonNull String spName) {
+        Context appContext = context.getApplicationContext();
+        return (appContext != null ? appContext : context).getSharedPreferences(spName, Context.MODE_PRIVATE);
+    }
+
+    @NonNull
+    private static SharedPreferences cachePreferences(@NonNull String spName, @NonNull SharedPreferences sp) {
+        SharedPreferences previous = sPreferences.putIfAbsent(spName, sp);
+        return previous != null ? previous : sp;
+    }
+
+    /**
+     * 把 spName 原来的 xml 数据在后台迁移到 {@link MmapPreferences}，见 {@link SpMigrator}。
+     * 迁移期间读写都可以正常进行，完成后自动切换到新存储；已经迁移过时直接使用新存储。
+     * 需要在 use* 等包装之前调用，否则抛出 IllegalStateException
+     *
+     * @return 是否成功开始（或已完成）迁移
+     */
+    public static boolean migrateToMmapStore(@NonNull Context context, @NonNull final String spName) {
+        synchronized (getWriteLock(spName)) {
+            SharedPreferences current = sPreferences.get(spName);
+            if (current != null && findInChain(current, MigratingPreferences.class) != null) {
+                return true;
+            }
+            if (current instanceof WrappedPreferences) {
+                //替换掉会丢掉外面的包装
+                throw new IllegalStateException("Call migrateToMmapStore() before use*(): " + spName);
+            }
+            return startMigration(context, spName);
+        }
+    }
+
+    private static boolean startMigration(@NonNull Context context, @NonNull final String spName) {
+        Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final MmapPreferences target;
+        try {
+            target = MmapPreferences.open(getStoreFile(appContext, spName, ".kv"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        File xmlFile = new File(appContext.getApplicationInfo().dataDir,
+                "shared_prefs" + File.separator + spName + ".xml");
+        final AtomicReference<SharedPreferences> migrating = new AtomicReference<>();
+        SpMigrator migrator = new SpMigrator(xmlFile, target, getStoreFile(appContext, spName, ""), new Runnable() {
+            @Override
+            public void run() {
+                synchronized (getWriteLock(spName)) {
+                    //期间被其他包装替换过就不动，否则经过 setPreferences 切换，订阅跟着移到新存储
+                    if (sPreferences.get(spName) == migrating.get()) {
+                        setPreferences(spName, target);
+                    }
+                }
+            }
+        });
+        if (migrator.isCompleted()) {
+            setPreferences(spName, target);
+            return true;
+        }
+        migrating.set(new MigratingPreferences(openPreferences(appContext, spName), target, migrator));
+        setPreferences(spName, migrating.get());
+        migrator.start();
+        return true;
+    }
+
+    @NonNull
+    private static File getStoreFile(@NonNull Context context, @NonNull String spName, @NonNull String suffix) {
+        return new File(context.getFilesDir(), "sp" + File.separator + spName + suffix);
+    }
+
+    /**
+     * spName 的值改为加密存储，见 {@link EncryptedPreferences}。需要在其他包装（如延迟写入）之前调用
+     *
+     * @param wrapper 包装数据密钥的方式
+     * @return 是否成功
+     */
+    @RequiresApi(api = Build.VERSION_CODES.KITKAT)
+    public static boolean useEncryptedStore(@NonNull Context context, @NonNull String spName,
+                                            @NonNull EncryptedPreferences.KeyWrapper wrapper) {
+        synchronized (getWriteLock(spName)) {
+            SharedPreferences sp = getPreferences(context, spName);
+            if (findInChain(sp, EncryptedPreferences.class) != null) {
+                return true;
+            }
+            requireNoExpiry(sp, spName);
+            try {
+                setPreferences(spName, EncryptedPreferences.create(sp, wrapper));
+                return true;
+            } catch (GeneralSecurityException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * spName 改为延迟合并写入，适合频繁写的计数器、时间戳等，见 {@link WriteBehindPreferences}。
+     * 需要在 onPause / onStop 等时机调用 {@link #flushAll()} 或 {@link #syncAll()}
+     *
+     * @param delayMillis 修改最多延迟多久写入
+     */
+    @NonNull
+    public static WriteBehindPreferences useWriteBehind(@NonNull Context context, @NonNull String spName, long delayMillis) {
+        synchronized (getWriteLock(spName)) {
+            SharedPreferences sp = getPreferences(context, spName);
+            WriteBehindPreferences existing = findInChain(sp, WriteBehindPreferences.class);
+            if (existing != null) {
+                return existing;
+            }
+            requireNoExpiry(sp, spName);
+            WriteBehindPreferences writeBehind = new WriteBehindPreferences(sp, delayMillis);
+            setPreferences(spName, writeBehind);
+            return writeBehind;
+        }
+    }
+
+    /**
+     * spName 里超过 threshold 个字符的字符串单独存文件，主文件只存引用，见 {@link SpillPreferences}。
+     * 适合存 GsonUtils.toJson 生成的大 JSON。
+     * 单独存放的文件不加密，需要在 {@link #useEncryptedStore} 之前调用，否则抛出 IllegalStateException
+     *
+     * @param threshold 超过多少个字符的字符串单独存放
+     */
+    @NonNull
+    public static SpillPreferences useSpill(@NonNull Context context, @NonNull String spName, int threshold) {
+        synchronized (getWriteLock(spName)) {
+            SharedPreferences sp = getPreferences(context, spName);
+            SpillPreferences existing = findInChain(sp, SpillPreferences.class);
+            if (existing != null) {
+                return existing;
+            }
+            requireNoExpiry(sp, spName);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    && findInChain(sp, EncryptedPreferences.class) != null) {
+                //包在加密外面会把明文写进单独的文件
+                throw new IllegalStateException("Call useSpill() before useEncryptedStore(): " + spName);
+            }
+            SpillPreferences spill = new SpillPreferences(sp,
+                    getStoreFile(context.getApplicationContext(), spName, SPILL_SUFFIX), threshold);
+            setPreferences(spName, spill);
+            return spill;
+        }
+    }
+
+    /**
+     * spName 支持过期时间，过期时间保存在 spName_expiry 文件里，见 {@link ExpiringPreferences}。
+     * 过期检查必须在最外层，外面的延迟写入、加密缓存会读到过期的值，所以需要在其他 use* 之后调用，
+     * 之后再调用其他 use* 会抛出 IllegalStateException
+     */
+    @NonNull
+    public static ExpiringPreferences useExpiry(@NonNull Context context, @NonNull String spName) {
+        synchronized (getWriteLock(spName)) {
+            SharedPreferences sp = getPreferences(context, spName);
+            ExpiringPreferences existing = findInChain(sp, ExpiringPreferences.class);
+            if (existing != null) {
+                if (existing != sp) {
+                    throw new IllegalStateException("ExpiringPreferences is not the outermost wrapper: " + spName);
+                }
+                return existing;
+            }
+            ExpiringPreferences expiring = new ExpiringPreferences(sp,
+                    openPreferences(context.getApplicationContext(), spName + EXPIRY_SUFFIX));
+            setPreferences(spName, expiring);
+            return expiring;
+        }
+    }
+
+    /**
+     * 把所有延迟写入的修改立即 apply
+     */
+    public static void flushAll() {
+        for (SharedPreferences sp : sPreferences.values()) {
+            WriteBehindPreferences writeBehind = findInChain(sp, WriteBehindPreferences.class);
+            if (writeBehind != null) {
+                writeBehind.flush();
+            }
+        }
+    }
+
+    /**
+     * 把所有延迟写入的修改同步写到磁盘，不要在主线程调用
+     *
+     * @return 是否全部成功
+     */
+    @WorkerThread
+    public static boolean syncAll() {
+        boolean result = true;
+        for (SharedPreferences sp : sPreferences.values()) {
+            WriteBehindPreferences writeBehind = findInChain(sp, WriteBehindPreferences.class);
+            if (writeBehind != null) {
+                result &= writeBehind.sync();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 在后台线程并行加载这些文件，启动时尽早调用。加载完成前的读取会等待对应的任务，加载情况见 {@link SpPreloader#getTasks()}
+     *
+     * @return 每个文件的加载任务，可以 get() 等待
+     */
+    @NonNull
+    public static List<SpPreloader.Task> preload(@NonNull Context context, @NonNull String... spNames) {
+        final Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        List<SpPreloader.Task> tasks = new ArrayList<>(spNames.length);
+        for (final String spName : spNames) {
+            tasks.add(SpPreloader.submit(spName, new Callable<SharedPreferences>() {
+                @Override
+                public SharedPreferences call() throws Exception {
+                    SharedPreferences sp = sPreferences.get(spName);
+                    if (sp == null) {
+                        sp = openPreferences(appContext, spName);
+                    }
+                    //系统实现在后台线程解析 xml，第一次读取会等解析完成，这里在预加载线程里先等掉
+                    sp.contains(spName);
+                    return cachePreferences(spName, sp);
+                }
+            }));
+        }
+        return tasks;
+    }
+
+    /**
+     * 给 spName 指定存储实现，之后通过 SpUtils 读写 spName 都走这个实例，需要在第一次读写前调用
+     */
+    public static void setPreferences(@NonNull String spName, @NonNull SharedPreferences preferences) {
+        SharedPreferences previous = sPreferences.put(spName, preferences);
+        //已有订阅时把分发器移到新的实例上
+        SpChangeDispatcher dispatcher = sDispatchers.get(spName);
+        if (dispatcher != null && previous != preferences) {
+            if (previous != null) {
+                previous.unregisterOnSharedPreferenceChangeListener(dispatcher);
+            }
+            preferences.registerOnSharedPreferenceChangeListener(dispatcher);
+        }
+    }
+
+    /**
+     * 订阅 spName 的修改，window 毫秒内的修改合并成一次回调，在 executor 上执行，见 {@link SpChangeDispatcher}
+     *
+     * @param keys     关心的 key，为 null 时不按 key 过滤
+     * @param prefix   关心的 key 前缀，为 null 时不按前缀过滤
+     * @param listener 只被弱引用持有，调用方需要自己持有
+     * @return 可以用来取消订阅
+     */
+    @NonNull
+    public static SpChangeDispatcher.Subscription subscribe(@NonNull Context context, @NonNull String spName,
+                                                            @Nullable Collection<String> keys, @Nullable String prefix,
+                                                            long windowMillis, @NonNull Executor executor,
+                                                            @NonNull SpChangeDispatcher.OnChangesListener listener) {
+        synchronized (getWriteLock(spName)) {
+            SpChangeDispatcher dispatcher = sDispatchers.get(spName);
+            if (dispatcher == null) {
+                dispatcher = new SpChangeDispatcher(spName);
+                sDispatchers.put(spName, dispatcher);
+                getPreferences(context, spName).registerOnSharedPreferenceChangeListener(dispatcher);
+            }
+            return dispatcher.subscribe(keys, prefix, windowMillis, executor, listener);
+        }
+    }
+
+    /**
+     * spName 改用 {@link MmapPreferences} 存储，文件在 files/sp/ 下。不会迁移原来 xml 里的数据
+     *
+     * @return 是否成功，失败时继续使用系统的 SharedPreferences
+     */
+    public static boolean useMmapStore(@NonNull Context context, @NonNull String spName) {
+        return useMmapStore(context, spName, false);
+    }
+
+    /**
+     * 同 {@link #useMmapStore(Context, String)}
+     *
+     * @param multiProcess 是否有多个进程读写这个文件，所有进程都要传 true
+     */
+    public static boolean useMmapStore(@NonNull Context context, @NonNull String spName, boolean multiProcess) {
+        try {
+            setPreferences(spName, MmapPreferences.open(getStoreFile(context, spName, ".kv"), multiProcess));
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * 过期检查要保持在最外层，已经有 {@link ExpiringPreferences} 时不能再往外包装
+     */
+    private static void requireNoExpiry(@NonNull SharedPreferences sp, @NonNull String spName) {
+        if (findInChain(sp, ExpiringPreferences.class) != null) {
+            throw new IllegalStateException("Call useExpiry() after other use*(): " + spName);
+        }
+    }
+
+    /**
+     * 沿 {@link WrappedPreferences#getDelegate()} 查找 type 类型的一层，use* 叠加多层包装后也能找到
+     *
+     * @return 找不到时返回 null
+     */
+    @Nullable
+    private static <T extends SharedPreferences> T findInChain(@NonNull SharedPreferences sp, @NonNull Class<T> type) {
+        SharedPreferences current = sp;
+        while (true) {
+            if (type.isInstance(current)) {
+                return type.cast(current);
+            }
+            if (!(current instanceof WrappedPreferences)) {
+                return null;
+            }
+            current = ((WrappedPreferences) current).getDelegate();
+        }
+    }
+
+    /**
+     * 同一个文件的写操作串行，不同文件互不影响
+     */
+    @NonNull
+    private static Object getWriteLock(@NonNull String spName) {
+        Object lock = sWriteLocks.get(spName);
+        if (lock == null) {
+            lock = new Object();
+            Object previous = sWriteLocks.putIfAbsent(spName, lock);
+            if (previous != null) {
+                lock = previous;
+            }
+        }
+        return lock;
+    }
+
     public static void saveDataInDefault(@NonNull Context context, String key, Object object) {
         saveData(context, mName, key, object);
     }
@@ -60,33 +525,126 @@ public class SpUtils {
         if (object == null) {
             return;
         }
-        synchronized (mLockObj) {
-            SharedPreferences sp = context.getSharedPreferences(spName, Context.MODE_PRIVATE);
+        SharedPreferences sp = getPreferences(context, spName);
+        synchronized (getWriteLock(spName)) {
             SharedPreferences.Editor editor = sp.edit();
+            putValue(editor, key, object);
+            editor.apply();
+        }
+    }
+
+    /**
+     * 保存数据，ttlMillis 之后过期，过期后读到的是默认值。会自动调用 {@link #useExpiry(Context, String)}，
+     * 通过最外层写入，经过所有包装
+     *
+     * @param ttlMillis 多久之后过期
+     */
+    public static void saveData(@NonNull Context context, String spName, String key, @Nullable Object object, long ttlMillis) {
+        if (object == null) {
+            return;
+        }
+        ExpiringPreferences sp = useExpiry(context, spName);
+        synchronized (getWriteLock(spName)) {
+            ExpiringPreferences.ExpiringEditor editor = sp.edit();
+            putValue(editor, key, object);
+            editor.expireAfter(key, ttlMillis).apply();
+        }
+    }
 
-            switch (object.getClass().getSimpleName()) {
-                case "String":
-                    editor.putString(key, (String) object);
-                    break;
-                case "Integer":
-                    editor.putInt(key, (Integer) object);
-                    break;
-                case "Boolean":
-                    editor.putBoolean(key, (Boolean) object);
-                    break;
-                case "Float":
-                    editor.putFloat(key, (Float) object);
-                    break;
-                case "Long":
-                    editor.putLong(key, (Long) object);
-                    break;
-                case "HashSet":
-                case "Set":
-                    editor.putStringSet(key, (Set<String>) object);
-                    break;
+    private static void putValue(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object object) {
+        accessorOf(object.getClass()).put(editor, key, object);
+    }
+
+    /**
+     * 按类型查找读写方式，Set 的各种实现第一次遇到时加入表中
+     */
+    @NonNull
+    private static ValueAccessor accessorOf(@NonNull Class<?> type) {
+        ValueAccessor accessor = sAccessors.get(type);
+        if (accessor == null) {
+            if (!Set.class.isAssignableFrom(type)) {
+                throw new IllegalArgumentException("Unsupported type: " + type.getName());
             }
-            editor.apply();
+            accessor = sAccessors.get(Set.class);
+            sAccessors.putIfAbsent(type, accessor);
         }
+        return accessor;
+    }
+
+    public static String getString(@NonNull Context context, String spName, String key, @Nullable String defaultValue) {
+        return getPreferences(context, spName).getString(key, defaultValue);
+    }
+
+    public static int getInt(@NonNull Context context, String spName, String key, int defaultValue) {
+        return getPreferences(context, spName).getInt(key, defaultValue);
+    }
+
+    public static long getLong(@NonNull Context context, String spName, String key, long defaultValue) {
+        return getPreferences(context, spName).getLong(key, defaultValue);
+    }
+
+    public static float getFloat(@NonNull Context context, String spName, String key, float defaultValue) {
+        return getPreferences(context, spName).getFloat(key, defaultValue);
+    }
+
+    /**
+     * double 以 long 的位形式保存，和 {@link #putDouble} 对应
+     */
+    public static double getDouble(@NonNull Context context, String spName, String key, double defaultValue) {
+        SharedPreferences sp = getPreferences(context, spName);
+        return sp.contains(key) ? Double.longBitsToDouble(sp.getLong(key, 0)) : defaultValue;
+    }
+
+    public static boolean getBoolean(@NonNull Context context, String spName, String key, boolean defaultValue) {
+        return getPreferences(context, spName).getBoolean(key, defaultValue);
+    }
+
+    public static Set<String> getStringSet(@NonNull Context context, String spName, String key, @Nullable Set<String> defaultValue) {
+        return getPreferences(context, spName).getStringSet(key, defaultValue);
+    }
+
+    public static void putString(@NonNull Context context, String spName, String key, @Nullable String value) {
+        edit(context, spName).putString(key, value).apply();
+    }
+
+    public static void putInt(@NonNull Context context, String spName, String key, int value) {
+        edit(context, spName).putInt(key, value).apply();
+    }
+
+    public static void putLong(@NonNull Context context, String spName, String key, long value) {
+        edit(context, spName).putLong(key, value).apply();
+    }
+
+    public static void putFloat(@NonNull Context context, String spName, String key, float value) {
+        edit(context, spName).putFloat(key, value).apply();
+    }
+
+    public static void putDouble(@NonNull Context context, String spName, String key, double value) {
+        edit(context, spName).putDouble(key, value).apply();
+    }
+
+    public static void putBoolean(@NonNull Context context, String spName, String key, boolean value) {
+        edit(context, spName).putBoolean(key, value).apply();
+    }
+
+    public static void putStringSet(@NonNull Context context, String spName, String key, @Nullable Set<String> value) {
+        edit(context, spName).putStringSet(key, value).apply();
+    }
+
+    /**
+     * 批量修改，所有操作只生成一个 Editor，最后只写一次文件
+     * <pre>
+     * SpUtils.edit(context, name).put("a", 1).put("b", "x").remove("c").apply();
+     * </pre>
+     */
+    @NonNull
+    public static Transaction edit(@NonNull Context context, @NonNull String spName) {
+        return new Transaction(getPreferences(context, spName).edit(), getWriteLock(spName));
+    }
+
+    @NonNull
+    public static Transaction editDefault(@NonNull Context context) {
+        return edit(context, mName);
     }
 
     @Nullable
@@ -108,37 +666,11 @@ public class SpUtils {
         if (defaultValue == null) {
             throw new IllegalArgumentException("Default value used for get data type, so it can't be null!");
         }
-        synchronized (mLockObj) {
-            SharedPreferences sp = context.getSharedPreferences(spName, Context.MODE_PRIVATE);
-            Object result = null;
-
-            switch (defaultValue.getClass().getSimpleName()) {
-                case "String":
-                    result = sp.getString(key, (String) defaultValue);
-                    break;
-                case "Integer":
-                    result = sp.getInt(key, (Integer) defaultValue);
-                    break;
-                case "Boolean":
-                    result = sp.getBoolean(key, (Boolean) defaultValue);
-                    break;
-                case "Float":
-                    result = sp.getFloat(key, (Float) defaultValue);
-                    break;
-                case "Long":
-                    result = sp.getLong(key, (Long) defaultValue);
-                    break;
-                case "HashSet":
-                case "Set":
-                    result = sp.getStringSet(key, (Set<String>) defaultValue);
-                    break;
-            }
-            return result;
-        }
+        return accessorOf(defaultValue.getClass()).get(getPreferences(context, spName), key, defaultValue);
     }
 
     public static void removeData(Context context, String key) {
-        removeData(context, key);
+        removeData(context, mName, key);
     }
 
     /**
@@ -152,10 +684,11 @@ public class SpUtils {
         if (context == null) {
             return;
         }
-        synchronized (mLockObj) {
-            SharedPreferences sp = context.getSharedPreferences(spName, Context.MODE_PRIVATE);
+        SharedPreferences sp = getPreferences(context, spName);
+        synchronized (getWriteLock(spName)) {
             SharedPreferences.Editor editor = sp.edit();
             editor.remove(key);
+            editor.apply();
         }
     }
 
@@ -166,10 +699,139 @@ public class SpUtils {
      * @param spName
      */
     public static void clear(@NonNull Context context, String spName) {
-        synchronized (mLockObj) {
-            SharedPreferences sp = context.getSharedPreferences(spName, Context.MODE_PRIVATE);
+        SharedPreferences sp = getPreferences(context, spName);
+        synchronized (getWriteLock(spName)) {
             SharedPreferences.Editor editor = sp.edit();
             editor.clear();
+            editor.apply();
+        }
+    }
+
+    /**
+     * 一次批量修改，见 {@link #edit(Context, String)}。不是线程安全的，不要跨线程共用
+     */
+    public static final class Transaction {
+        @NonNull
+        private final SharedPreferences.Editor mEditor;
+        @NonNull
+        private final Object mWriteLock;
+
+        private Transaction(@NonNull SharedPreferences.Editor editor, @NonNull Object writeLock) {
+            mEditor = editor;
+            mWriteLock = writeLock;
+        }
+
+        /**
+         * @param value 支持 String、Integer、Boolean、Float、Long、Double、Set&lt;String&gt;，null 等同于 remove
+         */
+        @NonNull
+        public Transaction put(String key, @Nullable Object value) {
+            if (value == null) {
+                mEditor.remove(key);
+            } else {
+                putValue(mEditor, key, value);
+            }
+            return this;
         }
+
+        @NonNull
+        public Transaction putString(String key, @Nullable String value) {
+            mEditor.putString(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Transaction putInt(String key, int value) {
+            mEditor.putInt(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Transaction putLong(String key, long value) {
+            mEditor.putLong(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Transaction putFloat(String key, float value) {
+            mEditor.putFloat(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Transaction putDouble(String key, double value) {
+            mEditor.putLong(key, Double.doubleToRawLongBits(value));
+            return this;
+        }
+
+        @NonNull
+        public Transaction putBoolean(String key, boolean value) {
+            mEditor.putBoolean(key, value);
+            return this;
+        }
+
+        @NonNull
+        public Transaction putStringSet(String key, @Nullable Set<String> value) {
+            mEditor.putStringSet(key, value);
+            return this;
+        }
+
+        /**
+         * 给本次写入的 key 设置过期时间，需要在 put 之后调用，并且之前调用过 {@link #useExpiry(Context, String)}
+         * （过期检查总在最外层，本事务的 Editor 就是它的）
+         */
+        @NonNull
+        public Transaction expireAfter(String key, long ttlMillis) {
+            if (!(mEditor instanceof ExpiringPreferences.ExpiringEditor)) {
+                throw new IllegalStateException("Call useExpiry() before edit()");
+            }
+            ((ExpiringPreferences.ExpiringEditor) mEditor).expireAfter(key, ttlMillis);
+            return this;
+        }
+
+        @NonNull
+        public Transaction remove(String key) {
+            mEditor.remove(key);
+            return this;
+        }
+
+        /**
+         * 和 SharedPreferences.Editor 一样，clear 总是先于本次的 put 执行
+         */
+        @NonNull
+        public Transaction clear() {
+            mEditor.clear();
+            return this;
+        }
+
+        /**
+         * 异步写入磁盘
+         */
+        public void apply() {
+            synchronized (mWriteLock) {
+                mEditor.apply();
+            }
+        }
+
+        /**
+         * 同步写入磁盘，不要在主线程调用
+         *
+         * @return 是否写入成功
+         */
+        @WorkerThread
+        public boolean commit() {
+            synchronized (mWriteLock) {
+                return mEditor.commit();
+            }
+        }
+    }
+
+    /**
+     * 某种值类型的读写方式
+     */
+    private abstract static class ValueAccessor {
+        abstract void put(@NonNull SharedPreferences.Editor editor, String key, @NonNull Object value);
+
+        abstract Object get(@NonNull SharedPreferences sp, String key, @NonNull Object defaultValue);
     }
 }
@@ -16,6 +16,12 @@
 
 package top.shixinzhang.utils;
 
+import android.support.annotation.NonNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Map;
+
 /**
  * Description:
  * <br> 堆栈检查
@@ -42,4 +48,48 @@ public class StackTraceUtils {
             System.out.println(i + ":" + st[i]);
         }
     }
+
+    /**
+     * 异常的完整堆栈，包括 cause
+     */
+    @NonNull
+    public static String getStackTraceString(@NonNull Throwable throwable) {
+        StringWriter writer = new StringWriter();
+        PrintWriter printWriter = new PrintWriter(writer);
+        throwable.printStackTrace(printWriter);
+        printWriter.flush();
+        return writer.toString();
+    }
+
+    /**
+     * 输出所有线程的状态和调用栈
+     *
+     * @param builder 追加到这里
+     * @return builder
+     */
+    @NonNull
+    public static StringBuilder dumpAllThreads(@NonNull StringBuilder builder) {
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            dumpThread(builder, entry.getKey(), entry.getValue());
+        }
+        return builder;
+    }
+
+    /**
+     * 输出单个线程的状态和调用栈
+     */
+    @NonNull
+    public static StringBuilder dumpThread(@NonNull StringBuilder builder, @NonNull Thread thread,
+                                           @NonNull StackTraceElement[] stackTrace) {
+        builder.append('"').append(thread.getName()).append('"')
+                .append(" tid=").append(thread.getId())
+                .append(" prio=").append(thread.getPriority())
+                .append(thread.isDaemon() ? " daemon" : "")
+                .append(' ').append(thread.getState())
+                .append('\n');
+        for (StackTraceElement element : stackTrace) {
+            builder.append("    at ").append(element).append('\n');
+        }
+        return builder.append('\n');
+    }
 }
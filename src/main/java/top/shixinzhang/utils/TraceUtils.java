@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.shixinzhang.utils.log.LatencyHistogram;
+
+/**
+ * <br> Description: 代码段耗时统计
+ * <p>
+ * <br> 用 System.nanoTime 计时，结果记录到每个 section 预先分配好的直方图里，不输出日志；
+ * <br> 可以定时把汇总输出到 LogUtils，也可以导出 Chrome trace 格式（chrome://tracing 打开）查看时间线。
+ * <p>
+ * <br> 用法：
+ * <br> TraceUtils.begin("inflate"); ... TraceUtils.end();
+ * <br> 或者 TraceUtils.Scope scope = TraceUtils.scope("inflate"); try { ... } finally { scope.close(); }
+ * <p>
+ * <br> 关闭且没有未结束的 section 时，begin / end 只读两次 volatile 变量。
+ * <br> 开关在 begin 和 end 之间切换时，end 仍然只弹出对应 begin 压入的内容，不会错配。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class TraceUtils {
+    private static final String TAG = "TraceUtils";
+
+    private static final int MAX_DEPTH = 32;
+
+    private volatile static boolean enabled = false;
+
+    private static final ConcurrentHashMap<String, Section> sections = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+        @Override
+        protected Stack initialValue() {
+            return new Stack();
+        }
+    };
+
+    /**
+     * 栈不为空的线程数，关闭时为 0 就不用查 ThreadLocal
+     */
+    private static final AtomicInteger openStacks = new AtomicInteger();
+
+    @Nullable
+    private volatile static EventRing eventRing;
+
+    private static ScheduledExecutorService dumpExecutor;
+    private static ScheduledFuture<?> dumpFuture;
+
+    private TraceUtils() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        TraceUtils.enabled = enabled;
+    }
+
+    /**
+     * 开始计时，必须和 {@link #end()} 在同一线程成对调用
+     */
+    public static void begin(@NonNull String section) {
+        if (!enabled) {
+            if (openStacks.get() == 0) {
+                return;
+            }
+            //关闭期间嵌套在已有 section 里的 begin 压入空标记，保证对应的 end 弹出的是它自己
+            Stack stack = stacks.get();
+            if (stack.mDepth > 0) {
+                push(stack, null);
+            }
+            return;
+        }
+        push(stacks.get(), getSection(section));
+    }
+
+    private static void push(@NonNull Stack stack, @Nullable Section section) {
+        if (stack.mDepth == 0) {
+            openStacks.incrementAndGet();
+        }
+        if (stack.mDepth >= MAX_DEPTH) {
+            //嵌套过深时只记深度，保证 end 能正确配对
+            stack.mDepth++;
+            return;
+        }
+        stack.mSections[stack.mDepth] = section;
+        stack.mStarts[stack.mDepth] = System.nanoTime();
+        stack.mDepth++;
+    }
+
+    /**
+     * 结束最近一次 begin。没有压入内容的 begin 只会发生在栈为空时，这时 end 什么也不做
+     */
+    public static void end() {
+        if (!enabled && openStacks.get() == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        Stack stack = stacks.get();
+        if (stack.mDepth == 0) {
+            return;
+        }
+        int depth = --stack.mDepth;
+        if (depth == 0) {
+            openStacks.decrementAndGet();
+        }
+        if (depth >= MAX_DEPTH) {
+            return;
+        }
+        Section section = stack.mSections[depth];
+        if (section == null) {
+            return;
+        }
+        stack.mSections[depth] = null;
+        long start = stack.mStarts[depth];
+        section.record(now - start);
+
+        EventRing ring = eventRing;
+        if (ring != null) {
+            ring.add(section, start, now - start);
+        }
+    }
+
+    /**
+     * 配合 try / finally 使用，关闭时返回共享的空实现
+     */
+    @NonNull
+    public static Scope scope(@NonNull String section) {
+        if (!enabled) {
+            return Scope.NOOP;
+        }
+        begin(section);
+        return Scope.ACTIVE;
+    }
+
+    /**
+     * 计时范围，close 时等同于 {@link #end()}
+     */
+    public static class Scope implements Closeable {
+        static final Scope NOOP = new Scope() {
+            @Override
+            public void close() {
+            }
+        };
+        static final Scope ACTIVE = new Scope();
+
+        private Scope() {
+        }
+
+        @Override
+        public void close() {
+            end();
+        }
+    }
+
+    @NonNull
+    private static Section getSection(@NonNull String name) {
+        Section section = sections.get(name);
+        if (section == null) {
+            section = new Section(name);
+            Section previous = sections.putIfAbsent(name, section);
+            if (previous != null) {
+                section = previous;
+            }
+        }
+        return section;
+    }
+
+    /**
+     * 所有 section 的统计，按总耗时从高到低
+     */
+    @NonNull
+    public static List<Stats> getStats() {
+        List<Stats> result = new ArrayList<>();
+        for (Section section : sections.values()) {
+            result.add(section.snapshot());
+        }
+        Collections.sort(result, new Comparator<Stats>() {
+            @Override
+            public int compare(Stats o1, Stats o2) {
+                return o1.totalNanos < o2.totalNanos ? 1 : (o1.totalNanos == o2.totalNanos ? 0 : -1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 清空所有统计
+     */
+    public static void reset() {
+        sections.clear();
+        EventRing ring = eventRing;
+        if (ring != null) {
+            eventRing = new EventRing(ring.mNames.length);
+        }
+    }
+
+    /**
+     * 汇总文本，一行一个 section
+     */
+    @NonNull
+    public static String dumpSummary() {
+        StringBuilder builder = new StringBuilder("trace summary (us):");
+        for (Stats stats : getStats()) {
+            builder.append('\n').append(stats);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 定时把汇总输出到 LogUtils
+     *
+     * @param intervalMillis &lt;= 0 表示停止
+     */
+    public static synchronized void startPeriodicDump(long intervalMillis) {
+        if (dumpFuture != null) {
+            dumpFuture.cancel(false);
+            dumpFuture = null;
+        }
+        if (intervalMillis <= 0) {
+            return;
+        }
+        if (dumpExecutor == null) {
+            dumpExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread thread = new Thread(r, "TraceDump");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        dumpFuture = dumpExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (!sections.isEmpty()) {
+                    LogUtils.i(TAG, dumpSummary());
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 记录最近 capacity 次调用的时间线，用于导出 Chrome trace
+     *
+     * @param capacity 0 表示不记录
+     */
+    public static void setTraceEventCapacity(int capacity) {
+        eventRing = capacity > 0 ? new EventRing(capacity) : null;
+    }
+
+    /**
+     * 导出 Chrome trace event JSON，可以用 chrome://tracing 或 Perfetto 打开
+     *
+     * @return 没有开启记录或写入失败时返回 false
+     */
+    public static boolean exportChromeTrace(@NonNull File file) {
+        EventRing ring = eventRing;
+        if (ring == null) {
+            return false;
+        }
+        FileUtils.makeDirs(file.getAbsolutePath());
+        Writer writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+            ring.writeTo(writer);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 一个 section 的统计结果
+     */
+    public static final class Stats {
+        @NonNull
+        public final String name;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long p50Nanos;
+        public final long p90Nanos;
+        public final long p99Nanos;
+
+        Stats(@NonNull String name, long count, long totalNanos, long maxNanos, long p50Nanos, long p90Nanos, long p99Nanos) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: count=%d total=%.1f avg=%.1f p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                    name, count, totalNanos / 1e3, count == 0 ? 0 : totalNanos / 1e3 / count,
+                    p50Nanos / 1e3, p90Nanos / 1e3, p99Nanos / 1e3, maxNanos / 1e3);
+        }
+    }
+
+    private static final class Section {
+        @NonNull
+        final String mName;
+        final LatencyHistogram mHistogram = new LatencyHistogram();
+
+        Section(@NonNull String name) {
+            mName = name;
+        }
+
+        void record(long nanos) {
+            mHistogram.record(nanos);
+        }
+
+        @NonNull
+        Stats snapshot() {
+            LatencyHistogram.Snapshot snapshot = mHistogram.snapshot();
+            return new Stats(mName, snapshot.count, snapshot.totalNanos, snapshot.maxNanos,
+                    snapshot.percentile(0.5), snapshot.percentile(0.9), snapshot.percentile(0.99));
+        }
+    }
+
+    private static final class Stack {
+        final Section[] mSections = new Section[MAX_DEPTH];
+        final long[] mStarts = new long[MAX_DEPTH];
+        int mDepth;
+    }
+
+    /**
+     * 定长环形缓冲，保存最近的调用时间线
+     */
+    private static final class EventRing {
+        final Section[] mNames;
+        final long[] mStarts;
+        final long[] mDurations;
+        final long[] mThreadIds;
+        final AtomicLong mCursor = new AtomicLong();
+
+        EventRing(int capacity) {
+            mNames = new Section[capacity];
+            mStarts = new long[capacity];
+            mDurations = new long[capacity];
+            mThreadIds = new long[capacity];
+        }
+
+        void add(@NonNull Section section, long start, long duration) {
+            int index = (int) (mCursor.getAndIncrement() % mNames.length);
+            mStarts[index] = start;
+            mDurations[index] = duration;
+            mThreadIds[index] = Thread.currentThread().getId();
+            mNames[index] = section;
+        }
+
+        void writeTo(@NonNull Writer writer) throws IOException {
+            int pid = android.os.Process.myPid();
+            long cursor = mCursor.get();
+            int size = (int) Math.min(cursor, mNames.length);
+            writer.write("{\"traceEvents\":[");
+            boolean first = true;
+            for (long i = cursor - size; i < cursor; i++) {
+                int index = (int) (i % mNames.length);
+                Section section = mNames[index];
+                if (section == null) {
+                    continue;
+                }
+                if (!first) {
+                    writer.write(",\n");
+                }
+                first = false;
+                writer.write(String.format(Locale.US,
+                        "{\"name\":\"%s\",\"ph\":\"X\",\"ts\":%.3f,\"dur\":%.3f,\"pid\":%d,\"tid\":%d}",
+                        escape(section.mName), mStarts[index] / 1e3, mDurations[index] / 1e3, pid, mThreadIds[index]));
+            }
+            writer.write("],\"displayTimeUnit\":\"ms\"}");
+        }
+
+        @NonNull
+        private static String escape(@NonNull String name) {
+            StringBuilder builder = new StringBuilder(name.length());
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c == '"' || c == '\\') {
+                    builder.append('\\').append(c);
+                } else if (c < 0x20) {
+                    builder.append(' ');
+                } else {
+                    builder.append(c);
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
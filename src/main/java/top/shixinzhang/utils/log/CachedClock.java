@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * <br> Description: 按秒缓存的 "yyyy-MM-dd HH:mm:ss" 时间戳
+ * <p>
+ * <br> 同一秒内的日志直接复用上次格式化的字符串，只有秒数变化时才重新格式化；
+ * <br> 毫秒部分手动追加，不经过 SimpleDateFormat。
+ * <br> 重新格式化时检查默认时区，用户修改时区后最多一秒内生效。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class CachedClock {
+
+    private static final String PATTERN = "yyyy-MM-dd HH:mm:ss";
+
+    private static final SimpleDateFormat sFormat = new SimpleDateFormat(PATTERN, Locale.getDefault());
+
+    private static volatile Second sCached = new Second(Long.MIN_VALUE, "");
+
+    private CachedClock() {
+    }
+
+    /**
+     * @return timeMillis 对应的 "yyyy-MM-dd HH:mm:ss"
+     */
+    @NonNull
+    public static String format(long timeMillis) {
+        long second = floorDiv(timeMillis, 1000);
+        Second cached = sCached;
+        if (cached.mSecond == second) {
+            return cached.mText;
+        }
+        String text;
+        synchronized (sFormat) {
+            TimeZone zone = TimeZone.getDefault();
+            if (!zone.equals(sFormat.getTimeZone())) {
+                sFormat.setTimeZone(zone);
+            }
+            text = sFormat.format(new Date(second * 1000));
+        }
+        sCached = new Second(second, text);
+        return text;
+    }
+
+    /**
+     * 追加 "yyyy-MM-dd HH:mm:ss"
+     */
+    @NonNull
+    public static StringBuilder append(@NonNull StringBuilder builder, long timeMillis) {
+        return builder.append(format(timeMillis));
+    }
+
+    /**
+     * 追加 "yyyy-MM-dd HH:mm:ss.SSS"
+     */
+    @NonNull
+    public static StringBuilder appendWithMillis(@NonNull StringBuilder builder, long timeMillis) {
+        builder.append(format(timeMillis)).append('.');
+        int millis = (int) (timeMillis - floorDiv(timeMillis, 1000) * 1000);
+        if (millis < 100) {
+            builder.append('0');
+        }
+        if (millis < 10) {
+            builder.append('0');
+        }
+        return builder.append(millis);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long r = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0)) {
+            r--;
+        }
+        return r;
+    }
+
+    private static final class Second {
+        final long mSecond;
+        @NonNull
+        final String mText;
+
+        Second(long second, @NonNull String text) {
+            mSecond = second;
+            mText = text;
+        }
+    }
+}
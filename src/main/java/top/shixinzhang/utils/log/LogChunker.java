@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <br> Description: 超长日志分段，以及分段日志的还原
+ * <p>
+ * <br> logcat 单条日志大约 4K 字节就会被截断。{@link #split} 只计算每段的起止下标，
+ * <br> 尽量在换行处断开；每段带上 "[#id i/n] " 前缀，{@link Reassembler} 按前缀拼回完整日志。
+ * <br> logcat 会把含换行的消息拆成多行，所以段内的换行、回车和反斜杠都转义成 \n、\r、\\，
+ * <br> 保证一段只占一行，还原时再反转义。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogChunker {
+
+    /**
+     * 单段最多 UTF-8 字节数，给 logcat 头部和分段前缀留出余量
+     */
+    public static final int MAX_CHUNK_BYTES = 3900;
+
+    private static final AtomicInteger sNextId = new AtomicInteger();
+
+    private LogChunker() {
+    }
+
+    /**
+     * 按 UTF-8 字节数估算是否需要分段，不分配内存
+     */
+    public static boolean needSplit(@NonNull String log, int maxBytes) {
+        if (log.length() <= maxBytes / 3) {
+            return false;
+        }
+        return utf8Length(log, 0, log.length(), maxBytes + 1) > maxBytes;
+    }
+
+    /**
+     * 计算分段位置
+     *
+     * @return 每段的结束下标（不包含），最后一个元素为 log.length()
+     */
+    @NonNull
+    public static int[] split(@NonNull String log, int maxBytes) {
+        int[] ends = new int[Math.max(2, log.length() / Math.max(1, maxBytes / 3) + 1)];
+        int count = 0;
+        int start = 0;
+        int length = log.length();
+        while (start < length) {
+            int bytes = 0;
+            int end = start;
+            int lastNewline = -1;
+            while (end < length) {
+                char c = log.charAt(end);
+                int size = c < 0x80 ? (needEscape(c) ? 2 : 1)
+                        : (c < 0x800 ? 2 : (Character.isHighSurrogate(c) ? 4 : 3));
+                if (bytes + size > maxBytes) {
+                    break;
+                }
+                bytes += size;
+                end += size == 4 && end + 1 < length ? 2 : 1;
+                if (c == '\n') {
+                    lastNewline = end;
+                }
+            }
+            if (end < length && lastNewline > start) {
+                end = lastNewline;
+            }
+            if (end == start) {
+                //maxBytes 过小，至少前进一个字符
+                end = start + 1;
+            }
+            if (count == ends.length) {
+                int[] bigger = new int[ends.length * 2];
+                System.arraycopy(ends, 0, bigger, 0, count);
+                ends = bigger;
+            }
+            ends[count++] = end;
+            start = end;
+        }
+        int[] result = new int[count];
+        System.arraycopy(ends, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * 一组分段共用的编号
+     */
+    public static int nextId() {
+        return sNextId.incrementAndGet() & 0xFFFF;
+    }
+
+    /**
+     * 生成一段要输出的内容：[#id i/n] 前缀加上转义后的 log[start, end)，i 从 1 开始
+     */
+    @NonNull
+    public static String chunk(@NonNull String log, int start, int end, int id, int index, int total) {
+        int escapes = 0;
+        for (int i = start; i < end; i++) {
+            if (needEscape(log.charAt(i))) {
+                escapes++;
+            }
+        }
+        StringBuilder builder = new StringBuilder(6 + digits(id) + digits(index) + digits(total)
+                + end - start + escapes);
+        builder.append("[#").append(id).append(' ').append(index).append('/').append(total).append("] ");
+        if (escapes == 0) {
+            return builder.append(log, start, end).toString();
+        }
+        for (int i = start; i < end; i++) {
+            char c = log.charAt(i);
+            switch (c) {
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                default:
+                    builder.append(c);
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static boolean needEscape(char c) {
+        return c == '\n' || c == '\r' || c == '\\';
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    @NonNull
+    private static String unescape(@NonNull String part) {
+        if (part.indexOf('\\') < 0) {
+            return part;
+        }
+        StringBuilder builder = new StringBuilder(part.length());
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c != '\\' || i + 1 == part.length()) {
+                builder.append(c);
+                continue;
+            }
+            char next = part.charAt(++i);
+            builder.append(next == 'n' ? '\n' : (next == 'r' ? '\r' : next));
+        }
+        return builder.toString();
+    }
+
+    private static int utf8Length(@NonNull String s, int start, int end, int stopAt) {
+        int bytes = 0;
+        for (int i = start; i < end && bytes < stopAt; i++) {
+            char c = s.charAt(i);
+            bytes += c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+        }
+        return bytes;
+    }
+
+    /**
+     * 从 logcat 输出中还原分段日志，按行调用 {@link #offer}
+     * <p>
+     * 同一 tag 下的分段按编号分组，不同消息的分段可以交错出现
+     */
+    public static final class Reassembler {
+        private final Map<String, Pending> mPending = new HashMap<>();
+
+        /**
+         * @param key  区分来源，一般传 pid + tag，不需要区分时传 null
+         * @param line 一条 logcat 消息内容（不含 logcat 头部）
+         * @return 不是分段日志时原样返回；分段未收齐时返回 null；收齐时返回完整内容
+         */
+        @Nullable
+        public String offer(@Nullable String key, @NonNull String line) {
+            if (!line.startsWith("[#")) {
+                return line;
+            }
+            int space = line.indexOf(' ', 2);
+            int slash = space < 0 ? -1 : line.indexOf('/', space);
+            int close = slash < 0 ? -1 : line.indexOf("] ", slash);
+            if (close < 0) {
+                return line;
+            }
+            int id;
+            int index;
+            int total;
+            try {
+                id = Integer.parseInt(line.substring(2, space));
+                index = Integer.parseInt(line.substring(space + 1, slash));
+                total = Integer.parseInt(line.substring(slash + 1, close));
+            } catch (NumberFormatException e) {
+                return line;
+            }
+            if (index < 1 || index > total) {
+                return line;
+            }
+            String pendingKey = key + "#" + id;
+            Pending pending = mPending.get(pendingKey);
+            if (pending == null || pending.mParts.length != total) {
+                pending = new Pending(total);
+                mPending.put(pendingKey, pending);
+            }
+            if (pending.mParts[index - 1] == null) {
+                pending.mReceived++;
+            }
+            pending.mParts[index - 1] = unescape(line.substring(close + 2));
+            if (pending.mReceived < total) {
+                return null;
+            }
+            mPending.remove(pendingKey);
+            StringBuilder builder = new StringBuilder();
+            for (String part : pending.mParts) {
+                builder.append(part);
+            }
+            return builder.toString();
+        }
+
+        /**
+         * 丢弃收不齐的分段
+         */
+        public void clear() {
+            mPending.clear();
+        }
+
+        private static final class Pending {
+            final String[] mParts;
+            int mReceived;
+
+            Pending(int total) {
+                mParts = new String[total];
+            }
+        }
+    }
+}
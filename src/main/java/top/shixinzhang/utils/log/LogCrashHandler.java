@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+import top.shixinzhang.utils.FileUtils;
+import top.shixinzhang.utils.LogUtils;
+import top.shixinzhang.utils.StackTraceUtils;
+
+/**
+ * <br> Description: 崩溃时落盘日志并生成崩溃报告
+ * <p>
+ * <br> 在独立线程里先 flush LogUtils 未写出的日志，把 {@link LogUploader} 内存里的批次写入 spool 目录，
+ * <br> 再写崩溃报告（异常堆栈、最近的日志、所有线程的调用栈），
+ * <br> 最多等待 mDeadlineMillis，之后交给原来的 UncaughtExceptionHandler 继续处理。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class LogCrashHandler implements Thread.UncaughtExceptionHandler {
+
+    public static final long DEFAULT_DEADLINE_MILLIS = 2000;
+
+    @Nullable
+    private final Thread.UncaughtExceptionHandler mPrevious;
+    @NonNull
+    private final File mReportDir;
+    private final long mDeadlineMillis;
+
+    private LogCrashHandler(@Nullable Thread.UncaughtExceptionHandler previous, @NonNull File reportDir, long deadlineMillis) {
+        mPrevious = previous;
+        mReportDir = reportDir;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * 替换默认的 UncaughtExceptionHandler，原来的会在之后被调用
+     *
+     * @param reportDir      崩溃报告目录
+     * @param deadlineMillis flush 和写报告最多占用的时间
+     */
+    @NonNull
+    public static LogCrashHandler install(@NonNull File reportDir, long deadlineMillis) {
+        Thread.UncaughtExceptionHandler current = Thread.getDefaultUncaughtExceptionHandler();
+        if (current instanceof LogCrashHandler) {
+            current = ((LogCrashHandler) current).mPrevious;
+        }
+        LogCrashHandler handler = new LogCrashHandler(current, reportDir, deadlineMillis);
+        Thread.setDefaultUncaughtExceptionHandler(handler);
+        return handler;
+    }
+
+    @Override
+    public void uncaughtException(final Thread thread, final Throwable throwable) {
+        //在调用栈之外先把所有线程的状态抓下来，避免 flush 过程改变它们
+        final String threads = StackTraceUtils.dumpAllThreads(new StringBuilder(8 * 1024)).toString();
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    LogUtils.flushLog();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+                LogUploader uploader = LogUtils.getLogUploader();
+                if (uploader != null) {
+                    try {
+                        uploader.sealNow();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+                writeReport(thread, throwable, threads);
+            }
+        }, "CrashFlush");
+        worker.setDaemon(true);
+        worker.start();
+        try {
+            worker.join(mDeadlineMillis);
+        } catch (InterruptedException ignored) {
+        }
+
+        if (mPrevious != null) {
+            mPrevious.uncaughtException(thread, throwable);
+        }
+    }
+
+    private void writeReport(@NonNull Thread thread, @NonNull Throwable throwable, @NonNull String threads) {
+        long now = System.currentTimeMillis();
+        StringBuilder report = new StringBuilder(16 * 1024);
+        report.append("Crash at ");
+        CachedClock.appendWithMillis(report, now).append('\n')
+                .append("Device: ").append(Build.MODEL).append(", SDK ").append(Build.VERSION.SDK_INT).append('\n')
+                .append("Thread: ").append(thread.getName()).append(" (").append(thread.getId()).append(")\n\n")
+                .append(StackTraceUtils.getStackTraceString(throwable))
+                .append("\n----- recent logs -----\n");
+        LogRing ring = LogUtils.getRecentLogs();
+        if (ring != null) {
+            ring.dump(report);
+        } else {
+            report.append("(disabled, see LogUtils.setRecentLogCapacity)\n");
+        }
+        report.append("\n----- threads -----\n").append(threads);
+
+        String path = new File(mReportDir, "crash-" + now + ".txt").getAbsolutePath();
+        try {
+            FileUtils.writeFile(path, report.toString(), false);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.nio.charset.Charset;
+
+/**
+ * <br> Description: 结构化日志，直接编码成一行 JSON（NDJSON）
+ * <p>
+ * <br> 用法：LogUtils.event(tag).put("k", v).put("n", 1).log();
+ * <br> 字段直接写进可复用的 byte[]，不经过 Gson 和 JsonObject；log() 之后对象回到池里，不要再使用。
+ * <p>
+ * <br> 输出格式：{"ts":1508380800000,"level":"D","tag":"xxx","k":"v","n":1}
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class LogEvent {
+
+    /**
+     * 事件的最终去处
+     */
+    public interface Sink {
+        /**
+         * 在调用线程同步执行，返回后 buffer 会被复用
+         */
+        void write(@NonNull LogEvent event);
+    }
+
+    /**
+     * 被过滤掉的事件，所有操作都是空的
+     */
+    public static final LogEvent DISABLED = new LogEvent() {
+        @Override
+        public LogEvent put(@NonNull String key, @Nullable String value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent put(@NonNull String key, long value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent put(@NonNull String key, double value) {
+            return this;
+        }
+
+        @Override
+        public LogEvent put(@NonNull String key, boolean value) {
+            return this;
+        }
+
+        @Override
+        public void log() {
+        }
+    };
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int INITIAL_SIZE = 256;
+    private static final int MAX_RETAINED_SIZE = 16 * 1024;
+    private static final int POOL_SIZE = 8;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+    private static final String LEVELS = "??VDIWEA";
+
+    private static final LogEvent[] sPool = new LogEvent[POOL_SIZE];
+    private static int sPoolSize;
+
+    private byte[] mBuffer = new byte[INITIAL_SIZE];
+    private int mLength;
+    private String mTag;
+    private int mLevel;
+    private Sink mSink;
+
+    private LogEvent() {
+    }
+
+    /**
+     * 从池中取一个事件，并写入公共字段
+     */
+    @NonNull
+    public static LogEvent obtain(@NonNull String tag, int level, @NonNull Sink sink) {
+        LogEvent event = null;
+        synchronized (sPool) {
+            if (sPoolSize > 0) {
+                event = sPool[--sPoolSize];
+                sPool[sPoolSize] = null;
+            }
+        }
+        if (event == null) {
+            event = new LogEvent();
+        }
+        event.start(tag, level, sink);
+        return event;
+    }
+
+    private void start(@NonNull String tag, int level, @NonNull Sink sink) {
+        mTag = tag;
+        mLevel = level;
+        mSink = sink;
+        mLength = 0;
+        appendAscii("{\"ts\":");
+        appendLong(System.currentTimeMillis());
+        appendAscii(",\"level\":\"");
+        appendByte(level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?');
+        appendAscii("\",\"tag\":");
+        appendString(tag);
+    }
+
+    public LogEvent put(@NonNull String key, @Nullable String value) {
+        appendKey(key);
+        if (value == null) {
+            appendAscii("null");
+        } else {
+            appendString(value);
+        }
+        return this;
+    }
+
+    public LogEvent put(@NonNull String key, long value) {
+        appendKey(key);
+        appendLong(value);
+        return this;
+    }
+
+    public LogEvent put(@NonNull String key, double value) {
+        appendKey(key);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            appendAscii("null");
+        } else if (value == (long) value) {
+            appendLong((long) value);
+        } else {
+            appendAscii(Double.toString(value));
+        }
+        return this;
+    }
+
+    public LogEvent put(@NonNull String key, boolean value) {
+        appendKey(key);
+        appendAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * 结束事件并交给 Sink 输出，之后对象被回收
+     */
+    public void log() {
+        appendByte('}');
+        appendByte('\n');
+        try {
+            mSink.write(this);
+        } finally {
+            recycle();
+        }
+    }
+
+    @NonNull
+    public String getTag() {
+        return mTag;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * 编码好的 UTF-8 数据，有效长度见 {@link #getLength()}，包含结尾换行
+     */
+    @NonNull
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * 不含结尾换行的 JSON 文本，用于 logcat
+     */
+    @Override
+    public String toString() {
+        int length = mLength > 0 && mBuffer[mLength - 1] == '\n' ? mLength - 1 : mLength;
+        return new String(mBuffer, 0, length, UTF_8);
+    }
+
+    private void recycle() {
+        if (mBuffer.length > MAX_RETAINED_SIZE) {
+            mBuffer = new byte[INITIAL_SIZE];
+        }
+        mLength = 0;
+        mTag = null;
+        mSink = null;
+        synchronized (sPool) {
+            if (sPoolSize < POOL_SIZE) {
+                sPool[sPoolSize++] = this;
+            }
+        }
+    }
+
+    private void appendKey(@NonNull String key) {
+        appendByte(',');
+        appendString(key);
+        appendByte(':');
+    }
+
+    private void appendString(@NonNull String value) {
+        //最坏情况每个控制字符转义后占 6 字节
+        ensureCapacity(value.length() * 6 + 2);
+        byte[] buf = mBuffer;
+        int pos = mLength;
+        buf[pos++] = '"';
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    buf[pos++] = (byte) c;
+                    continue;
+                }
+                buf[pos++] = '\\';
+                switch (c) {
+                    case '"':
+                    case '\\':
+                        buf[pos++] = (byte) c;
+                        break;
+                    case '\n':
+                        buf[pos++] = 'n';
+                        break;
+                    case '\r':
+                        buf[pos++] = 'r';
+                        break;
+                    case '\t':
+                        buf[pos++] = 't';
+                        break;
+                    default:
+                        buf[pos++] = 'u';
+                        buf[pos++] = '0';
+                        buf[pos++] = '0';
+                        buf[pos++] = HEX[c >> 4];
+                        buf[pos++] = HEX[c & 0xF];
+                        break;
+                }
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buf[pos++] = '?';
+            }
+        }
+        buf[pos++] = '"';
+        mLength = pos;
+    }
+
+    private void appendAscii(@NonNull String value) {
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            mBuffer[mLength++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        int start = mLength;
+        do {
+            mBuffer[mLength++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = mLength - 1; i < j; i++, j--) {
+            byte tmp = mBuffer[i];
+            mBuffer[i] = mBuffer[j];
+            mBuffer[j] = tmp;
+        }
+    }
+
+    private void appendByte(int b) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = mLength + extra;
+        if (required > mBuffer.length) {
+            byte[] bigger = new byte[Math.max(required, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, bigger, 0, mLength);
+            mBuffer = bigger;
+        }
+    }
+}
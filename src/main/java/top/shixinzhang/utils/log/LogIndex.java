@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <br> Description: 日志文件的稀疏索引
+ * <p>
+ * <br> 日志按约 {@link #BLOCK_SIZE} 字节分块，每块在索引文件里记一条：
+ * <br> offset(8) + length(8) + firstTime(8) + lastTime(8) + levelMask(4) + tagBloom(8)
+ * <br> 块写满或 flush 时才追加索引，崩溃时最后一块没有索引，查询时当作未索引区域整体扫描。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogIndex {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+    private static final int ENTRY_SIZE = 44;
+
+    /**
+     * 一个已索引的块
+     */
+    public static final class Block {
+        public final long offset;
+        public final long length;
+        public final long firstTime;
+        public final long lastTime;
+        public final int levelMask;
+        public final long tagBloom;
+
+        Block(long offset, long length, long firstTime, long lastTime, int levelMask, long tagBloom) {
+            this.offset = offset;
+            this.length = length;
+            this.firstTime = firstTime;
+            this.lastTime = lastTime;
+            this.levelMask = levelMask;
+            this.tagBloom = tagBloom;
+        }
+
+        /**
+         * 块内是否可能有符合条件的日志，tag 为 null 表示不限
+         */
+        public boolean mayMatch(long fromTime, long toTime, int minLevel, @Nullable String tag) {
+            if (lastTime < fromTime || firstTime > toTime) {
+                return false;
+            }
+            if ((levelMask >>> Math.max(0, minLevel)) == 0) {
+                return false;
+            }
+            if (tag != null) {
+                long bloom = bloom(tag);
+                return (tagBloom & bloom) == bloom;
+            }
+            return true;
+        }
+    }
+
+    @NonNull
+    private final File mIndexFile;
+    private long mLogLength;
+
+    private boolean mHasBlock;
+    private long mBlockStart;
+    private long mFirstTime;
+    private long mLastTime;
+    private int mLevelMask;
+    private long mTagBloom;
+
+    private LogIndex(@NonNull File indexFile, long logLength) {
+        mIndexFile = indexFile;
+        mLogLength = logLength;
+    }
+
+    /**
+     * 打开索引，日志文件比索引记录的短（被删除、截断过）时丢弃旧索引
+     */
+    @NonNull
+    public static LogIndex open(@NonNull File logFile, @NonNull File indexFile) {
+        long logLength = logFile.exists() ? logFile.length() : 0;
+        List<Block> blocks = readBlocks(indexFile);
+        if (!blocks.isEmpty()) {
+            Block last = blocks.get(blocks.size() - 1);
+            if (last.offset + last.length > logLength) {
+                indexFile.delete();
+            }
+        }
+        return new LogIndex(indexFile, logLength);
+    }
+
+    /**
+     * 记录一条已经追加到日志文件末尾的日志，写入成功后在同一把锁内按顺序调用；
+     * 写入失败时不要调用，应丢弃这个对象，按文件实际长度重新 {@link #open}
+     *
+     * @param length 写入的字节数
+     * @param tag    可以为 null
+     */
+    public synchronized void append(int length, long time, int level, @Nullable String tag) {
+        if (!mHasBlock) {
+            mHasBlock = true;
+            mBlockStart = mLogLength;
+            mFirstTime = time;
+            mLastTime = time;
+            mLevelMask = 0;
+            mTagBloom = 0;
+        }
+        mFirstTime = Math.min(mFirstTime, time);
+        mLastTime = Math.max(mLastTime, time);
+        mLevelMask |= 1 << (level & 31);
+        if (tag != null) {
+            mTagBloom |= bloom(tag);
+        }
+        mLogLength += length;
+        if (mLogLength - mBlockStart >= BLOCK_SIZE) {
+            closeBlock();
+        }
+    }
+
+    /**
+     * 把未满的块也写入索引
+     */
+    public synchronized void flush() {
+        closeBlock();
+    }
+
+    private void closeBlock() {
+        if (!mHasBlock) {
+            return;
+        }
+        mHasBlock = false;
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        entry.putLong(mBlockStart)
+                .putLong(mLogLength - mBlockStart)
+                .putLong(mFirstTime)
+                .putLong(mLastTime)
+                .putInt(mLevelMask)
+                .putLong(mTagBloom);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mIndexFile, true);
+            out.write(entry.array());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * 读取所有索引块，按 offset 递增
+     */
+    @NonNull
+    public static List<Block> readBlocks(@NonNull File indexFile) {
+        List<Block> blocks = new ArrayList<>();
+        if (!indexFile.isFile()) {
+            return blocks;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), 16 * 1024));
+            long count = indexFile.length() / ENTRY_SIZE;
+            for (long i = 0; i < count; i++) {
+                blocks.add(new Block(in.readLong(), in.readLong(), in.readLong(), in.readLong(), in.readInt(), in.readLong()));
+            }
+        } catch (EOFException ignored) {
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return blocks;
+    }
+
+    static long bloom(@NonNull String tag) {
+        int hash = tag.hashCode();
+        return (1L << (hash & 63)) | (1L << ((hash >>> 6) & 63));
+    }
+}
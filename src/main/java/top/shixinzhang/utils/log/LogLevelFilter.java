@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <br> Description: 按 tag / tag 前缀配置最低日志级别
+ * <p>
+ * <br> 配置修改时重新生成一张不可变的表，用 volatile 整体替换，输出日志时不加锁。
+ * <br> 精确配置用一次 hash 查找；前缀按字典序排好，用二分查找找最长的匹配前缀，
+ * <br> 不按 tag 缓存结果，动态生成的 tag 不会让内存增长。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogLevelFilter {
+
+    private final Map<String, Integer> mTagLevels = new HashMap<>();
+    private final Map<String, Integer> mPrefixLevels = new HashMap<>();
+    private int mDefaultLevel;
+
+    private volatile Table mTable;
+
+    public LogLevelFilter(int defaultLevel) {
+        mDefaultLevel = defaultLevel;
+        mTable = new Table(defaultLevel, mTagLevels, mPrefixLevels);
+    }
+
+    /**
+     * 该 tag 下 level 级别的日志是否需要输出
+     */
+    public boolean isLoggable(@NonNull String tag, int level) {
+        return level >= mTable.resolve(tag);
+    }
+
+    public synchronized void setDefaultLevel(int level) {
+        mDefaultLevel = level;
+        publish();
+    }
+
+    public synchronized void setTagLevel(@NonNull String tag, int level) {
+        mTagLevels.put(tag, level);
+        publish();
+    }
+
+    public synchronized void setTagPrefixLevel(@NonNull String prefix, int level) {
+        mPrefixLevels.put(prefix, level);
+        publish();
+    }
+
+    public synchronized void removeTagLevel(@NonNull String tag) {
+        if (mTagLevels.remove(tag) != null) {
+            publish();
+        }
+    }
+
+    public synchronized void removeTagPrefixLevel(@NonNull String prefix) {
+        if (mPrefixLevels.remove(prefix) != null) {
+            publish();
+        }
+    }
+
+    /**
+     * 清除所有 tag 配置，只保留默认级别
+     */
+    public synchronized void clear() {
+        mTagLevels.clear();
+        mPrefixLevels.clear();
+        publish();
+    }
+
+    private void publish() {
+        mTable = new Table(mDefaultLevel, mTagLevels, mPrefixLevels);
+    }
+
+    /**
+     * 不可变的级别表
+     */
+    private static final class Table {
+        private final int mDefaultLevel;
+        private final Map<String, Integer> mTagLevels;
+        /**
+         * 按字典序排列
+         */
+        private final String[] mPrefixes;
+        private final int[] mPrefixLevels;
+
+        Table(int defaultLevel, @NonNull Map<String, Integer> tagLevels, @NonNull Map<String, Integer> prefixLevels) {
+            mDefaultLevel = defaultLevel;
+            mTagLevels = new HashMap<>(tagLevels);
+
+            List<String> prefixes = new ArrayList<>(prefixLevels.keySet());
+            Collections.sort(prefixes);
+            mPrefixes = prefixes.toArray(new String[prefixes.size()]);
+            mPrefixLevels = new int[mPrefixes.length];
+            for (int i = 0; i < mPrefixes.length; i++) {
+                mPrefixLevels[i] = prefixLevels.get(mPrefixes[i]);
+            }
+        }
+
+        int resolve(@NonNull String tag) {
+            Integer level = mTagLevels.get(tag);
+            if (level != null) {
+                return level;
+            }
+            //不大于 tag 的最大前缀如果不匹配，更短的匹配前缀一定也是它和 tag 的公共前缀的前缀，缩短后继续找
+            int length = tag.length();
+            int index = floor(tag, length);
+            while (index >= 0) {
+                String prefix = mPrefixes[index];
+                int common = commonLength(prefix, tag, length);
+                if (common == prefix.length()) {
+                    return mPrefixLevels[index];
+                }
+                length = common;
+                index = floor(tag, length);
+            }
+            return mDefaultLevel;
+        }
+
+        /**
+         * @return 不大于 tag 前 length 个字符的最大前缀的下标，没有时返回 -1
+         */
+        private int floor(@NonNull String tag, int length) {
+            int low = 0;
+            int high = mPrefixes.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(mPrefixes[mid], tag, length) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        /**
+         * 和 tag 前 length 个字符按字典序比较
+         */
+        private static int compare(@NonNull String prefix, @NonNull String tag, int length) {
+            int common = commonLength(prefix, tag, length);
+            if (common < prefix.length() && common < length) {
+                return prefix.charAt(common) - tag.charAt(common);
+            }
+            return prefix.length() - length;
+        }
+
+        private static int commonLength(@NonNull String prefix, @NonNull String tag, int length) {
+            int max = Math.min(prefix.length(), length);
+            int i = 0;
+            while (i < max && prefix.charAt(i) == tag.charAt(i)) {
+                i++;
+            }
+            return i;
+        }
+    }
+}
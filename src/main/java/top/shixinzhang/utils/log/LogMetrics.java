@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Description: 日志管道的运行指标
+ * <p>
+ * <br> 各级别输出条数、写入字节数、缓冲区最高水位、按原因统计的丢弃条数、flush / sync 耗时分位数。
+ * <br> 计数都用 {@link StripedCounter}，多线程打日志时不会争同一个变量。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogMetrics {
+
+    /**
+     * 丢弃原因
+     */
+    public static final int DROP_EMPTY = 0;
+    public static final int DROP_LEVEL = 1;
+    public static final int DROP_DUPLICATE = 2;
+    public static final int DROP_RATE_LIMITED = 3;
+    public static final int DROP_SAMPLED = 4;
+    /**
+     * isDebug 为 false 且没有设置 LogUploader
+     */
+    public static final int DROP_NO_OUTPUT = 5;
+    private static final int DROP_REASONS = 6;
+    private static final String[] DROP_NAMES = {"empty", "level", "duplicate", "rateLimited", "sampled", "noOutput"};
+
+    private static final int LEVELS = 8;
+    private static final String LEVEL_NAMES = "??VDIWEA";
+
+    private static final LogMetrics sInstance = new LogMetrics();
+
+    private final StripedCounter[] mRecords = new StripedCounter[LEVELS];
+    private final StripedCounter[] mDrops = new StripedCounter[DROP_REASONS];
+    private final StripedCounter mFileBytes = new StripedCounter();
+    private final StripedCounter mLogcatChars = new StripedCounter();
+    private final AtomicLong mHighWater = new AtomicLong();
+    private final LatencyHistogram mFlushLatency = new LatencyHistogram();
+    private final LatencyHistogram mSyncLatency = new LatencyHistogram();
+
+    private LogMetrics() {
+        for (int i = 0; i < LEVELS; i++) {
+            mRecords[i] = new StripedCounter();
+        }
+        for (int i = 0; i < DROP_REASONS; i++) {
+            mDrops[i] = new StripedCounter();
+        }
+    }
+
+    @NonNull
+    public static LogMetrics get() {
+        return sInstance;
+    }
+
+    public void onRecord(int level) {
+        mRecords[level & (LEVELS - 1)].increment();
+    }
+
+    public void onDrop(int reason) {
+        mDrops[reason].increment();
+    }
+
+    public void onFileBytes(long bytes) {
+        mFileBytes.add(bytes);
+    }
+
+    public void onLogcatChars(long chars) {
+        mLogcatChars.add(chars);
+    }
+
+    /**
+     * 缓冲区当前占用，记录最大值
+     */
+    public void onBufferSize(long size) {
+        long max;
+        while (size > (max = mHighWater.get()) && !mHighWater.compareAndSet(max, size)) {
+            //重试
+        }
+    }
+
+    public void onFlush(long nanos) {
+        mFlushLatency.record(nanos);
+    }
+
+    public void onSync(long nanos) {
+        mSyncLatency.record(nanos);
+    }
+
+    public void reset() {
+        for (StripedCounter counter : mRecords) {
+            counter.reset();
+        }
+        for (StripedCounter counter : mDrops) {
+            counter.reset();
+        }
+        mFileBytes.reset();
+        mLogcatChars.reset();
+        mHighWater.set(0);
+        mFlushLatency.reset();
+        mSyncLatency.reset();
+    }
+
+    @NonNull
+    public Snapshot snapshot() {
+        long[] records = new long[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            records[i] = mRecords[i].sum();
+        }
+        long[] drops = new long[DROP_REASONS];
+        for (int i = 0; i < DROP_REASONS; i++) {
+            drops[i] = mDrops[i].sum();
+        }
+        return new Snapshot(records, drops, mFileBytes.sum(), mLogcatChars.sum(), mHighWater.get(),
+                mFlushLatency.snapshot(), mSyncLatency.snapshot());
+    }
+
+    /**
+     * 某一时刻的指标
+     */
+    public static final class Snapshot {
+        /**
+         * 下标为日志级别
+         */
+        @NonNull
+        public final long[] records;
+        /**
+         * 下标为 DROP_* 常量
+         */
+        @NonNull
+        public final long[] drops;
+        public final long fileBytes;
+        public final long logcatChars;
+        public final long bufferHighWater;
+        @NonNull
+        public final LatencyHistogram.Snapshot flushLatency;
+        @NonNull
+        public final LatencyHistogram.Snapshot syncLatency;
+
+        Snapshot(@NonNull long[] records, @NonNull long[] drops, long fileBytes, long logcatChars, long bufferHighWater,
+                 @NonNull LatencyHistogram.Snapshot flushLatency, @NonNull LatencyHistogram.Snapshot syncLatency) {
+            this.records = records;
+            this.drops = drops;
+            this.fileBytes = fileBytes;
+            this.logcatChars = logcatChars;
+            this.bufferHighWater = bufferHighWater;
+            this.flushLatency = flushLatency;
+            this.syncLatency = syncLatency;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("records:");
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] > 0) {
+                    builder.append(' ').append(LEVEL_NAMES.charAt(i)).append('=').append(records[i]);
+                }
+            }
+            builder.append("\ndrops:");
+            for (int i = 0; i < drops.length; i++) {
+                builder.append(' ').append(DROP_NAMES[i]).append('=').append(drops[i]);
+            }
+            builder.append("\nfileBytes=").append(fileBytes)
+                    .append(" logcatChars=").append(logcatChars)
+                    .append(" bufferHighWater=").append(bufferHighWater);
+            appendLatency(builder.append("\nflush(us):"), flushLatency);
+            appendLatency(builder.append("\nsync(us):"), syncLatency);
+            return builder.toString();
+        }
+
+        private static void appendLatency(@NonNull StringBuilder builder, @NonNull LatencyHistogram.Snapshot latency) {
+            builder.append(String.format(Locale.US, " count=%d p50=%.1f p90=%.1f p99=%.1f max=%.1f", latency.count,
+                    latency.percentile(0.5) / 1e3, latency.percentile(0.9) / 1e3,
+                    latency.percentile(0.99) / 1e3, latency.maxNanos / 1e3));
+        }
+    }
+}
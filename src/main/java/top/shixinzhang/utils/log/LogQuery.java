@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * <br> Description: 借助 {@link LogIndex} 查询日志文件
+ * <p>
+ * <br> 只读取可能命中的块和没有索引的区域，其余块直接跳过。
+ * <p>
+ * <br> 用法：new LogQuery(logFile, indexFile).timeRange(from, to).minLevel(LogUtils.WARN).tag("Net").execute()
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogQuery {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int TIME_LENGTH = 19;    // yyyy-MM-dd HH:mm:ss
+    private static final String LEVELS = "??VDIWEA";
+
+    /**
+     * 查询到的一条日志
+     */
+    public static final class Record {
+        /**
+         * 在日志文件中的偏移
+         */
+        public final long offset;
+        /**
+         * yyyy-MM-dd HH:mm:ss
+         */
+        @NonNull
+        public final String time;
+        /**
+         * 0 表示未知
+         */
+        public final int level;
+        @Nullable
+        public final String tag;
+        @NonNull
+        public final String message;
+
+        Record(long offset, @NonNull String time, int level, @Nullable String tag, @NonNull String message) {
+            this.offset = offset;
+            this.time = time;
+            this.level = level;
+            this.tag = tag;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return time + " " + LEVELS.charAt(level) + "/" + tag + ": " + message;
+        }
+    }
+
+    @NonNull
+    private final File mLogFile;
+    @NonNull
+    private final File mIndexFile;
+    private long mFromTime = Long.MIN_VALUE;
+    private long mToTime = Long.MAX_VALUE;
+    private int mMinLevel;
+    @Nullable
+    private String mTag;
+    private int mLimit = Integer.MAX_VALUE;
+
+    public LogQuery(@NonNull File logFile, @NonNull File indexFile) {
+        mLogFile = logFile;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * 时间范围，两端都包含，精确到秒
+     */
+    @NonNull
+    public LogQuery timeRange(long fromMillis, long toMillis) {
+        mFromTime = fromMillis;
+        mToTime = toMillis;
+        return this;
+    }
+
+    @NonNull
+    public LogQuery minLevel(int level) {
+        mMinLevel = level;
+        return this;
+    }
+
+    @NonNull
+    public LogQuery tag(@Nullable String tag) {
+        mTag = tag;
+        return this;
+    }
+
+    @NonNull
+    public LogQuery limit(int limit) {
+        mLimit = limit;
+        return this;
+    }
+
+    /**
+     * 执行查询，日志量大时请在子线程调用
+     */
+    @NonNull
+    public List<Record> execute() throws IOException {
+        List<Record> result = new ArrayList<>();
+        if (!mLogFile.isFile()) {
+            return result;
+        }
+        long fileLength = mLogFile.length();
+        String from = formatBound(mFromTime, "0000-00-00 00:00:00");
+        String to = formatBound(mToTime, "9999-99-99 99:99:99");
+
+        RandomAccessFile raf = new RandomAccessFile(mLogFile, "r");
+        try {
+            long cursor = 0;
+            long rangeStart = -1;
+            for (LogIndex.Block block : LogIndex.readBlocks(mIndexFile)) {
+                if (block.offset < cursor || block.offset + block.length > fileLength) {
+                    //索引和文件对不上，剩下的全部扫描
+                    break;
+                }
+                boolean gap = block.offset > cursor;
+                boolean match = block.mayMatch(mFromTime, mToTime, mMinLevel, mTag);
+                if (rangeStart < 0 && (gap || match)) {
+                    rangeStart = cursor;
+                }
+                if (!match && rangeStart >= 0) {
+                    //未索引的区域也要扫描
+                    if (!scan(raf, rangeStart, block.offset, from, to, result)) {
+                        return result;
+                    }
+                    rangeStart = -1;
+                }
+                cursor = block.offset + block.length;
+            }
+            if (rangeStart < 0) {
+                rangeStart = cursor;
+            }
+            scan(raf, rangeStart, fileLength, from, to, result);
+        } finally {
+            raf.close();
+        }
+        return result;
+    }
+
+    /**
+     * 扫描 [start, end) 区域，start 必须是一条日志的开头
+     *
+     * @return 达到 limit 时返回 false
+     */
+    private boolean scan(@NonNull RandomAccessFile raf, long start, long end, @NonNull String from, @NonNull String to,
+                         @NonNull List<Record> result) throws IOException {
+        if (start >= end) {
+            return true;
+        }
+        raf.seek(start);
+        LineReader reader = new LineReader(raf, start, end);
+        long recordOffset = -1;
+        String header = null;
+        StringBuilder message = new StringBuilder();
+        String line;
+        long lineOffset = reader.position();
+        while ((line = reader.readLine()) != null) {
+            if (isHeader(line)) {
+                if (header != null && !emit(recordOffset, header, message, from, to, result)) {
+                    return false;
+                }
+                recordOffset = lineOffset;
+                header = line;
+                message.setLength(0);
+            } else if (header != null) {
+                if (message.length() > 0) {
+                    message.append('\n');
+                }
+                message.append(message.length() == 0 && line.startsWith(" ") ? line.substring(1) : line);
+            }
+            lineOffset = reader.position();
+        }
+        return header == null || emit(recordOffset, header, message, from, to, result);
+    }
+
+    private boolean emit(long offset, @NonNull String header, @NonNull StringBuilder message, @NonNull String from,
+                         @NonNull String to, @NonNull List<Record> result) {
+        String time = header.substring(0, TIME_LENGTH);
+        if (time.compareTo(from) < 0 || time.compareTo(to) > 0) {
+            return true;
+        }
+        int level = 0;
+        String tag = null;
+        //header 格式：yyyy-MM-dd HH:mm:ss D/tag
+        if (header.length() > TIME_LENGTH + 2 && header.charAt(TIME_LENGTH + 2) == '/') {
+            level = Math.max(0, LEVELS.indexOf(header.charAt(TIME_LENGTH + 1)));
+            tag = header.substring(TIME_LENGTH + 3);
+        }
+        if (level < mMinLevel) {
+            return true;
+        }
+        if (mTag != null && !mTag.equals(tag)) {
+            return true;
+        }
+        result.add(new Record(offset, time, level, tag, message.toString()));
+        return result.size() < mLimit;
+    }
+
+    private static boolean isHeader(@NonNull String line) {
+        if (line.length() < TIME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            char c = line.charAt(i);
+            switch (i) {
+                case 4:
+                case 7:
+                    if (c != '-') return false;
+                    break;
+                case 10:
+                    if (c != ' ') return false;
+                    break;
+                case 13:
+                case 16:
+                    if (c != ':') return false;
+                    break;
+                default:
+                    if (c < '0' || c > '9') return false;
+                    break;
+            }
+        }
+        return line.length() == TIME_LENGTH || line.charAt(TIME_LENGTH) == ' ';
+    }
+
+    @NonNull
+    private static String formatBound(long time, @NonNull String fallback) {
+        if (time == Long.MIN_VALUE || time == Long.MAX_VALUE) {
+            return fallback;
+        }
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.getDefault()).format(new Date(time));
+    }
+
+    /**
+     * 在 [start, end) 范围内按行读取，自己维护缓冲区以便记录偏移
+     */
+    private static final class LineReader {
+        private final RandomAccessFile mFile;
+        private final long mEnd;
+        private final byte[] mBuffer = new byte[64 * 1024];
+        private int mPos;
+        private int mLimit;
+        private long mBufferStart;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(256);
+
+        LineReader(@NonNull RandomAccessFile file, long start, long end) {
+            mFile = file;
+            mBufferStart = start;
+            mEnd = end;
+        }
+
+        long position() {
+            return mBufferStart + mPos;
+        }
+
+        @Nullable
+        String readLine() throws IOException {
+            mLine.reset();
+            boolean read = false;
+            while (true) {
+                if (mPos == mLimit && !fill()) {
+                    return read ? mLine.toString("UTF-8") : null;
+                }
+                read = true;
+                int start = mPos;
+                while (mPos < mLimit && mBuffer[mPos] != '\n') {
+                    mPos++;
+                }
+                mLine.write(mBuffer, start, mPos - start);
+                if (mPos < mLimit) {
+                    mPos++;
+                    return new String(mLine.toByteArray(), UTF_8);
+                }
+            }
+        }
+
+        private boolean fill() throws IOException {
+            mBufferStart += mLimit;
+            mPos = 0;
+            mLimit = 0;
+            long remaining = mEnd - mBufferStart;
+            if (remaining <= 0) {
+                return false;
+            }
+            int read = mFile.read(mBuffer, 0, (int) Math.min(mBuffer.length, remaining));
+            if (read <= 0) {
+                return false;
+            }
+            mLimit = read;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Description: 保存最近 N 条日志的定长环形缓冲，用于崩溃报告
+ * <p>
+ * <br> 只保存 tag / 日志字符串的引用和时间，写入时一次原子自增加几次数组赋值，不格式化、不分配内存；
+ * <br> 读取是尽力而为的，并发写入时可能读到正在被覆盖的条目。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogRing {
+    private static final String LEVELS = "??VDIWEA";
+
+    private final int mMask;
+    private final String[] mTags;
+    private final String[] mLogs;
+    private final long[] mTimes;
+    private final int[] mLevels;
+    private final AtomicLong mCursor = new AtomicLong();
+
+    /**
+     * @param capacity 会向上取整到 2 的幂
+     */
+    public LogRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mMask = size - 1;
+        mTags = new String[size];
+        mLogs = new String[size];
+        mTimes = new long[size];
+        mLevels = new int[size];
+    }
+
+    public void add(@NonNull String tag, @NonNull String log, int level) {
+        int index = (int) (mCursor.getAndIncrement() & mMask);
+        mTimes[index] = System.currentTimeMillis();
+        mLevels[index] = level;
+        mTags[index] = tag;
+        mLogs[index] = log;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * 按时间从旧到新输出
+     */
+    @NonNull
+    public StringBuilder dump(@NonNull StringBuilder builder) {
+        long cursor = mCursor.get();
+        long from = Math.max(0, cursor - capacity());
+        for (long i = from; i < cursor; i++) {
+            int index = (int) (i & mMask);
+            String log = mLogs[index];
+            if (log == null) {
+                continue;
+            }
+            int level = mLevels[index];
+            CachedClock.appendWithMillis(builder, mTimes[index])
+                    .append(' ').append(level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?')
+                    .append('/').append(mTags[index]).append(": ").append(log).append('\n');
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Description: 重复日志合并、按 tag 限流、低级别日志采样
+ * <p>
+ * <br> 1. 同一个 (tag, 模板) 在窗口期内只输出第一条，其余计数，窗口过后再出现时先输出 "repeated N times"；
+ * <br>    不再出现时，下一次检查任意日志或 {@link #flushSummaries()} 时通过 {@link SummaryListener} 补发汇总
+ * <br> 2. 按 tag 配置令牌桶，超出速率的日志直接丢弃
+ * <br> 3. 按级别配置采样率，只对 VERBOSE / DEBUG 这类低级别有意义
+ * <p>
+ * <br> 默认全部关闭，关闭时只多一次 volatile 读。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class LogSuppressor {
+
+    /**
+     * {@link #check} 返回值：重复日志被合并
+     */
+    public static final int DROP = -1;
+    /**
+     * {@link #check} 返回值：被限流
+     */
+    public static final int DROP_RATE_LIMITED = -2;
+    /**
+     * {@link #check} 返回值：被采样丢弃
+     */
+    public static final int DROP_SAMPLED = -3;
+
+    private static final int MAX_LEVEL = 8;
+    private static final int MAX_REPEAT_KEYS = 1024;
+
+    private volatile boolean mEnabled;
+    private volatile long mRepeatWindowMillis;
+    private volatile long mNextSweep;
+    private volatile SummaryListener mSummaryListener;
+    private final float[] mSampleRates = new float[MAX_LEVEL];
+
+    private final ConcurrentHashMap<String, Repeat> mRepeats = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TokenBucket> mBuckets = new ConcurrentHashMap<>();
+
+    private final AtomicLong mDuplicateCount = new AtomicLong();
+    private final AtomicLong mRateLimitedCount = new AtomicLong();
+    private final AtomicLong mSampledOutCount = new AtomicLong();
+
+    private final ThreadLocal<Random> mRandom = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    public LogSuppressor() {
+        for (int i = 0; i < MAX_LEVEL; i++) {
+            mSampleRates[i] = 1f;
+        }
+    }
+
+    /**
+     * 判断这条日志是否输出
+     *
+     * @param tag      tag
+     * @param template 消息模板，格式化日志传 format，否则传日志本身
+     * @param level    日志级别
+     * @return 小于 0 表示丢弃（DROP_*）；否则为之前被合并掉的重复次数，大于 0 时调用方应先输出一条汇总
+     */
+    public int check(@NonNull String tag, @NonNull String template, int level) {
+        if (!mEnabled) {
+            return 0;
+        }
+        if (level >= 0 && level < MAX_LEVEL) {
+            float rate = mSampleRates[level];
+            if (rate < 1f && mRandom.get().nextFloat() >= rate) {
+                mSampledOutCount.incrementAndGet();
+                return DROP_SAMPLED;
+            }
+        }
+        if (!mBuckets.isEmpty()) {
+            TokenBucket bucket = mBuckets.get(tag);
+            if (bucket != null && !bucket.tryAcquire(System.nanoTime())) {
+                mRateLimitedCount.incrementAndGet();
+                return DROP_RATE_LIMITED;
+            }
+        }
+        long window = mRepeatWindowMillis;
+        if (window <= 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= mNextSweep) {
+            //最多每个窗口扫一次，补发已经结束的窗口的汇总
+            mNextSweep = now + window;
+            sweep(now, window);
+        }
+        return checkRepeat(tag, template, level, window, now);
+    }
+
+    private int checkRepeat(@NonNull String tag, @NonNull String template, int level, long window, long now) {
+        String key = tag + '\u0000' + template;
+        while (true) {
+            Repeat repeat = mRepeats.get(key);
+            if (repeat == null) {
+                if (mRepeats.size() >= MAX_REPEAT_KEYS) {
+                    sweep(now, 0);
+                }
+                repeat = new Repeat(tag, template, level, now);
+                Repeat previous = mRepeats.putIfAbsent(key, repeat);
+                if (previous == null) {
+                    return 0;
+                }
+                repeat = previous;
+            }
+            synchronized (repeat) {
+                if (repeat.mRemoved) {
+                    //刚被 sweep 移除，重新放一个
+                    continue;
+                }
+                if (now - repeat.mWindowStart < window) {
+                    repeat.mSuppressed++;
+                    mDuplicateCount.incrementAndGet();
+                    return DROP;
+                }
+                int suppressed = repeat.mSuppressed;
+                repeat.mWindowStart = now;
+                repeat.mSuppressed = 0;
+                return suppressed;
+            }
+        }
+    }
+
+    /**
+     * 移除窗口已经结束的记录，有被合并的日志时回调汇总
+     *
+     * @param window 0 表示全部移除
+     */
+    private void sweep(long now, long window) {
+        SummaryListener listener = mSummaryListener;
+        for (Map.Entry<String, Repeat> entry : mRepeats.entrySet()) {
+            Repeat repeat = entry.getValue();
+            int suppressed;
+            synchronized (repeat) {
+                if (window > 0 && now - repeat.mWindowStart < window) {
+                    continue;
+                }
+                suppressed = repeat.mSuppressed;
+                repeat.mSuppressed = 0;
+                repeat.mRemoved = true;
+                mRepeats.remove(entry.getKey(), repeat);
+            }
+            if (suppressed > 0 && listener != null) {
+                listener.onSummary(repeat.mTag, repeat.mTemplate, repeat.mLevel, suppressed);
+            }
+        }
+    }
+
+    /**
+     * 立即补发所有还没输出的汇总，在 flush 日志、退出前调用
+     */
+    public void flushSummaries() {
+        if (!mRepeats.isEmpty()) {
+            sweep(System.currentTimeMillis(), 0);
+        }
+    }
+
+    /**
+     * 接收补发的汇总
+     */
+    public void setSummaryListener(SummaryListener listener) {
+        mSummaryListener = listener;
+    }
+
+    /**
+     * 相同日志合并的窗口，0 表示不合并
+     */
+    public void setRepeatWindow(long millis) {
+        mRepeatWindowMillis = millis;
+        if (millis <= 0) {
+            flushSummaries();
+        }
+        updateEnabled();
+    }
+
+    /**
+     * 给 tag 配置令牌桶
+     *
+     * @param permitsPerSecond 每秒补充的条数，&lt;= 0 时移除限制
+     * @param burst            桶容量，允许的突发条数
+     */
+    public void setRateLimit(@NonNull String tag, double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0) {
+            mBuckets.remove(tag);
+        } else {
+            mBuckets.put(tag, new TokenBucket(permitsPerSecond, Math.max(1, burst)));
+        }
+        updateEnabled();
+    }
+
+    /**
+     * 按级别采样
+     *
+     * @param level 日志级别
+     * @param rate  0 ~ 1，1 表示全部输出
+     */
+    public void setSampleRate(int level, float rate) {
+        if (level < 0 || level >= MAX_LEVEL) {
+            throw new IllegalArgumentException("Invalid level: " + level);
+        }
+        mSampleRates[level] = Math.max(0f, Math.min(1f, rate));
+        updateEnabled();
+    }
+
+    private synchronized void updateEnabled() {
+        boolean enabled = mRepeatWindowMillis > 0 || !mBuckets.isEmpty();
+        for (float rate : mSampleRates) {
+            enabled |= rate < 1f;
+        }
+        mEnabled = enabled;
+    }
+
+    /**
+     * 被合并的重复日志条数
+     */
+    public long getDuplicateCount() {
+        return mDuplicateCount.get();
+    }
+
+    /**
+     * 被限流丢弃的条数
+     */
+    public long getRateLimitedCount() {
+        return mRateLimitedCount.get();
+    }
+
+    /**
+     * 被采样丢弃的条数
+     */
+    public long getSampledOutCount() {
+        return mSampledOutCount.get();
+    }
+
+    public void resetCounters() {
+        mDuplicateCount.set(0);
+        mRateLimitedCount.set(0);
+        mSampledOutCount.set(0);
+    }
+
+    /**
+     * 补发汇总的回调，在调用 {@link #check} / {@link #flushSummaries()} 的线程执行
+     */
+    public interface SummaryListener {
+        /**
+         * @param repeated 窗口内被合并掉的条数
+         */
+        void onSummary(@NonNull String tag, @NonNull String template, int level, int repeated);
+    }
+
+    private static final class Repeat {
+        @NonNull
+        final String mTag;
+        @NonNull
+        final String mTemplate;
+        final int mLevel;
+        long mWindowStart;
+        int mSuppressed;
+        boolean mRemoved;
+
+        Repeat(@NonNull String tag, @NonNull String template, int level, long windowStart) {
+            mTag = tag;
+            mTemplate = template;
+            mLevel = level;
+            mWindowStart = windowStart;
+        }
+    }
+
+    private static final class TokenBucket {
+        private final double mPermitsPerNano;
+        private final int mCapacity;
+        private double mTokens;
+        private long mLastRefill;
+
+        TokenBucket(double permitsPerSecond, int capacity) {
+            mPermitsPerNano = permitsPerSecond / 1e9;
+            mCapacity = capacity;
+            mTokens = capacity;
+            mLastRefill = System.nanoTime();
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mPermitsPerNano);
+            mLastRefill = now;
+            if (mTokens < 1) {
+                return false;
+            }
+            mTokens -= 1;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+import top.shixinzhang.utils.NetworkUtils;
+
+/**
+ * <br> Description: 日志落盘 + 批量压缩上传
+ * <p>
+ * <br> 1. enqueue 只把日志追加到内存批次，条数/字节数/时间任一达到阈值就封批；
+ * <br> 2. 封好的批次 gzip 后写入 spool 目录，一批对应一次上传请求；
+ * <br> 3. 上传失败按指数退避重试，文件保留在 spool 目录；spool 超过上限时删最旧的；
+ * <br> 4. Wi-Fi 下不限流量，移动网络下每天最多消耗 mMobileBudgetBytes。
+ * <p>
+ * <br> 上传方式由 {@link Transport} 决定，默认提供 {@link HttpTransport}。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class LogUploader {
+
+    /**
+     * 上传一个 gzip 批次文件，抛异常表示失败，会稍后重试
+     */
+    public interface Transport {
+        void upload(@NonNull File batch) throws IOException;
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SUFFIX = ".gz";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final String LEVELS = "??VDIWEA";
+
+    @Nullable
+    private final Context mContext;
+    @NonNull
+    private final File mSpoolDir;
+    @NonNull
+    private final Transport mTransport;
+
+    private int mMaxBatchRecords = 1000;
+    private int mMaxBatchBytes = 256 * 1024;
+    private long mFlushIntervalMillis = 60 * 1000;
+    private long mMobileBudgetBytes = 1024 * 1024;
+    private long mMaxSpoolBytes = 10 * 1024 * 1024;
+    private long mBaseBackoffMillis = 30 * 1000;
+    private long mMaxBackoffMillis = 30 * 60 * 1000;
+
+    private final AtomicBoolean mStarted = new AtomicBoolean();
+
+    private final ByteArrayOutputStream mPending = new ByteArrayOutputStream(16 * 1024);
+    private int mPendingRecords;
+    private int mSeq;
+
+    //以下字段只在上传线程访问
+    private int mFailures;
+    private long mNextAttemptAt;
+    private long mBudgetDay;
+    private long mMobileBytesToday;
+    private final Random mRandom = new Random();
+
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "LogUploader");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * @param context   用于判断网络状态，传 null 时认为一直处于 Wi-Fi 下
+     * @param spoolDir  批次文件存放目录
+     * @param transport 上传方式
+     */
+    public LogUploader(@Nullable Context context, @NonNull File spoolDir, @NonNull Transport transport) {
+        mContext = context == null ? null : context.getApplicationContext();
+        mSpoolDir = spoolDir;
+        mTransport = transport;
+    }
+
+    /**
+     * 开始定时封批、上传，{@link top.shixinzhang.utils.LogUtils#setLogUploader} 会自动调用，重复调用无效
+     */
+    public void start() {
+        if (!mStarted.compareAndSet(false, true)) {
+            return;
+        }
+        mExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sealPending();
+                uploadSpool();
+            }
+        }, mFlushIntervalMillis, mFlushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 把剩余日志封批并尝试上传一次，之后不再接受新任务
+     */
+    public void shutdown() {
+        sealPending();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                uploadSpool();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * 追加一条日志，只做内存拷贝
+     */
+    public void enqueue(@NonNull String tag, @NonNull String log, int level) {
+        StringBuilder line = new StringBuilder(log.length() + tag.length() + 32);
+        CachedClock.appendWithMillis(line, System.currentTimeMillis())
+                .append(' ').append(level >= 0 && level < LEVELS.length() ? LEVELS.charAt(level) : '?')
+                .append('/').append(tag).append(": ").append(log).append('\n');
+        byte[] bytes = line.toString().getBytes(UTF_8);
+        boolean full;
+        synchronized (mPending) {
+            mPending.write(bytes, 0, bytes.length);
+            mPendingRecords++;
+            LogMetrics.get().onBufferSize(mPending.size());
+            full = mPendingRecords >= mMaxBatchRecords || mPending.size() >= mMaxBatchBytes;
+        }
+        if (full) {
+            sealPending();
+        }
+    }
+
+    /**
+     * 立即封批并上传，不等定时任务
+     */
+    public void flush() {
+        sealPending();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                uploadSpool();
+            }
+        });
+    }
+
+    /**
+     * 在当前线程把剩余日志封批写入 spool 目录，不上传，下次启动后由定时任务上传。
+     * 用于崩溃时不能依赖后台线程的场景
+     */
+    public void sealNow() {
+        byte[] batch = takePending();
+        if (batch != null) {
+            writeBatch(batch);
+        }
+    }
+
+    @Nullable
+    private byte[] takePending() {
+        synchronized (mPending) {
+            if (mPendingRecords == 0) {
+                return null;
+            }
+            byte[] batch = mPending.toByteArray();
+            mPending.reset();
+            mPendingRecords = 0;
+            return batch;
+        }
+    }
+
+    private void sealPending() {
+        final byte[] batch = takePending();
+        if (batch == null) {
+            return;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeBatch(batch);
+                }
+            });
+        } catch (Exception e) {
+            //已经 shutdown，直接在当前线程写盘
+            writeBatch(batch);
+        }
+    }
+
+    /**
+     * 一般在 mExecutor 上调用，{@link #sealNow()} 会在其他线程调用，加锁保证文件名不重复
+     */
+    private synchronized void writeBatch(@NonNull byte[] batch) {
+        if (!mSpoolDir.exists() && !mSpoolDir.mkdirs()) {
+            return;
+        }
+        String name = String.format(Locale.US, "%013d-%04d", System.currentTimeMillis(), mSeq++ % 10000);
+        File temp = new File(mSpoolDir, name + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            out = new GZIPOutputStream(new FileOutputStream(temp), 8 * 1024);
+            out.write(batch);
+            out.close();
+            out = null;
+            //rename 后才算完整的批次
+            if (!temp.renameTo(new File(mSpoolDir, name + SUFFIX))) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+        trimSpool();
+    }
+
+    private void uploadSpool() {
+        long now = System.currentTimeMillis();
+        if (now < mNextAttemptAt) {
+            return;
+        }
+        if (mContext != null && !NetworkUtils.isNetworkAvailable(mContext)) {
+            return;
+        }
+        boolean wifi = mContext == null || NetworkUtils.isWifiConnect(mContext);
+        if (now / DAY_MILLIS != mBudgetDay) {
+            mBudgetDay = now / DAY_MILLIS;
+            mMobileBytesToday = 0;
+        }
+        for (File batch : listBatches()) {
+            long size = batch.length();
+            if (!wifi && mMobileBytesToday + size > mMobileBudgetBytes) {
+                return;
+            }
+            try {
+                mTransport.upload(batch);
+            } catch (IOException e) {
+                mFailures++;
+                long backoff = Math.min(mMaxBackoffMillis, mBaseBackoffMillis << Math.min(mFailures - 1, 16));
+                //加一点抖动，避免大量设备同时重试
+                mNextAttemptAt = System.currentTimeMillis() + backoff / 2 + (long) (mRandom.nextDouble() * backoff / 2);
+                return;
+            }
+            mFailures = 0;
+            mNextAttemptAt = 0;
+            if (!wifi) {
+                mMobileBytesToday += size;
+            }
+            batch.delete();
+        }
+    }
+
+    private void trimSpool() {
+        File[] batches = listBatches();
+        long total = 0;
+        for (File batch : batches) {
+            total += batch.length();
+        }
+        for (int i = 0; i < batches.length && total > mMaxSpoolBytes; i++) {
+            total -= batches[i].length();
+            batches[i].delete();
+        }
+    }
+
+    /**
+     * 按时间从旧到新排列的批次文件
+     */
+    @NonNull
+    private File[] listBatches() {
+        File[] files = mSpoolDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 单批最多条数
+     */
+    public void setMaxBatchRecords(int maxBatchRecords) {
+        mMaxBatchRecords = maxBatchRecords;
+    }
+
+    /**
+     * 单批最多字节数（压缩前）
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        mMaxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * 定时封批、上传的间隔，需在 start 之前设置
+     */
+    public void setFlushInterval(long millis) {
+        mFlushIntervalMillis = millis;
+    }
+
+    /**
+     * 移动网络下每天最多上传的字节数（压缩后）
+     */
+    public void setMobileBudgetBytes(long bytes) {
+        mMobileBudgetBytes = bytes;
+    }
+
+    /**
+     * spool 目录最大占用，超出时删除最旧的批次
+     */
+    public void setMaxSpoolBytes(long bytes) {
+        mMaxSpoolBytes = bytes;
+    }
+
+    public void setBackoff(long baseMillis, long maxMillis) {
+        mBaseBackoffMillis = baseMillis;
+        mMaxBackoffMillis = maxMillis;
+    }
+
+    private static void closeQuietly(@Nullable OutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 以 gzip 请求体 POST 到指定地址，2xx 视为成功
+     */
+    public static class HttpTransport implements Transport {
+        private static final int TIMEOUT = 15 * 1000;
+
+        @NonNull
+        private final URL mUrl;
+
+        public HttpTransport(@NonNull URL url) {
+            mUrl = url;
+        }
+
+        @Override
+        public void upload(@NonNull File batch) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+            InputStream in = null;
+            try {
+                connection.setConnectTimeout(TIMEOUT);
+                connection.setReadTimeout(TIMEOUT);
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode((int) batch.length());
+                connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+
+                in = new FileInputStream(batch);
+                OutputStream out = connection.getOutputStream();
+                byte[] buffer = new byte[8 * 1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+                out.close();
+
+                int code = connection.getResponseCode();
+                if (code / 100 != 2) {
+                    throw new IOException("Upload failed, response code: " + code);
+                }
+            } finally {
+                if (in != null) {
+                    in.close();
+                }
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <br> Description: 基于 mmap 的日志缓冲区（类似 xlog）
+ * <p>
+ * <br> 日志先拷贝进映射文件，进程崩溃时由系统负责把脏页写回磁盘，不需要每行 fsync。
+ * <br> 映射文件分成两半轮流使用：一半写满后切到另一半，写满的一半由后台线程追加到日志文件；
+ * <br> 下次打开时，映射文件里残留的内容会按顺序恢复到日志文件中。
+ * <p>
+ * <br> 每一半的头部：magic(4) + seq(4) + length(4)，length 在数据拷贝完成后才更新，
+ * <br> 所以崩溃时最多丢掉正在拷贝的那一条。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class MmapLogBuffer {
+
+    public static final int DEFAULT_CAPACITY = 128 * 1024;
+
+    private static final int MAGIC = 0x584C4F47;    // "XLOG"
+    private static final int HEADER_SIZE = 12;
+    private static final int OFFSET_SEQ = 4;
+    private static final int OFFSET_LENGTH = 8;
+
+    @NonNull
+    private final File mLogFile;
+    @NonNull
+    private final MappedByteBuffer mBuffer;
+    private final int mHalfSize;
+
+    private int mActive;
+    private int mActiveLength;
+    private int mSeq;
+    private Future<?> mPendingFlush;
+
+    private final ExecutorService mFlusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread thread = new Thread(r, "MmapLogFlusher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private MmapLogBuffer(@NonNull File logFile, @NonNull MappedByteBuffer buffer, int capacity) {
+        mLogFile = logFile;
+        mBuffer = buffer;
+        mHalfSize = capacity / 2;
+    }
+
+    /**
+     * 打开映射文件，并把上次残留的内容恢复到日志文件
+     *
+     * @param mmapFile 映射文件
+     * @param logFile  日志文件
+     * @param capacity 映射文件大小，两半各占一半
+     * @return 打开失败时返回 null，调用方应退回普通写文件
+     */
+    public static MmapLogBuffer open(@NonNull File mmapFile, @NonNull File logFile, int capacity) {
+        if (capacity < HEADER_SIZE * 4) {
+            throw new IllegalArgumentException("capacity too small: " + capacity);
+        }
+        File parent = mmapFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(mmapFile, "rw");
+            if (raf.length() != capacity) {
+                //大小变了就没法按原布局解析，先按旧大小恢复一次
+                if (raf.length() > 0) {
+                    recoverLegacy(raf, logFile);
+                }
+                raf.setLength(capacity);
+            }
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            MmapLogBuffer logBuffer = new MmapLogBuffer(logFile, buffer, capacity);
+            logBuffer.recover();
+            return logBuffer;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * 写入一条日志
+     *
+     * @param data 已编码的日志
+     */
+    public synchronized void write(@NonNull byte[] data, int offset, int length) {
+        int capacity = mHalfSize - HEADER_SIZE;
+        if (length > capacity) {
+            //超过半区大小的直接写文件，写之前先把已有内容落盘保证顺序
+            flush();
+            appendToLogFile(ByteBuffer.wrap(data, offset, length));
+            return;
+        }
+        if (mActiveLength + length > capacity) {
+            switchRegion();
+        }
+        int base = regionBase(mActive);
+        ByteBuffer target = mBuffer.duplicate();
+        target.position(base + HEADER_SIZE + mActiveLength);
+        target.put(data, offset, length);
+        mActiveLength += length;
+        mBuffer.putInt(base + OFFSET_LENGTH, mActiveLength);
+        LogMetrics.get().onBufferSize(mActiveLength);
+    }
+
+    public void write(@NonNull byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    /**
+     * 把剩余内容写入日志文件并停止后台线程，之后不能再写入
+     */
+    public synchronized void close() {
+        flush();
+        mFlusher.shutdown();
+    }
+
+    /**
+     * 把两个半区的内容全部同步写入日志文件
+     */
+    public synchronized void flush() {
+        awaitPendingFlush();
+        if (mActiveLength > 0) {
+            flushRegion(mActive);
+            mActiveLength = 0;
+        }
+    }
+
+    @NonNull
+    public File getLogFile() {
+        return mLogFile;
+    }
+
+    private void switchRegion() {
+        //另一半还没写完就等它，避免覆盖
+        awaitPendingFlush();
+        final int full = mActive;
+        mPendingFlush = mFlusher.submit(new Runnable() {
+            @Override
+            public void run() {
+                flushRegion(full);
+            }
+        });
+        mActive = 1 - mActive;
+        mActiveLength = 0;
+        resetRegion(mActive, ++mSeq);
+    }
+
+    private void awaitPendingFlush() {
+        Future<?> pending = mPendingFlush;
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        mPendingFlush = null;
+    }
+
+    /**
+     * 把映射内容同步到磁盘（msync），只在需要抵御断电时调用
+     */
+    public void sync() {
+        long start = System.nanoTime();
+        mBuffer.force();
+        LogMetrics.get().onSync(System.nanoTime() - start);
+    }
+
+    private void flushRegion(int region) {
+        long start = System.nanoTime();
+        int base = regionBase(region);
+        int length = mBuffer.getInt(base + OFFSET_LENGTH);
+        if (length > 0 && length <= mHalfSize - HEADER_SIZE) {
+            ByteBuffer source = mBuffer.duplicate();
+            source.position(base + HEADER_SIZE);
+            source.limit(base + HEADER_SIZE + length);
+            if (!appendToLogFile(source)) {
+                //写失败时保留映射内容，下次启动再恢复
+                return;
+            }
+        }
+        mBuffer.putInt(base + OFFSET_LENGTH, 0);
+        LogMetrics.get().onFlush(System.nanoTime() - start);
+    }
+
+    private void recover() {
+        int first = -1;
+        int second = -1;
+        int maxSeq = 0;
+        for (int i = 0; i < 2; i++) {
+            int base = regionBase(i);
+            if (mBuffer.getInt(base) != MAGIC) {
+                resetRegion(i, 0);
+                continue;
+            }
+            int seq = mBuffer.getInt(base + OFFSET_SEQ);
+            maxSeq = Math.max(maxSeq, seq);
+            if (first == -1) {
+                first = i;
+            } else if (seq < mBuffer.getInt(regionBase(first) + OFFSET_SEQ)) {
+                second = first;
+                first = i;
+            } else {
+                second = i;
+            }
+        }
+        if (first != -1) {
+            flushRegion(first);
+        }
+        if (second != -1) {
+            flushRegion(second);
+        }
+        mSeq = maxSeq + 1;
+        mActive = 0;
+        mActiveLength = 0;
+        resetRegion(0, mSeq);
+        resetRegion(1, mSeq - 1);
+        mBuffer.force();
+    }
+
+    private void resetRegion(int region, int seq) {
+        int base = regionBase(region);
+        mBuffer.putInt(base, MAGIC);
+        mBuffer.putInt(base + OFFSET_SEQ, seq);
+        mBuffer.putInt(base + OFFSET_LENGTH, 0);
+    }
+
+    private int regionBase(int region) {
+        return region * mHalfSize;
+    }
+
+    private boolean appendToLogFile(@NonNull ByteBuffer source) {
+        File parent = mLogFile.getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mLogFile, true);
+            FileChannel channel = out.getChannel();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * 旧映射文件大小和当前配置不一致时，按旧布局恢复一次
+     */
+    private static void recoverLegacy(@NonNull RandomAccessFile raf, @NonNull File logFile) throws IOException {
+        long length = raf.length();
+        if (length > Integer.MAX_VALUE || length < HEADER_SIZE * 4) {
+            return;
+        }
+        MappedByteBuffer old = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        MmapLogBuffer legacy = new MmapLogBuffer(logFile, old, (int) length);
+        legacy.recover();
+        legacy.mFlusher.shutdown();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
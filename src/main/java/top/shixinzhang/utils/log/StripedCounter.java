@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <br> Description: 分段计数器，类似 LongAdder（API 24 才有）
+ * <p>
+ * <br> 按线程 id 分到不同的槽，槽之间隔开一个缓存行，多线程累加时互不竞争；读取时把所有槽相加。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class StripedCounter {
+    private static final int STRIPES = 8;
+    /**
+     * 8 个 long 占 64 字节，一个缓存行
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        mCells.addAndGet(stripe * PADDING, delta);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            mCells.set(i * PADDING, 0);
+        }
+    }
+}
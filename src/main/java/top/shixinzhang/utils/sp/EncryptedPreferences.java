@@ -0,0 +1,490 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.RequiresApi;
+
+import java.lang.ref.WeakReference;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import top.shixinzhang.utils.encrypt.Base64Utils;
+
+/**
+ * <br> Description: 值加密的 SharedPreferences
+ * <p>
+ * <br> 值用 AES-GCM 加密后以 Base64 字符串存进底层实现，key 不加密，并作为附加认证数据，值不能被挪到别的 key 下。
+ * <br> 数据密钥随机生成，用 {@link KeyWrapper} 包装后存在同一个文件里，只在创建时解包一次。
+ * <br> 每个线程缓存一个 Cipher 实例，解密后的值缓存在内存里，通过本实例写入时同步更新缓存，
+ * <br> 所以重复读取和读明文的开销差不多；commit 失败时缓存恢复成写入前的值。
+ * <p>
+ * <br> 所有写入都要经过本实例，直接写底层实现或者多进程共用时缓存不会失效；底层文件里原有的明文值读不到。
+ * <br> 注册的监听收到的是本实例，读到的是明文，数据密钥的修改不会回调。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.KITKAT)
+public class EncryptedPreferences implements WrappedPreferences {
+
+    /**
+     * 包装后的数据密钥存放的 key
+     */
+    public static final String KEY_DATA_KEY = "__encrypted_preferences_key__";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    /**
+     * 缓存里表示已删除
+     */
+    private static final Object REMOVED = new Object();
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    @NonNull
+    private final SharedPreferences mDelegate;
+    @NonNull
+    private final SecretKey mKey;
+    @NonNull
+    private final String mWrappedKey;
+    private final ConcurrentHashMap<String, Object> mCache = new ConcurrentHashMap<>();
+    /**
+     * 更新缓存和写入底层实现时持有
+     */
+    private final Object mWriteLock = new Object();
+    /**
+     * 调用方的监听到注册在底层实现上的代理，和系统实现一样只弱引用监听
+     */
+    private final WeakHashMap<OnSharedPreferenceChangeListener, ListenerProxy> mListeners = new WeakHashMap<>();
+
+    private final ThreadLocal<Cipher> mCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(TRANSFORMATION);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private EncryptedPreferences(@NonNull SharedPreferences delegate, @NonNull SecretKey key, @NonNull String wrappedKey) {
+        mDelegate = delegate;
+        mKey = key;
+        mWrappedKey = wrappedKey;
+    }
+
+    /**
+     * 读取（没有时生成）数据密钥并创建实例
+     *
+     * @param wrapper 包装数据密钥的方式，同一个文件每次都要用同一个
+     */
+    @NonNull
+    public static EncryptedPreferences create(@NonNull SharedPreferences delegate, @NonNull KeyWrapper wrapper)
+            throws GeneralSecurityException {
+        String wrapped = delegate.getString(KEY_DATA_KEY, null);
+        byte[] key;
+        if (wrapped != null) {
+            key = wrapper.unwrap(Base64Utils.decodeByte(wrapped));
+        } else {
+            key = new byte[KEY_BYTES];
+            sRandom.nextBytes(key);
+            wrapped = Base64Utils.encodeByte(wrapper.wrap(key));
+            if (!delegate.edit().putString(KEY_DATA_KEY, wrapped).commit()) {
+                throw new GeneralSecurityException("Failed to save data key");
+            }
+        }
+        return new EncryptedPreferences(delegate, new SecretKeySpec(key, "AES"), wrapped);
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences getDelegate() {
+        return mDelegate;
+    }
+
+    @NonNull
+    private String encrypt(@NonNull String key, @NonNull Object value) {
+        byte[] plain = RecordCodec.encodeValue(value);
+        byte[] iv = new byte[IV_BYTES];
+        sRandom.nextBytes(iv);
+        try {
+            Cipher cipher = mCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, mKey, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(key.getBytes(MmapPreferences.UTF_8));
+            byte[] result = new byte[IV_BYTES + cipher.getOutputSize(plain.length)];
+            System.arraycopy(iv, 0, result, 0, IV_BYTES);
+            cipher.doFinal(plain, 0, plain.length, result, IV_BYTES);
+            return Base64Utils.encodeByte(result);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Encrypt failed: " + key, e);
+        }
+    }
+
+    /**
+     * @return 解密失败（数据被篡改、密钥不对）时返回 null
+     */
+    @Nullable
+    private Object decrypt(@NonNull String key, @NonNull String encrypted) {
+        try {
+            byte[] data = Base64Utils.decodeByte(encrypted);
+            if (data == null || data.length <= IV_BYTES) {
+                return null;
+            }
+            Cipher cipher = mCipher.get();
+            cipher.init(Cipher.DECRYPT_MODE, mKey, new GCMParameterSpec(TAG_BITS, data, 0, IV_BYTES));
+            cipher.updateAAD(key.getBytes(MmapPreferences.UTF_8));
+            return RecordCodec.decodeValue(cipher.doFinal(data, IV_BYTES, data.length - IV_BYTES));
+        } catch (GeneralSecurityException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Nullable
+    private Object read(String key) {
+        Object value = mCache.get(key);
+        if (value != null) {
+            return value == REMOVED ? null : value;
+        }
+        String encrypted;
+        try {
+            encrypted = mDelegate.getString(key, null);
+        } catch (ClassCastException e) {
+            //不是本实例写入的值
+            return null;
+        }
+        if (encrypted == null) {
+            return null;
+        }
+        value = decrypt(key, encrypted);
+        if (value != null) {
+            //写入方会直接 put 新值，这里不覆盖
+            Object previous = mCache.putIfAbsent(key, value);
+            if (previous != null) {
+                return previous == REMOVED ? null : previous;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>();
+        for (String key : mDelegate.getAll().keySet()) {
+            if (KEY_DATA_KEY.equals(key)) {
+                continue;
+            }
+            Object value = read(key);
+            if (value != null) {
+                all.put(key, value);
+            }
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = read(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = read(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = read(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = read(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = read(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = read(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = mCache.get(key);
+        if (value != null) {
+            return value != REMOVED;
+        }
+        return !KEY_DATA_KEY.equals(key) && mDelegate.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        ListenerProxy proxy;
+        synchronized (mListeners) {
+            if (mListeners.containsKey(listener)) {
+                return;
+            }
+            proxy = new ListenerProxy(listener);
+            mListeners.put(listener, proxy);
+        }
+        mDelegate.registerOnSharedPreferenceChangeListener(proxy);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        ListenerProxy proxy;
+        synchronized (mListeners) {
+            proxy = mListeners.remove(listener);
+        }
+        if (proxy != null) {
+            mDelegate.unregisterOnSharedPreferenceChangeListener(proxy);
+        }
+    }
+
+    /**
+     * 把底层实现的回调转给调用方，传入的 SharedPreferences 换成本实例。
+     * 监听只被弱引用，否则 mListeners 的值会让它永远不被回收
+     */
+    private final class ListenerProxy implements OnSharedPreferenceChangeListener {
+        @NonNull
+        private final WeakReference<OnSharedPreferenceChangeListener> mListener;
+
+        ListenerProxy(@NonNull OnSharedPreferenceChangeListener listener) {
+            mListener = new WeakReference<>(listener);
+        }
+
+        @Override
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            OnSharedPreferenceChangeListener listener = mListener.get();
+            if (listener != null && !KEY_DATA_KEY.equals(key)) {
+                listener.onSharedPreferenceChanged(EncryptedPreferences.this, key);
+            }
+        }
+    }
+
+    /**
+     * 包装 / 解包数据密钥，比如用 AndroidKeyStore 里的密钥加密
+     */
+    public interface KeyWrapper {
+        @NonNull
+        byte[] wrap(@NonNull byte[] key) throws GeneralSecurityException;
+
+        @NonNull
+        byte[] unwrap(@NonNull byte[] wrapped) throws GeneralSecurityException;
+    }
+
+    /**
+     * 用一个 AES 密钥（GCM）包装数据密钥。API 23 以上可以传入 AndroidKeyStore 生成的密钥
+     */
+    public static class AesKeyWrapper implements KeyWrapper {
+        @NonNull
+        private final SecretKey mKek;
+
+        public AesKeyWrapper(@NonNull SecretKey kek) {
+            mKek = kek;
+        }
+
+        @NonNull
+        @Override
+        public byte[] wrap(@NonNull byte[] key) throws GeneralSecurityException {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            //不指定 IV，由实现生成，AndroidKeyStore 的密钥不允许调用方指定
+            cipher.init(Cipher.ENCRYPT_MODE, mKek);
+            byte[] iv = cipher.getIV();
+            byte[] encrypted = cipher.doFinal(key);
+            byte[] result = new byte[1 + iv.length + encrypted.length];
+            result[0] = (byte) iv.length;
+            System.arraycopy(iv, 0, result, 1, iv.length);
+            System.arraycopy(encrypted, 0, result, 1 + iv.length, encrypted.length);
+            return result;
+        }
+
+        @NonNull
+        @Override
+        public byte[] unwrap(@NonNull byte[] wrapped) throws GeneralSecurityException {
+            int ivLength = wrapped.length > 0 ? wrapped[0] & 0xFF : 0;
+            if (ivLength == 0 || wrapped.length <= 1 + ivLength) {
+                throw new GeneralSecurityException("Invalid wrapped key");
+            }
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, mKek, new GCMParameterSpec(TAG_BITS, wrapped, 1, ivLength));
+            return cipher.doFinal(wrapped, 1 + ivLength, wrapped.length - 1 - ivLength);
+        }
+    }
+
+    private final class EditorImpl implements Editor {
+        private final Map<String, Object> mModified = new HashMap<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        private Editor put(String key, @Nullable Object value) {
+            if (KEY_DATA_KEY.equals(key)) {
+                throw new IllegalArgumentException("Reserved key: " + key);
+            }
+            synchronized (this) {
+                mModified.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        private boolean write(boolean commit) {
+            Map<String, Object> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            //加密在写入底层之前做完，失败时不会写一半
+            Editor editor = mDelegate.edit();
+            if (clear) {
+                editor.clear().putString(KEY_DATA_KEY, mWrappedKey);
+            }
+            for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                if (entry.getValue() == null) {
+                    editor.remove(entry.getKey());
+                } else {
+                    editor.putString(entry.getKey(), encrypt(entry.getKey(), entry.getValue()));
+                }
+            }
+            //缓存和底层在同一把锁里更新，两个 Editor 并发提交时两边的先后顺序一致
+            synchronized (mWriteLock) {
+                //先更新缓存，底层实现在 apply 里同步回调监听时已经能读到新值
+                Map<String, Object> previous = new HashMap<>();
+                if (clear) {
+                    for (Map.Entry<String, Object> entry : mCache.entrySet()) {
+                        previous.put(entry.getKey(), entry.getValue());
+                        entry.setValue(REMOVED);
+                    }
+                }
+                for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                    Object old = mCache.put(entry.getKey(), entry.getValue() == null ? REMOVED : entry.getValue());
+                    if (!previous.containsKey(entry.getKey())) {
+                        previous.put(entry.getKey(), old);
+                    }
+                }
+                if (!commit) {
+                    editor.apply();
+                    return true;
+                }
+                boolean result = editor.commit();
+                if (!result) {
+                    //底层没写进去，恢复缓存，之后读到的还是旧值
+                    for (Map.Entry<String, Object> entry : previous.entrySet()) {
+                        if (entry.getValue() == null) {
+                            mCache.remove(entry.getKey());
+                        } else {
+                            mCache.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <br> Description: 支持过期时间的 SharedPreferences
+ * <p>
+ * <br> 过期时间单独存在一个元数据文件里（key 到过期时刻的 long），内存里同时有 key 到过期时刻的表和按时间排序的索引。
+ * <br> 读取时只查一次内存表，过期的当作不存在，不会阻塞；后台按索引从最早的开始，每次最多删 {@link #SWEEP_BATCH} 个，
+ * <br> 不需要扫描所有 key。
+ * <p>
+ * <br> 用 {@link ExpiringEditor#expireAfter} 设置过期时间；没有设置过期时间的写入会清除 key 原来的过期时间。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class ExpiringPreferences implements WrappedPreferences {
+
+    public static final int SWEEP_BATCH = 100;
+    /**
+     * 两次清理的最小间隔，避免大量 key 同时过期时频繁调度
+     */
+    private static final long MIN_SWEEP_DELAY_MILLIS = 1000;
+
+    private static volatile ScheduledExecutorService sScheduler;
+
+    @NonNull
+    private final SharedPreferences mDelegate;
+    @NonNull
+    private final SharedPreferences mMeta;
+    private final ConcurrentHashMap<String, Long> mExpiries = new ConcurrentHashMap<>();
+    /**
+     * 按过期时间排序的索引，key 被重新写入后旧的条目留在里面，清理时和 mExpiries 对比后丢弃
+     */
+    private final ConcurrentSkipListSet<Expiry> mIndex = new ConcurrentSkipListSet<>();
+    private final Object mSweepLock = new Object();
+    private ScheduledFuture<?> mSweepFuture;
+    private long mSweepAt = Long.MAX_VALUE;
+
+    private final Runnable mSweepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mSweepLock) {
+                mSweepFuture = null;
+                mSweepAt = Long.MAX_VALUE;
+            }
+            sweep();
+        }
+    };
+
+    /**
+     * @param delegate 数据
+     * @param meta     保存过期时间的文件，不要和其他用途共用
+     */
+    public ExpiringPreferences(@NonNull SharedPreferences delegate, @NonNull SharedPreferences meta) {
+        mDelegate = delegate;
+        mMeta = meta;
+        for (Map.Entry<String, ?> entry : meta.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                long expireAt = (Long) entry.getValue();
+                mExpiries.put(entry.getKey(), expireAt);
+                mIndex.add(new Expiry(expireAt, entry.getKey()));
+            }
+        }
+        scheduleSweep();
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences getDelegate() {
+        return mDelegate;
+    }
+
+    private boolean isExpired(String key) {
+        Long expireAt = mExpiries.get(key);
+        if (expireAt == null || expireAt > System.currentTimeMillis()) {
+            return false;
+        }
+        //已经过期但还没删，尽快清理
+        requestSweep(0);
+        return true;
+    }
+
+    /**
+     * @return key 的过期时刻，没有设置时返回 0
+     */
+    public long getExpireAt(String key) {
+        Long expireAt = mExpiries.get(key);
+        return expireAt == null ? 0 : expireAt;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>(mDelegate.getAll());
+        long now = System.currentTimeMillis();
+        for (Iterator<String> iterator = all.keySet().iterator(); iterator.hasNext(); ) {
+            Long expireAt = mExpiries.get(iterator.next());
+            if (expireAt != null && expireAt <= now) {
+                iterator.remove();
+            }
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        return isExpired(key) ? defValue : mDelegate.getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return isExpired(key) ? defValues : mDelegate.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return isExpired(key) ? defValue : mDelegate.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return isExpired(key) ? defValue : mDelegate.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return isExpired(key) ? defValue : mDelegate.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return isExpired(key) ? defValue : mDelegate.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return !isExpired(key) && mDelegate.contains(key);
+    }
+
+    @Override
+    public ExpiringEditor edit() {
+        return new ExpiringEditor(mDelegate.edit());
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * 删除已经过期的 key，每批最多 {@link #SWEEP_BATCH} 个，做完后按下一个过期时刻重新调度
+     */
+    public void sweep() {
+        while (true) {
+            long now = System.currentTimeMillis();
+            List<Expiry> expired = new ArrayList<>(SWEEP_BATCH);
+            for (Expiry expiry : mIndex) {
+                if (expiry.mExpireAt > now || expired.size() >= SWEEP_BATCH) {
+                    break;
+                }
+                expired.add(expiry);
+            }
+            if (expired.isEmpty()) {
+                break;
+            }
+            synchronized (this) {
+                Editor editor = mDelegate.edit();
+                Editor metaEditor = mMeta.edit();
+                for (Expiry expiry : expired) {
+                    mIndex.remove(expiry);
+                    Long current = mExpiries.get(expiry.mKey);
+                    //key 被重新写入过，这是过时的索引
+                    if (current == null || current != expiry.mExpireAt) {
+                        continue;
+                    }
+                    mExpiries.remove(expiry.mKey);
+                    editor.remove(expiry.mKey);
+                    metaEditor.remove(expiry.mKey);
+                }
+                editor.apply();
+                metaEditor.apply();
+            }
+        }
+        scheduleSweep();
+    }
+
+    private void scheduleSweep() {
+        Expiry first;
+        try {
+            first = mIndex.first();
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        requestSweep(first.mExpireAt - System.currentTimeMillis());
+    }
+
+    private void requestSweep(long delayMillis) {
+        long at = System.currentTimeMillis() + Math.max(delayMillis, 0);
+        synchronized (mSweepLock) {
+            if (mSweepFuture != null && mSweepAt <= at + MIN_SWEEP_DELAY_MILLIS) {
+                return;
+            }
+            if (mSweepFuture != null) {
+                mSweepFuture.cancel(false);
+            }
+            mSweepAt = at;
+            mSweepFuture = getScheduler().schedule(mSweepRunnable, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @NonNull
+    private static ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            synchronized (ExpiringPreferences.class) {
+                if (sScheduler == null) {
+                    sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SpExpirySweep");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return sScheduler;
+    }
+
+    /**
+     * 索引条目，按过期时间、key 排序
+     */
+    private static final class Expiry implements Comparable<Expiry> {
+        final long mExpireAt;
+        @NonNull
+        final String mKey;
+
+        Expiry(long expireAt, @NonNull String key) {
+            mExpireAt = expireAt;
+            mKey = key;
+        }
+
+        @Override
+        public int compareTo(@NonNull Expiry other) {
+            if (mExpireAt != other.mExpireAt) {
+                return mExpireAt < other.mExpireAt ? -1 : 1;
+            }
+            return mKey.compareTo(other.mKey);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Expiry)) {
+                return false;
+            }
+            Expiry other = (Expiry) o;
+            return mExpireAt == other.mExpireAt && mKey.equals(other.mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (mExpireAt ^ (mExpireAt >>> 32)) + mKey.hashCode();
+        }
+    }
+
+    /**
+     * 可以设置过期时间的 Editor
+     */
+    public final class ExpiringEditor implements Editor {
+        @NonNull
+        private final Editor mEditor;
+        /**
+         * 本次修改的 key，值为过期时刻，0 表示不过期
+         */
+        private final Map<String, Long> mModified = new HashMap<>();
+        private boolean mClear;
+
+        ExpiringEditor(@NonNull Editor editor) {
+            mEditor = editor;
+        }
+
+        /**
+         * 给本次写入的 key 设置过期时间，需要在 put 之后调用
+         *
+         * @param ttlMillis 多久之后过期
+         */
+        @NonNull
+        public ExpiringEditor expireAfter(String key, long ttlMillis) {
+            synchronized (this) {
+                mModified.put(key, System.currentTimeMillis() + Math.max(ttlMillis, 0));
+            }
+            return this;
+        }
+
+        private ExpiringEditor touch(String key) {
+            synchronized (this) {
+                mModified.put(key, 0L);
+            }
+            return this;
+        }
+
+        @Override
+        public ExpiringEditor putString(String key, @Nullable String value) {
+            mEditor.putString(key, value);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor putStringSet(String key, @Nullable Set<String> values) {
+            mEditor.putStringSet(key, values);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor putInt(String key, int value) {
+            mEditor.putInt(key, value);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor putLong(String key, long value) {
+            mEditor.putLong(key, value);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor putFloat(String key, float value) {
+            mEditor.putFloat(key, value);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor putBoolean(String key, boolean value) {
+            mEditor.putBoolean(key, value);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor remove(String key) {
+            mEditor.remove(key);
+            return touch(key);
+        }
+
+        @Override
+        public ExpiringEditor clear() {
+            mEditor.clear();
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            synchronized (ExpiringPreferences.this) {
+                boolean result = mEditor.commit();
+                return updateMeta(true) && result;
+            }
+        }
+
+        @Override
+        public void apply() {
+            synchronized (ExpiringPreferences.this) {
+                mEditor.apply();
+                updateMeta(false);
+            }
+        }
+
+        private boolean updateMeta(boolean commit) {
+            Map<String, Long> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            if (!clear && modified.isEmpty()) {
+                return true;
+            }
+            Editor metaEditor = mMeta.edit();
+            if (clear) {
+                metaEditor.clear();
+                mExpiries.clear();
+                mIndex.clear();
+            }
+            boolean scheduled = false;
+            for (Map.Entry<String, Long> entry : modified.entrySet()) {
+                String key = entry.getKey();
+                long expireAt = entry.getValue();
+                if (expireAt == 0) {
+                    if (mExpiries.remove(key) != null) {
+                        metaEditor.remove(key);
+                    }
+                } else {
+                    metaEditor.putLong(key, expireAt);
+                    mExpiries.put(key, expireAt);
+                    mIndex.add(new Expiry(expireAt, key));
+                    scheduled = true;
+                }
+            }
+            if (scheduled) {
+                scheduleSweep();
+            }
+            if (commit) {
+                return metaEditor.commit();
+            }
+            metaEditor.apply();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <br> Description: 迁移期间使用的 SharedPreferences，双读双写
+ * <p>
+ * <br> 读：先读新存储，没有且迁移未完成时读原存储。
+ * <br> 写：同时写新旧两边，并告诉 {@link SpMigrator} 这些 key 不要再迁移，这样中断后重新迁移也不会用旧值覆盖新值。
+ * <br> 迁移完成后只读写新存储。{@link #getDelegate()} 返回新存储，外面再包装其他实现时沿链可以找到它。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class MigratingPreferences implements WrappedPreferences {
+
+    @NonNull
+    private final SharedPreferences mSource;
+    @NonNull
+    private final SharedPreferences mTarget;
+    @NonNull
+    private final SpMigrator mMigrator;
+
+    public MigratingPreferences(@NonNull SharedPreferences source, @NonNull SharedPreferences target,
+                                @NonNull SpMigrator migrator) {
+        mSource = source;
+        mTarget = target;
+        mMigrator = migrator;
+    }
+
+    @NonNull
+    public SharedPreferences getTarget() {
+        return mTarget;
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences getDelegate() {
+        return mTarget;
+    }
+
+    @NonNull
+    public SpMigrator getMigrator() {
+        return mMigrator;
+    }
+
+    /**
+     * key 在新存储里没有，需要回退到原存储读
+     */
+    private boolean fallback(String key) {
+        return !mMigrator.isCompleted() && !mTarget.contains(key);
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        if (mMigrator.isCompleted()) {
+            return mTarget.getAll();
+        }
+        Map<String, Object> all = new HashMap<>(mSource.getAll());
+        all.putAll(mTarget.getAll());
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        return fallback(key) ? mSource.getString(key, defValue) : mTarget.getString(key, defValue);
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return fallback(key) ? mSource.getStringSet(key, defValues) : mTarget.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return fallback(key) ? mSource.getInt(key, defValue) : mTarget.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return fallback(key) ? mSource.getLong(key, defValue) : mTarget.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return fallback(key) ? mSource.getFloat(key, defValue) : mTarget.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return fallback(key) ? mSource.getBoolean(key, defValue) : mTarget.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mTarget.contains(key) || !mMigrator.isCompleted() && mSource.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mTarget.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mTarget.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * 记录修改，提交时同时作用到新旧两边
+     */
+    private final class EditorImpl implements Editor {
+        private final Map<String, Object> mModified = new HashMap<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        private Editor put(String key, @Nullable Object value) {
+            synchronized (this) {
+                mModified.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        private boolean write(boolean commit) {
+            Map<String, Object> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            boolean migrating = !mMigrator.isCompleted();
+            //和迁移线程的批量提交互斥
+            synchronized (mMigrator) {
+                if (migrating) {
+                    if (clear) {
+                        mMigrator.markCleared();
+                    }
+                    for (String key : modified.keySet()) {
+                        mMigrator.markTouched(key);
+                    }
+                }
+                boolean result = write(mTarget.edit(), modified, clear, commit);
+                if (migrating) {
+                    //原存储也要改，迁移中断后从原文件重新迁移时拿到的是新值
+                    result &= write(mSource.edit(), modified, clear, commit);
+                }
+                return result;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private boolean write(@NonNull Editor editor, @NonNull Map<String, Object> modified, boolean clear, boolean commit) {
+            if (clear) {
+                editor.clear();
+            }
+            for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                String key = entry.getKey();
+                Object value = entry.getValue();
+                if (value == null) {
+                    editor.remove(key);
+                } else if (value instanceof String) {
+                    editor.putString(key, (String) value);
+                } else if (value instanceof Integer) {
+                    editor.putInt(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    editor.putLong(key, (Long) value);
+                } else if (value instanceof Float) {
+                    editor.putFloat(key, (Float) value);
+                } else if (value instanceof Boolean) {
+                    editor.putBoolean(key, (Boolean) value);
+                } else {
+                    editor.putStringSet(key, (Set<String>) value);
+                }
+            }
+            if (commit) {
+                return editor.commit();
+            }
+            editor.apply();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,815 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import top.shixinzhang.utils.FileUtils;
+
+/**
+ * <br> Description: 基于 mmap 的追加写 key-value 存储，实现了 SharedPreferences 接口
+ * <p>
+ * <br> 文件格式：16 字节头（MAGIC、版本、保留字段、有效数据末尾），保留字段目前总是 0，之后是一条条记录：
+ * <br> [长度 int][CRC32 int][类型 byte][key 长度 short][key][值]
+ * <p>
+ * <br> 每次修改只在末尾追加对应的记录，写入开销和记录大小有关，和文件大小无关；clear 也是追加删除记录。
+ * <br> 空间不够时先扩容；如果一半以上是被覆盖的旧记录，再交给后台线程压缩：持锁取快照，
+ * <br> 不持锁写临时文件，最后持锁补上快照之后追加的记录再 rename，调用 apply 的线程不会等待压缩。
+ * <br> 打开时从头回放记录，遇到 CRC 不对的记录就截断，之后的数据丢弃。
+ * <br> 一批修改只有全部追加成功才更新头部的末尾位置，中途失败时从文件重新回放，内存和文件保持一致。
+ * <p>
+ * <br> apply 直接写进映射内存，由系统回写；commit 会额外 force 到磁盘。
+ * <p>
+ * <br> 多进程模式下另有一个 .meta 文件，保存写入序号和压缩代数，用 FileLock 协调各进程：
+ * <br> 写入时加锁，先追上其他进程追加的记录再追加自己的，最后序号加一；
+ * <br> 读取时只比较一次序号，变了才加锁回放新增的记录，文件被压缩过（代数变了）才完整重新加载。
+ * <br> 其他进程的修改不会回调 OnSharedPreferenceChangeListener。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class MmapPreferences implements SharedPreferences {
+
+    private static final int MAGIC = 0x53504B56;
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    private static final int OFFSET_RESERVED = 8;
+    private static final int OFFSET_END = 12;
+    private static final int RECORD_HEADER = 8;
+    private static final int PAGE_SIZE = 4096;
+    private static final int META_SIZE = 8;
+    private static final int META_SEQ = 0;
+    private static final int META_GENERATION = 4;
+
+    static final byte TYPE_REMOVE = 0;
+    static final byte TYPE_STRING = 1;
+    static final byte TYPE_INT = 2;
+    static final byte TYPE_LONG = 3;
+    static final byte TYPE_FLOAT = 4;
+    static final byte TYPE_BOOLEAN = 5;
+    static final byte TYPE_STRING_SET = 6;
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentHashMap<String, MmapPreferences> sInstances = new ConcurrentHashMap<>();
+    private static volatile ExecutorService sCompactor;
+
+    @NonNull
+    private final File mFile;
+    private final boolean mMultiProcess;
+    private final Object mLock = new Object();
+    /**
+     * 同一时间只做一次压缩，先于 mLock 获取
+     */
+    private final Object mCompactLock = new Object();
+    private final ConcurrentHashMap<String, Object> mValues = new ConcurrentHashMap<>();
+    /**
+     * key 当前生效的那条记录的大小，用来统计可以压缩掉的字节数
+     */
+    private final HashMap<String, Integer> mRecordSizes = new HashMap<>();
+    private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners = new WeakHashMap<>();
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+    private int mWasted;
+
+    private RandomAccessFile mMetaRaf;
+    private MappedByteBuffer mMeta;
+    private volatile int mSeq;
+    private int mGeneration;
+    /**
+     * 是否已经安排了后台压缩
+     */
+    private boolean mCompactPending;
+
+    private final Runnable mCompactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mCompactPending = false;
+            }
+            synchronized (mCompactLock) {
+                compactLocked(true);
+            }
+        }
+    };
+
+    private MmapPreferences(@NonNull File file, boolean multiProcess) {
+        mFile = file;
+        mMultiProcess = multiProcess;
+    }
+
+    /**
+     * 打开 file 对应的存储，同一个文件在进程内只有一个实例
+     */
+    @NonNull
+    public static MmapPreferences open(@NonNull File file) throws IOException {
+        return open(file, false);
+    }
+
+    /**
+     * 不经过实例缓存打开，同一个文件每次得到新的实例，用于测试重新打开和模拟多个进程
+     */
+    @NonNull
+    static MmapPreferences openUncached(@NonNull File file, boolean multiProcess) throws IOException {
+        MmapPreferences preferences = new MmapPreferences(file, multiProcess);
+        preferences.load();
+        return preferences;
+    }
+
+    /**
+     * 打开 file 对应的存储，同一个文件在进程内只有一个实例，以第一次打开时的模式为准
+     *
+     * @param multiProcess 是否有多个进程同时读写，所有进程都要用多进程模式打开
+     */
+    @NonNull
+    public static MmapPreferences open(@NonNull File file, boolean multiProcess) throws IOException {
+        String path = file.getCanonicalPath();
+        MmapPreferences preferences = sInstances.get(path);
+        if (preferences != null) {
+            return preferences;
+        }
+        synchronized (sInstances) {
+            preferences = sInstances.get(path);
+            if (preferences == null) {
+                preferences = new MmapPreferences(file, multiProcess);
+                preferences.load();
+                sInstances.put(path, preferences);
+            }
+            return preferences;
+        }
+    }
+
+    @NonNull
+    public File getFile() {
+        return mFile;
+    }
+
+    public boolean isMultiProcess() {
+        return mMultiProcess;
+    }
+
+    private void load() throws IOException {
+        synchronized (mLock) {
+            File parent = mFile.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            if (mMultiProcess) {
+                mMetaRaf = new RandomAccessFile(mFile.getPath() + ".meta", "rw");
+                mMeta = mMetaRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, META_SIZE);
+            }
+            FileLock lock = lock();
+            try {
+                loadData();
+                if (mMultiProcess) {
+                    mSeq = mMeta.getInt(META_SEQ);
+                    mGeneration = mMeta.getInt(META_GENERATION);
+                }
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    private void loadData() throws IOException {
+        map(Math.max(PAGE_SIZE, roundToPage(mFile.length())));
+        if (mBuffer.getInt(0) != MAGIC) {
+            resetHeader();
+            return;
+        }
+        int end = Math.min(mBuffer.getInt(OFFSET_END), mBuffer.capacity());
+        mEnd = replay(HEADER_SIZE, end);
+        if (mEnd != end) {
+            mBuffer.putInt(OFFSET_END, mEnd);
+        }
+    }
+
+    /**
+     * 多进程模式下加进程间的排它锁，单进程模式返回 null
+     */
+    @Nullable
+    private FileLock lock() throws IOException {
+        return mMultiProcess ? mMetaRaf.getChannel().lock() : null;
+    }
+
+    private static void release(@Nullable FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 读取前检查其他进程是否写过，只是一次内存读
+     */
+    private void checkRemote() {
+        if (!mMultiProcess || mMeta.getInt(META_SEQ) == mSeq) {
+            return;
+        }
+        synchronized (mLock) {
+            FileLock lock = null;
+            try {
+                lock = lock();
+                catchUp();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * 持有 FileLock 时调用：序号变了就追上其他进程的修改
+     */
+    private void catchUp() throws IOException {
+        if (!mMultiProcess) {
+            return;
+        }
+        int seq = mMeta.getInt(META_SEQ);
+        if (seq == mSeq) {
+            return;
+        }
+        int generation = mMeta.getInt(META_GENERATION);
+        if (generation != mGeneration) {
+            //被压缩过，换了文件，完整重新加载
+            reload();
+        } else {
+            int end = mBuffer.getInt(OFFSET_END);
+            if (end > mBuffer.capacity()) {
+                //其他进程扩容过
+                map(Math.max(roundToPage(end), mFile.length()));
+            }
+            mEnd = replay(mEnd, end);
+        }
+        mGeneration = generation;
+        mSeq = seq;
+    }
+
+    /**
+     * 丢弃内存中的数据，从文件重新回放
+     */
+    private void reload() throws IOException {
+        FileUtils.close(mRaf);
+        mRaf = null;
+        mValues.clear();
+        mRecordSizes.clear();
+        mWasted = 0;
+        loadData();
+    }
+
+    private void map(long size) throws IOException {
+        if (mRaf == null) {
+            mRaf = new RandomAccessFile(mFile, "rw");
+        }
+        mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void resetHeader() {
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(OFFSET_RESERVED, 0);
+        mBuffer.putInt(OFFSET_END, HEADER_SIZE);
+        mEnd = HEADER_SIZE;
+    }
+
+    /**
+     * 回放 [start, end) 之间的记录到内存
+     *
+     * @return 最后一条完整记录的末尾
+     */
+    private int replay(int start, int end) {
+        int position = start;
+        CRC32 crc = new CRC32();
+        while (position + RECORD_HEADER <= end) {
+            int length = mBuffer.getInt(position);
+            if (length < 3 || length > end - position - RECORD_HEADER) {
+                break;
+            }
+            byte[] body = new byte[length];
+            mBuffer.position(position + RECORD_HEADER);
+            mBuffer.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != mBuffer.getInt(position + 4)) {
+                break;
+            }
+            try {
+                applyRecord(body, RECORD_HEADER + length);
+            } catch (RuntimeException e) {
+                //CRC 正确但内容无法解析，按损坏处理
+                e.printStackTrace();
+                break;
+            }
+            position += RECORD_HEADER + length;
+        }
+        return position;
+    }
+
+    private void applyRecord(@NonNull byte[] body, int recordSize) {
+        RecordCodec.Reader reader = new RecordCodec.Reader(body);
+        byte type = reader.readByte();
+        String key = reader.readKey();
+        Object value = type == TYPE_REMOVE ? null : reader.readValue(type);
+        updateMemory(key, value, recordSize);
+    }
+
+    private void updateMemory(@NonNull String key, @Nullable Object value, int recordSize) {
+        Integer previous = mRecordSizes.get(key);
+        if (previous != null) {
+            mWasted += previous;
+        }
+        if (value == null) {
+            mValues.remove(key);
+            mRecordSizes.remove(key);
+            //删除记录本身也是可以压缩掉的
+            mWasted += recordSize;
+        } else {
+            mValues.put(key, value);
+            mRecordSizes.put(key, recordSize);
+        }
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        checkRemote();
+        return new HashMap<>(mValues);
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (Set<String>) value : defValues;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (Float) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        checkRemote();
+        Object value = mValues.get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        checkRemote();
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.put(listener, this);
+        }
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * 写入一批修改
+     *
+     * @param modified key 到新值，值为 null 表示删除
+     * @param clear    是否先清空
+     * @param force    是否同步刷到磁盘
+     * @return 是否成功
+     */
+    private boolean write(@NonNull Map<String, Object> modified, boolean clear, boolean force) {
+        synchronized (mLock) {
+            FileLock lock = null;
+            try {
+                lock = lock();
+                catchUp();
+            } catch (IOException e) {
+                e.printStackTrace();
+                release(lock);
+                return false;
+            }
+            try {
+                if (clear) {
+                    for (String key : new ArrayList<>(mValues.keySet())) {
+                        byte[] record = RecordCodec.encode(key, null);
+                        append(record);
+                        updateMemory(key, null, record.length);
+                    }
+                }
+                for (Map.Entry<String, Object> entry : modified.entrySet()) {
+                    String key = entry.getKey();
+                    Object value = entry.getValue();
+                    if (value == null && !mValues.containsKey(key)) {
+                        continue;
+                    }
+                    byte[] record = RecordCodec.encode(key, value);
+                    append(record);
+                    updateMemory(key, value, record.length);
+                }
+                mBuffer.putInt(OFFSET_END, mEnd);
+                if (force) {
+                    mBuffer.force();
+                }
+                if (mMultiProcess) {
+                    mMeta.putInt(META_SEQ, mSeq + 1);
+                    mSeq++;
+                }
+                if (!mCompactPending && needCompact()) {
+                    mCompactPending = true;
+                    getCompactor().execute(mCompactRunnable);
+                }
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                //头部的末尾位置还没更新，重新回放就回到这批修改之前的状态
+                try {
+                    reload();
+                } catch (IOException reloadError) {
+                    reloadError.printStackTrace();
+                }
+                return false;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * 被覆盖的旧记录超过一页，并且占了一半以上
+     */
+    private boolean needCompact() {
+        return mWasted > PAGE_SIZE && mWasted >= (mEnd - HEADER_SIZE) / 2;
+    }
+
+    /**
+     * 空间不够时只扩容，压缩留给后台线程
+     */
+    private void append(@NonNull byte[] record) throws IOException {
+        if (mEnd + record.length > mBuffer.capacity()) {
+            long required = (long) mEnd + record.length;
+            long size = Math.max((long) mBuffer.capacity() * 2, roundToPage(required));
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Store too large: " + required);
+            }
+            map(size);
+        }
+        mBuffer.position(mEnd);
+        mBuffer.put(record);
+        mEnd += record.length;
+    }
+
+    /**
+     * 只保留当前的值重写文件：写到临时文件再 rename，中途失败不影响原文件。
+     * <p>
+     * 写入时会在后台自动调用；也可以在空闲时主动调用，会在调用线程执行，只在取快照和最后 rename 时持锁
+     *
+     * @return 是否压缩成功
+     */
+    public boolean compact() {
+        synchronized (mCompactLock) {
+            return compactLocked(false);
+        }
+    }
+
+    /**
+     * @param onlyIfNeeded 后台压缩排队期间可能已经压缩过，这时不再重复
+     */
+    private boolean compactLocked(boolean onlyIfNeeded) {
+        Map<String, Object> values;
+        int snapshotEnd;
+        int snapshotWasted;
+        int generation;
+        synchronized (mLock) {
+            FileLock lock = null;
+            try {
+                lock = lock();
+                catchUp();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false;
+            } finally {
+                release(lock);
+            }
+            if (onlyIfNeeded && !needCompact()) {
+                return true;
+            }
+            values = new HashMap<>(mValues);
+            snapshotEnd = mEnd;
+            snapshotWasted = mWasted;
+            generation = mGeneration;
+        }
+
+        //多进程时各自压缩，临时文件不能重名
+        File tmp = null;
+        RandomAccessFile out = null;
+        try {
+            tmp = File.createTempFile(mFile.getName(), ".tmp", mFile.getParentFile());
+            out = new RandomAccessFile(tmp, "rw");
+            ByteArrayOutputStream records = new ByteArrayOutputStream(Math.max(snapshotEnd - snapshotWasted, 0));
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                byte[] record = RecordCodec.encode(entry.getKey(), entry.getValue());
+                records.write(record, 0, record.length);
+            }
+            out.seek(HEADER_SIZE);
+            out.write(records.toByteArray());
+            return finishCompact(tmp, out, HEADER_SIZE + records.size(), snapshotEnd, snapshotWasted, generation);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            FileUtils.close(out);
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * 持锁补上快照之后追加的记录，然后用临时文件替换原文件
+     */
+    private boolean finishCompact(@NonNull File tmp, @NonNull RandomAccessFile out, long size, int snapshotEnd,
+                                  int snapshotWasted, int generation) throws IOException {
+        synchronized (mLock) {
+            FileLock lock = null;
+            try {
+                lock = lock();
+                catchUp();
+                if (mGeneration != generation || mEnd < snapshotEnd) {
+                    //其他进程已经压缩过
+                    return false;
+                }
+                int tail = mEnd - snapshotEnd;
+                if (tail > 0) {
+                    byte[] bytes = new byte[tail];
+                    mBuffer.position(snapshotEnd);
+                    mBuffer.get(bytes);
+                    out.write(bytes);
+                }
+                long end = size + tail;
+                long capacity = Math.max(PAGE_SIZE, roundToPage(end + end / 2));
+                if (capacity > Integer.MAX_VALUE) {
+                    throw new IOException("Store too large: " + end);
+                }
+                out.seek(0);
+                out.write(new RecordCodec.Writer(HEADER_SIZE)
+                        .writeInt(MAGIC).writeInt(VERSION).writeInt(0).writeInt((int) end).toByteArray());
+                out.getFD().sync();
+                out.close();
+
+                if (mMultiProcess) {
+                    //先换代再 rename：rename 之后进程被杀时，其他进程也一定会重新打开新文件，
+                    //不会继续往已经被替换掉的旧文件追加；rename 失败时多一次重新加载，没有影响
+                    mGeneration++;
+                    mMeta.putInt(META_GENERATION, mGeneration);
+                    mMeta.putInt(META_SEQ, mSeq + 1);
+                    mSeq++;
+                }
+                FileUtils.close(mRaf);
+                mRaf = null;
+                if (!tmp.renameTo(mFile)) {
+                    map(Math.max(PAGE_SIZE, roundToPage(mFile.length())));
+                    throw new IOException("Rename failed: " + tmp);
+                }
+                map(capacity);
+                mEnd = (int) end;
+                //快照之后产生的旧记录还留在新文件里
+                mWasted -= snapshotWasted;
+                return true;
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    @NonNull
+    /**
+     * 等待已经安排的后台压缩都做完，测试删除临时目录前调用
+     */
+    static void awaitCompactions() throws InterruptedException {
+        try {
+            //单线程按顺序执行，排在最后的空任务做完时前面的都做完了
+            getCompactor().submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ExecutorService getCompactor() {
+        if (sCompactor == null) {
+            synchronized (MmapPreferences.class) {
+                if (sCompactor == null) {
+                    sCompactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "MmapSpCompact");
+                            thread.setDaemon(true);
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return sCompactor;
+    }
+
+    private static long roundToPage(long size) {
+        return (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    private void notifyListeners(@NonNull final List<String> keys) {
+        final List<OnSharedPreferenceChangeListener> listeners;
+        synchronized (mListeners) {
+            if (mListeners.isEmpty() || keys.isEmpty()) {
+                return;
+            }
+            listeners = new ArrayList<>(mListeners.keySet());
+        }
+        Runnable notify = new Runnable() {
+            @Override
+            public void run() {
+                for (String key : keys) {
+                    for (OnSharedPreferenceChangeListener listener : listeners) {
+                        listener.onSharedPreferenceChanged(MmapPreferences.this, key);
+                    }
+                }
+            }
+        };
+        //和系统实现一样，在主线程回调
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notify.run();
+        } else {
+            new Handler(Looper.getMainLooper()).post(notify);
+        }
+    }
+
+    private final class EditorImpl implements Editor {
+        private final Map<String, Object> mModified = new HashMap<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        private Editor put(String key, @Nullable Object value) {
+            synchronized (this) {
+                mModified.put(key, value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        private boolean write(boolean force) {
+            Map<String, Object> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            boolean result = MmapPreferences.this.write(modified, clear, force);
+            //失败时已经回到这批修改之前的状态，不能通知
+            if (result) {
+                notifyListeners(new ArrayList<>(modified.keySet()));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_BOOLEAN;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_FLOAT;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_INT;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_LONG;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_REMOVE;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_STRING;
+import static top.shixinzhang.utils.sp.MmapPreferences.TYPE_STRING_SET;
+import static top.shixinzhang.utils.sp.MmapPreferences.UTF_8;
+
+/**
+ * <br> Description: {@link MmapPreferences} 记录的编解码，大端序
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+final class RecordCodec {
+
+    private static final int MAX_KEY_BYTES = 0xFFFF;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * 编码一条完整的记录（含长度和 CRC）
+     *
+     * @param value null 表示删除
+     */
+    @NonNull
+    static byte[] encode(@NonNull String key, @Nullable Object value) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key too long: " + keyBytes.length + " bytes");
+        }
+        Writer writer = new Writer(32 + keyBytes.length);
+        writer.writeInt(0).writeInt(0);
+        byte type = typeOf(value);
+        writer.writeByte(type);
+        writeKey(writer, keyBytes);
+        if (value != null) {
+            writePayload(writer, type, value);
+        }
+
+        byte[] record = writer.toByteArray();
+        int bodyLength = record.length - 8;
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, bodyLength);
+        putInt(record, 0, bodyLength);
+        putInt(record, 4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * 只编码值：[类型][值]
+     */
+    @NonNull
+    static byte[] encodeValue(@NonNull Object value) {
+        byte type = typeOf(value);
+        Writer writer = new Writer(16);
+        writer.writeByte(type);
+        writePayload(writer, type, value);
+        return writer.toByteArray();
+    }
+
+    /**
+     * 解码 {@link #encodeValue} 的结果
+     */
+    @NonNull
+    static Object decodeValue(@NonNull byte[] bytes) {
+        Reader reader = new Reader(bytes);
+        return reader.readValue(reader.readByte());
+    }
+
+    private static byte typeOf(@Nullable Object value) {
+        if (value == null) {
+            return TYPE_REMOVE;
+        } else if (value instanceof String) {
+            return TYPE_STRING;
+        } else if (value instanceof Integer) {
+            return TYPE_INT;
+        } else if (value instanceof Long) {
+            return TYPE_LONG;
+        } else if (value instanceof Float) {
+            return TYPE_FLOAT;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        } else if (value instanceof Set) {
+            return TYPE_STRING_SET;
+        }
+        throw new IllegalArgumentException("Unsupported type: " + value.getClass().getName());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writePayload(@NonNull Writer writer, byte type, @NonNull Object value) {
+        switch (type) {
+            case TYPE_STRING:
+                writer.writeBytes(((String) value).getBytes(UTF_8));
+                break;
+            case TYPE_INT:
+                writer.writeInt((Integer) value);
+                break;
+            case TYPE_LONG:
+                writer.writeLong((Long) value);
+                break;
+            case TYPE_FLOAT:
+                writer.writeInt(Float.floatToIntBits((Float) value));
+                break;
+            case TYPE_BOOLEAN:
+                writer.writeByte((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case TYPE_STRING_SET:
+                Set<String> set = (Set<String>) value;
+                writer.writeInt(set.size());
+                for (String item : set) {
+                    writer.writeBytes(item.getBytes(UTF_8));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static void writeKey(@NonNull Writer writer, @NonNull byte[] keyBytes) {
+        writer.writeByte((byte) (keyBytes.length >>> 8)).writeByte((byte) keyBytes.length);
+        writer.write(keyBytes);
+    }
+
+    static void putInt(@NonNull byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    /**
+     * 可增长的字节数组
+     */
+    static final class Writer {
+        private byte[] mBuffer;
+        private int mLength;
+
+        Writer(int capacity) {
+            mBuffer = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int extra) {
+            if (mLength + extra > mBuffer.length) {
+                byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+                System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+                mBuffer = buffer;
+            }
+        }
+
+        Writer writeByte(byte value) {
+            ensure(1);
+            mBuffer[mLength++] = value;
+            return this;
+        }
+
+        Writer writeInt(int value) {
+            ensure(4);
+            putInt(mBuffer, mLength, value);
+            mLength += 4;
+            return this;
+        }
+
+        Writer writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            return writeInt((int) value);
+        }
+
+        Writer write(@NonNull byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+            mLength += bytes.length;
+            return this;
+        }
+
+        /**
+         * 带长度前缀
+         */
+        Writer writeBytes(@NonNull byte[] bytes) {
+            return writeInt(bytes.length).write(bytes);
+        }
+
+        @NonNull
+        byte[] toByteArray() {
+            if (mLength == mBuffer.length) {
+                return mBuffer;
+            }
+            byte[] result = new byte[mLength];
+            System.arraycopy(mBuffer, 0, result, 0, mLength);
+            return result;
+        }
+    }
+
+    /**
+     * 读取一条记录的 body（从类型开始）
+     */
+    static final class Reader {
+        private final byte[] mBuffer;
+        private int mPosition;
+
+        Reader(@NonNull byte[] buffer) {
+            mBuffer = buffer;
+        }
+
+        byte readByte() {
+            return mBuffer[mPosition++];
+        }
+
+        int readInt() {
+            int value = (mBuffer[mPosition] & 0xFF) << 24 | (mBuffer[mPosition + 1] & 0xFF) << 16
+                    | (mBuffer[mPosition + 2] & 0xFF) << 8 | (mBuffer[mPosition + 3] & 0xFF);
+            mPosition += 4;
+            return value;
+        }
+
+        long readLong() {
+            return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+        }
+
+        @NonNull
+        String readKey() {
+            int length = (readByte() & 0xFF) << 8 | (readByte() & 0xFF);
+            String key = new String(mBuffer, mPosition, length, UTF_8);
+            mPosition += length;
+            return key;
+        }
+
+        @NonNull
+        String readString() {
+            int length = readInt();
+            String value = new String(mBuffer, mPosition, length, UTF_8);
+            mPosition += length;
+            return value;
+        }
+
+        @NonNull
+        Object readValue(byte type) {
+            switch (type) {
+                case TYPE_STRING:
+                    return readString();
+                case TYPE_INT:
+                    return readInt();
+                case TYPE_LONG:
+                    return readLong();
+                case TYPE_FLOAT:
+                    return Float.intBitsToFloat(readInt());
+                case TYPE_BOOLEAN:
+                    return readByte() != 0;
+                case TYPE_STRING_SET:
+                    int size = readInt();
+                    Set<String> set = new HashSet<>(size * 2);
+                    for (int i = 0; i < size; i++) {
+                        set.add(readString());
+                    }
+                    return Collections.unmodifiableSet(set);
+                default:
+                    throw new IllegalArgumentException("Unknown type: " + type);
+            }
+        }
+    }
+}
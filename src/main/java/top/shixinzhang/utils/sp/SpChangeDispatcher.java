@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <br> Description: 合并分发某个 SharedPreferences 的修改
+ * <p>
+ * <br> 每个订阅有自己的 key / 前缀过滤，第一次收到匹配的修改后等待 window 毫秒，
+ * <br> 期间的所有修改合并成一个 key 集合，在订阅者指定的 Executor 上回调一次。
+ * <p>
+ * <br> 和 SharedPreferences 的监听一样，回调对象只被弱引用持有，调用方需要自己持有它，
+ * <br> 被回收后对应的订阅自动失效。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class SpChangeDispatcher implements SharedPreferences.OnSharedPreferenceChangeListener {
+
+    private static volatile ScheduledExecutorService sScheduler;
+
+    @NonNull
+    private final String mName;
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    public SpChangeDispatcher(@NonNull String name) {
+        mName = name;
+    }
+
+    /**
+     * 订阅修改
+     *
+     * @param keys     关心的 key，为 null 时不按 key 过滤
+     * @param prefix   关心的 key 前缀，为 null 时不按前缀过滤；和 keys 同时设置时满足一个即可
+     * @param window   合并的时间窗口，毫秒，界面刷新可以用 16
+     * @param executor 回调所在的线程
+     * @param listener 只被弱引用持有
+     */
+    @NonNull
+    public Subscription subscribe(@Nullable Collection<String> keys, @Nullable String prefix, long window,
+                                  @NonNull Executor executor, @NonNull OnChangesListener listener) {
+        Subscription subscription = new Subscription(keys == null ? null : new HashSet<>(keys), prefix,
+                window, executor, listener);
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * 是否还有有效的订阅
+     */
+    public boolean hasSubscriptions() {
+        prune();
+        return !mSubscriptions.isEmpty();
+    }
+
+    private void prune() {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener.get() == null) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /**
+     * key 为 null 表示被 clear 了
+     */
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, @Nullable String key) {
+        boolean collected = false;
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener.get() == null) {
+                collected = true;
+            } else if (key == null || subscription.matches(key)) {
+                subscription.post(key);
+            }
+        }
+        if (collected) {
+            prune();
+        }
+    }
+
+    @NonNull
+    private static ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            synchronized (SpChangeDispatcher.class) {
+                if (sScheduler == null) {
+                    sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SpChangeDispatch");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return sScheduler;
+    }
+
+    /**
+     * 修改的回调
+     */
+    public interface OnChangesListener {
+        /**
+         * @param name    SharedPreferences 的名字
+         * @param keys    窗口内被修改的 key
+         * @param cleared 窗口内是否被 clear 过，此时 keys 可能不完整
+         */
+        void onChanged(@NonNull String name, @NonNull Set<String> keys, boolean cleared);
+    }
+
+    /**
+     * 一个订阅，调用 {@link #unsubscribe()} 取消
+     */
+    public final class Subscription {
+        @Nullable
+        private final Set<String> mKeys;
+        @Nullable
+        private final String mPrefix;
+        private final long mWindow;
+        @NonNull
+        private final Executor mExecutor;
+        @NonNull
+        private final WeakReference<OnChangesListener> mListener;
+
+        private final Object mLock = new Object();
+        private Set<String> mPending = new HashSet<>();
+        private boolean mCleared;
+        private boolean mScheduled;
+
+        private final Runnable mFlushRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(mDeliverRunnable);
+            }
+        };
+
+        private final Runnable mDeliverRunnable = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        Subscription(@Nullable Set<String> keys, @Nullable String prefix, long window,
+                     @NonNull Executor executor, @NonNull OnChangesListener listener) {
+            mKeys = keys;
+            mPrefix = prefix;
+            mWindow = window;
+            mExecutor = executor;
+            mListener = new WeakReference<>(listener);
+        }
+
+        boolean matches(@NonNull String key) {
+            if (mKeys == null && mPrefix == null) {
+                return true;
+            }
+            return mKeys != null && mKeys.contains(key) || mPrefix != null && key.startsWith(mPrefix);
+        }
+
+        void post(@Nullable String key) {
+            synchronized (mLock) {
+                if (key == null) {
+                    mCleared = true;
+                } else {
+                    mPending.add(key);
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            getScheduler().schedule(mFlushRunnable, mWindow, TimeUnit.MILLISECONDS);
+        }
+
+        private void deliver() {
+            Set<String> keys;
+            boolean cleared;
+            synchronized (mLock) {
+                keys = mPending;
+                cleared = mCleared;
+                mPending = new HashSet<>();
+                mCleared = false;
+                mScheduled = false;
+            }
+            OnChangesListener listener = mListener.get();
+            if (listener == null) {
+                unsubscribe();
+                return;
+            }
+            if (!keys.isEmpty() || cleared) {
+                listener.onChanged(mName, Collections.unmodifiableSet(keys), cleared);
+            }
+        }
+
+        public void unsubscribe() {
+            mSubscriptions.remove(this);
+            mListener.clear();
+        }
+    }
+}
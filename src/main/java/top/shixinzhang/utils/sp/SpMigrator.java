@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import top.shixinzhang.utils.FileUtils;
+
+/**
+ * <br> Description: 把系统 SharedPreferences 的 xml 文件流式迁移到新的存储
+ * <p>
+ * <br> 用 XmlPullParser 边解析边写，每 {@link #BATCH_SIZE} 条提交一次，不会把整个文件读进内存；
+ * <br> 中断后重新运行时跳过新存储里已有的 key，它们要么已经迁移过，要么迁移期间被双写过，新存储里的值更新。
+ * <br> 双写会改写 xml 文件，条目的位置不可靠，所以不按位置记录进度。全部完成后用 rename 原子地写入完成标记。
+ * <br> 迁移期间通过 {@link MigratingPreferences} 读写，新存储里没有的 key 回退到原文件读取；
+ * <br> 迁移期间被修改过的 key 不会再被 xml 里的旧值覆盖。
+ * <p>
+ * <br> 迁移完成后不会删除原 xml 文件。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class SpMigrator implements Runnable {
+
+    public static final int BATCH_SIZE = 500;
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_RUNNING = 1;
+    public static final int STATE_COMPLETED = 2;
+    public static final int STATE_FAILED = 3;
+
+    @NonNull
+    private final File mXmlFile;
+    @NonNull
+    private final SharedPreferences mTarget;
+    @NonNull
+    private final File mDoneFile;
+    @Nullable
+    private final Runnable mOnCompleted;
+
+    /**
+     * 迁移期间被修改过的 key
+     */
+    private final Set<String> mTouchedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile boolean mCleared;
+    private volatile int mState;
+    private volatile int mMigrated;
+
+    /**
+     * @param xmlFile     原 xml 文件，一般是 data/data/包名/shared_prefs/名字.xml
+     * @param target      新存储
+     * @param stateFile   完成标记的文件前缀，会生成 .migrated 文件
+     * @param onCompleted 完成后在迁移线程回调
+     */
+    public SpMigrator(@NonNull File xmlFile, @NonNull SharedPreferences target, @NonNull File stateFile,
+                      @Nullable Runnable onCompleted) {
+        mXmlFile = xmlFile;
+        mTarget = target;
+        mDoneFile = new File(stateFile.getPath() + ".migrated");
+        mOnCompleted = onCompleted;
+        mState = mDoneFile.exists() ? STATE_COMPLETED : STATE_PENDING;
+    }
+
+    public boolean isCompleted() {
+        return mState == STATE_COMPLETED;
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * 本次运行写入的条数
+     */
+    public int getMigratedCount() {
+        return mMigrated;
+    }
+
+    /**
+     * 迁移期间 key 被修改了，不再迁移它。需要持有本对象的锁
+     */
+    void markTouched(@NonNull String key) {
+        mTouchedKeys.add(key);
+    }
+
+    /**
+     * 迁移期间被 clear 了，剩下的都不再迁移。需要持有本对象的锁
+     */
+    void markCleared() {
+        mCleared = true;
+    }
+
+    /**
+     * 在后台线程启动迁移
+     */
+    public void start() {
+        if (isCompleted()) {
+            return;
+        }
+        Thread thread = new Thread(this, "SpMigrate-" + mXmlFile.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    @WorkerThread
+    public void run() {
+        synchronized (this) {
+            if (mState == STATE_COMPLETED || mState == STATE_RUNNING) {
+                return;
+            }
+            mState = STATE_RUNNING;
+        }
+        try {
+            if (mXmlFile.exists()) {
+                migrate();
+            }
+            writeAtomically(mDoneFile, String.valueOf(System.currentTimeMillis()));
+            mState = STATE_COMPLETED;
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            e.printStackTrace();
+            mState = STATE_FAILED;
+            return;
+        }
+        if (mOnCompleted != null) {
+            mOnCompleted.run();
+        }
+    }
+
+    private void migrate() throws IOException, XmlPullParserException {
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(mXmlFile), 16 * 1024);
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(in, "UTF-8");
+
+            Map<String, Object> batch = new HashMap<>(BATCH_SIZE * 2);
+            int event = parser.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                //<map> 的直接子节点才是数据
+                if (event == XmlPullParser.START_TAG && parser.getDepth() == 2) {
+                    String key = parser.getAttributeValue(null, "name");
+                    Object value = readValue(parser);
+                    if (key != null && value != null) {
+                        batch.put(key, value);
+                    }
+                    if (batch.size() >= BATCH_SIZE) {
+                        commit(batch);
+                        batch.clear();
+                    }
+                }
+                event = parser.next();
+            }
+            commit(batch);
+        } finally {
+            FileUtils.close(in);
+        }
+    }
+
+    /**
+     * 提交一批，和 {@link MigratingPreferences} 的写入互斥。
+     * 跳过迁移期间被修改过的 key，以及新存储里已经有的 key（上次运行迁移过，或者被双写过）
+     */
+    private void commit(@NonNull Map<String, Object> batch) throws IOException {
+        synchronized (this) {
+            if (mCleared || batch.isEmpty()) {
+                return;
+            }
+            SharedPreferences.Editor editor = mTarget.edit();
+            int count = 0;
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                if (!mTouchedKeys.contains(key) && !mTarget.contains(key)) {
+                    put(editor, key, entry.getValue());
+                    count++;
+                }
+            }
+            if (count > 0 && !editor.commit()) {
+                throw new IOException("Commit failed after " + mMigrated + " keys");
+            }
+            mMigrated += count;
+        }
+    }
+
+    /**
+     * 读取当前节点的值，string 和 set 读完后停在节点的 END_TAG 上
+     */
+    @Nullable
+    private static Object readValue(@NonNull XmlPullParser parser) throws IOException, XmlPullParserException {
+        String tag = parser.getName();
+        switch (tag) {
+            case "string":
+                return parser.nextText();
+            case "int":
+                return Integer.parseInt(parser.getAttributeValue(null, "value"));
+            case "long":
+                return Long.parseLong(parser.getAttributeValue(null, "value"));
+            case "float":
+                return Float.parseFloat(parser.getAttributeValue(null, "value"));
+            case "boolean":
+                return Boolean.parseBoolean(parser.getAttributeValue(null, "value"));
+            case "set":
+                Set<String> set = new HashSet<>();
+                int event;
+                while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (event == XmlPullParser.END_TAG && parser.getDepth() == 2) {
+                        break;
+                    }
+                    if (event == XmlPullParser.START_TAG && "string".equals(parser.getName())) {
+                        set.add(parser.nextText());
+                    }
+                }
+                return set;
+            default:
+                //<null> 等
+                return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void put(@NonNull SharedPreferences.Editor editor, @NonNull String key, @NonNull Object value) {
+        if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    /**
+     * 写临时文件再 rename
+     */
+    private static void writeAtomically(@NonNull File file, @NonNull String content) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(content.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            FileUtils.close(out);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Rename failed: " + tmp);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Description: 在后台线程并行预加载多个 SharedPreferences 文件
+ * <p>
+ * <br> 每个文件一个 {@link Task}，启动时提交；第一次读取时如果还没加载完，读取线程等待对应的 Task，
+ * <br> 不会再重复加载。Task 记录了排队、加载、读取方等待的耗时，用来衡量预加载省下的启动时间。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class SpPreloader {
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_LOADING = 1;
+    public static final int STATE_LOADED = 2;
+    public static final int STATE_FAILED = 3;
+
+    private static final int THREADS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    private static final ConcurrentHashMap<String, Task> sTasks = new ConcurrentHashMap<>();
+    private static volatile ThreadPoolExecutor sExecutor;
+
+    private SpPreloader() {
+    }
+
+    /**
+     * 提交加载任务，同一个 name 只会提交一次
+     *
+     * @param loader 在后台线程执行，需要把文件完整读入内存后再返回
+     */
+    @NonNull
+    public static Task submit(@NonNull String name, @NonNull Callable<SharedPreferences> loader) {
+        Task task = sTasks.get(name);
+        if (task != null) {
+            return task;
+        }
+        task = new Task(name, loader);
+        Task previous = sTasks.putIfAbsent(name, task);
+        if (previous != null) {
+            return previous;
+        }
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * 如果 name 有预加载任务，等它完成
+     *
+     * @return 加载结果；没有任务或加载失败时返回 null，由调用方自己加载
+     */
+    @Nullable
+    public static SharedPreferences await(@NonNull String name) {
+        Task task = sTasks.get(name);
+        if (task == null) {
+            return null;
+        }
+        return task.await();
+    }
+
+    @Nullable
+    public static Task getTask(@NonNull String name) {
+        return sTasks.get(name);
+    }
+
+    /**
+     * 所有预加载任务，用于统计
+     */
+    @NonNull
+    public static Map<String, Task> getTasks() {
+        return new HashMap<>(sTasks);
+    }
+
+    @NonNull
+    private static ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            synchronized (SpPreloader.class) {
+                if (sExecutor == null) {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 10, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SpPreload-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                    //启动后就用不到了，空闲时线程全部退出
+                    executor.allowCoreThreadTimeOut(true);
+                    sExecutor = executor;
+                }
+            }
+        }
+        return sExecutor;
+    }
+
+    /**
+     * 一个文件的加载任务
+     */
+    public static final class Task extends FutureTask<SharedPreferences> {
+        @NonNull
+        private final String mName;
+        private final long mSubmitNanos = System.nanoTime();
+        private volatile long mStartNanos;
+        private volatile long mEndNanos;
+        private final AtomicLong mWaitNanos = new AtomicLong();
+        private final AtomicInteger mWaiters = new AtomicInteger();
+
+        Task(@NonNull String name, @NonNull Callable<SharedPreferences> loader) {
+            super(loader);
+            mName = name;
+        }
+
+        @Override
+        public void run() {
+            mStartNanos = System.nanoTime();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            mEndNanos = System.nanoTime();
+        }
+
+        @Nullable
+        SharedPreferences await() {
+            if (!isDone()) {
+                long start = System.nanoTime();
+                mWaiters.incrementAndGet();
+                try {
+                    return get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (ExecutionException e) {
+                    return null;
+                } finally {
+                    mWaitNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+            try {
+                return get();
+            } catch (InterruptedException | ExecutionException e) {
+                return null;
+            }
+        }
+
+        @NonNull
+        public String getName() {
+            return mName;
+        }
+
+        public int getState() {
+            if (!isDone()) {
+                return mStartNanos == 0 ? STATE_PENDING : STATE_LOADING;
+            }
+            try {
+                get();
+                return STATE_LOADED;
+            } catch (InterruptedException | ExecutionException e) {
+                return STATE_FAILED;
+            }
+        }
+
+        /**
+         * 提交到开始执行的耗时
+         */
+        public long getQueueMillis() {
+            long start = mStartNanos;
+            return start == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(start - mSubmitNanos);
+        }
+
+        /**
+         * 加载本身的耗时，未完成时返回 0
+         */
+        public long getLoadMillis() {
+            long start = mStartNanos;
+            long end = mEndNanos;
+            return start == 0 || end == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(end - start);
+        }
+
+        /**
+         * 读取方因为加载未完成而等待的总耗时；和 getLoadMillis 的差值约等于预加载省下的时间
+         */
+        public long getWaitMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(mWaitNanos.get());
+        }
+
+        /**
+         * 等待过的读取次数
+         */
+        public int getWaiterCount() {
+            return mWaiters.get();
+        }
+
+        @Override
+        public String toString() {
+            return mName + ": state=" + getState() + " queue=" + getQueueMillis() + "ms load=" + getLoadMillis()
+                    + "ms wait=" + getWaitMillis() + "ms waiters=" + getWaiterCount();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import top.shixinzhang.utils.FileUtils;
+
+/**
+ * <br> Description: 大字符串单独存文件的 SharedPreferences
+ * <p>
+ * <br> 长度超过 mThreshold 的字符串写到 mDir 下的单独文件，SharedPreferences 里只存一个很短的引用，
+ * <br> 这样主文件一直很小，每次写入重写的内容也少。读取时才加载文件，加载后的值用弱引用缓存。
+ * <p>
+ * <br> 大字符串的文件在调用 apply / commit 的线程上同步写入，不要在主线程写大值。
+ * <br> 每次写入都用新文件名，进程中途被杀不会读到写了一半的内容。commit 成功后才删除被覆盖的旧文件；
+ * <br> apply 不知道什么时候落盘，旧文件留着，和其他遗留的无用文件一起用 {@link #removeOrphanFiles()} 清理。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class SpillPreferences implements WrappedPreferences {
+
+    /**
+     * 引用的前缀，以控制字符开头，不会和正常的字符串冲突
+     */
+    private static final String REF_PREFIX = "\u0001spill:";
+    private static final String FILE_SUFFIX = ".val";
+
+    @NonNull
+    private final SharedPreferences mDelegate;
+    @NonNull
+    private final File mDir;
+    private final int mThreshold;
+    /**
+     * 文件名到已加载的值
+     */
+    private final ConcurrentHashMap<String, WeakReference<String>> mCache = new ConcurrentHashMap<>();
+
+    /**
+     * @param dir       存放大字符串的目录，不要和其他用途共用
+     * @param threshold 超过多少个字符的字符串单独存放
+     */
+    public SpillPreferences(@NonNull SharedPreferences delegate, @NonNull File dir, int threshold) {
+        mDelegate = delegate;
+        mDir = dir;
+        mThreshold = threshold;
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences getDelegate() {
+        return mDelegate;
+    }
+
+    private static boolean isRef(@Nullable String value) {
+        return value != null && value.startsWith(REF_PREFIX);
+    }
+
+    /**
+     * 读取引用指向的值，文件丢失时返回 null
+     */
+    @Nullable
+    private String load(@NonNull String ref) {
+        String fileName = ref.substring(REF_PREFIX.length());
+        WeakReference<String> cached = mCache.get(fileName);
+        String value = cached == null ? null : cached.get();
+        if (value != null) {
+            return value;
+        }
+        StringBuilder content = FileUtils.readFile(new File(mDir, fileName).getPath(), "UTF-8");
+        if (content == null) {
+            return null;
+        }
+        value = content.toString();
+        mCache.put(fileName, new WeakReference<>(value));
+        return value;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>(mDelegate.getAll());
+        for (Map.Entry<String, Object> entry : all.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof String && isRef((String) value)) {
+                entry.setValue(load((String) value));
+            }
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        String value = mDelegate.getString(key, defValue);
+        if (!isRef(value)) {
+            return value;
+        }
+        String loaded = load(value);
+        return loaded == null ? defValue : loaded;
+    }
+
+    @Nullable
+    @Override
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        return mDelegate.getStringSet(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return mDelegate.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return mDelegate.getLong(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return mDelegate.getFloat(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return mDelegate.getBoolean(key, defValue);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mDelegate.contains(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl(mDelegate.edit());
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * 删除没有被引用的文件，比如进程在写完文件、写入引用之前被杀时留下的
+     *
+     * @return 删除的文件数
+     */
+    public int removeOrphanFiles() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        Set<String> referenced = new HashSet<>();
+        synchronized (this) {
+            for (Object value : mDelegate.getAll().values()) {
+                if (value instanceof String && isRef((String) value)) {
+                    referenced.add(((String) value).substring(REF_PREFIX.length()));
+                }
+            }
+            int count = 0;
+            for (File file : files) {
+                if (!referenced.contains(file.getName()) && file.delete()) {
+                    mCache.remove(file.getName());
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 写临时文件再 rename
+     */
+    private void writeFile(@NonNull String fileName, @NonNull String value) throws IOException {
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            throw new IOException("Can't create " + mDir);
+        }
+        File tmp = new File(mDir, fileName + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(value.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            FileUtils.close(out);
+        }
+        if (!tmp.renameTo(new File(mDir, fileName))) {
+            throw new IOException("Rename failed: " + tmp);
+        }
+    }
+
+    private void deleteFile(@NonNull String ref) {
+        String fileName = ref.substring(REF_PREFIX.length());
+        mCache.remove(fileName);
+        new File(mDir, fileName).delete();
+    }
+
+    /**
+     * 大字符串先记下来，提交时再写文件，其他修改直接交给底层的 Editor
+     */
+    private final class EditorImpl implements Editor {
+        @NonNull
+        private final Editor mEditor;
+        /**
+         * 本次修改过的 key，值为要单独存放的大字符串，其他修改为 null
+         */
+        private final Map<String, String> mModified = new HashMap<>();
+        private boolean mClear;
+
+        EditorImpl(@NonNull Editor editor) {
+            mEditor = editor;
+        }
+
+        private Editor touch(String key, @Nullable String large) {
+            synchronized (this) {
+                mModified.put(key, large);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            if (value != null && value.length() > mThreshold) {
+                return touch(key, value);
+            }
+            mEditor.putString(key, value);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            mEditor.putStringSet(key, values);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            mEditor.putInt(key, value);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            mEditor.putLong(key, value);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            mEditor.putFloat(key, value);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mEditor.putBoolean(key, value);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mEditor.remove(key);
+            return touch(key, null);
+        }
+
+        @Override
+        public Editor clear() {
+            mEditor.clear();
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            return write(true);
+        }
+
+        @Override
+        public void apply() {
+            write(false);
+        }
+
+        private boolean write(boolean commit) {
+            Map<String, String> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            synchronized (SpillPreferences.this) {
+                //被覆盖或删除的旧文件，commit 成功后再删；apply 时不删，留给 removeOrphanFiles
+                List<String> stale = new ArrayList<>();
+                if (commit && clear) {
+                    for (Object value : mDelegate.getAll().values()) {
+                        if (value instanceof String && isRef((String) value)) {
+                            stale.add((String) value);
+                        }
+                    }
+                } else if (commit) {
+                    for (String key : modified.keySet()) {
+                        String old;
+                        try {
+                            old = mDelegate.getString(key, null);
+                        } catch (ClassCastException e) {
+                            //旧值不是字符串
+                            continue;
+                        }
+                        if (isRef(old)) {
+                            stale.add(old);
+                        }
+                    }
+                }
+                for (Map.Entry<String, String> entry : modified.entrySet()) {
+                    String large = entry.getValue();
+                    if (large == null) {
+                        continue;
+                    }
+                    String fileName = UUID.randomUUID().toString() + FILE_SUFFIX;
+                    try {
+                        writeFile(fileName, large);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                    mCache.put(fileName, new WeakReference<>(large));
+                    mEditor.putString(entry.getKey(), REF_PREFIX + fileName);
+                }
+                if (!commit) {
+                    mEditor.apply();
+                    return true;
+                }
+                boolean result = mEditor.commit();
+                if (result) {
+                    for (String ref : stale) {
+                        deleteFile(ref);
+                    }
+                }
+                return result;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+/**
+ * <br> Description: 包装另一个 SharedPreferences 的实现，比如延迟写入、加密、过期、大值分离。
+ * <p>
+ * <br> 多层包装时沿 {@link #getDelegate()} 可以找到其中任意一层。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public interface WrappedPreferences extends SharedPreferences {
+
+    /**
+     * 被包装的下一层
+     */
+    @NonNull
+    SharedPreferences getDelegate();
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <br> Description: 延迟合并写入的 SharedPreferences
+ * <p>
+ * <br> apply 只写进内存中的覆盖层，读取先查覆盖层，所以马上能读到新值；
+ * <br> 第一次出现脏数据后最多 mDelayMillis 把所有脏 key 用一个 Editor 写进底层实现。
+ * <br> 适合每秒写好几次的计数器、时间戳。{@link #flush()} 立即写入，{@link #sync()} 同步写到磁盘，
+ * <br> 在 onPause / onStop 里调用避免进程被杀时丢数据。
+ * <p>
+ * <br> 底层的 OnSharedPreferenceChangeListener 在真正写入时才回调。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public class WriteBehindPreferences implements WrappedPreferences {
+
+    /**
+     * 覆盖层里表示已删除
+     */
+    private static final Object REMOVED = new Object();
+
+    private static volatile ScheduledExecutorService sScheduler;
+
+    @NonNull
+    private final SharedPreferences mDelegate;
+    private final long mDelayMillis;
+    private final ConcurrentHashMap<String, Object> mOverlay = new ConcurrentHashMap<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Object mFlushLock = new Object();
+    private final AtomicLong mWriteCount = new AtomicLong();
+    private final AtomicLong mFlushCount = new AtomicLong();
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param delayMillis 脏数据最多在内存里停留的时间
+     */
+    public WriteBehindPreferences(@NonNull SharedPreferences delegate, long delayMillis) {
+        mDelegate = delegate;
+        mDelayMillis = delayMillis;
+    }
+
+    @NonNull
+    @Override
+    public SharedPreferences getDelegate() {
+        return mDelegate;
+    }
+
+    @Override
+    public Map<String, ?> getAll() {
+        Map<String, Object> all = new HashMap<>(mDelegate.getAll());
+        for (Map.Entry<String, Object> entry : mOverlay.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                all.remove(entry.getKey());
+            } else {
+                all.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return all;
+    }
+
+    @Nullable
+    @Override
+    public String getString(String key, @Nullable String defValue) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getString(key, defValue);
+        }
+        return value == REMOVED ? defValue : (String) value;
+    }
+
+    @Nullable
+    @Override
+    @SuppressWarnings("unchecked")
+    public Set<String> getStringSet(String key, @Nullable Set<String> defValues) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getStringSet(key, defValues);
+        }
+        return value == REMOVED ? defValues : (Set<String>) value;
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getInt(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Integer) value;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getLong(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Long) value;
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getFloat(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Float) value;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = mOverlay.get(key);
+        if (value == null) {
+            return mDelegate.getBoolean(key, defValue);
+        }
+        return value == REMOVED ? defValue : (Boolean) value;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Object value = mOverlay.get(key);
+        return value == null ? mDelegate.contains(key) : value != REMOVED;
+    }
+
+    @Override
+    public Editor edit() {
+        return new EditorImpl();
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        mDelegate.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * 立即把脏数据用一个 Editor apply 到底层实现
+     */
+    public void flush() {
+        write(false);
+    }
+
+    /**
+     * 把脏数据同步写到磁盘，不要在主线程调用
+     *
+     * @return 是否成功
+     */
+    @WorkerThread
+    public boolean sync() {
+        return write(true);
+    }
+
+    private boolean write(boolean commit) {
+        synchronized (mFlushLock) {
+            mScheduled.set(false);
+            if (mOverlay.isEmpty()) {
+                return !commit || mDelegate.edit().commit();
+            }
+            Map<String, Object> dirty = new HashMap<>(mOverlay);
+            Editor editor = mDelegate.edit();
+            for (Map.Entry<String, Object> entry : dirty.entrySet()) {
+                putValue(editor, entry.getKey(), entry.getValue());
+            }
+            boolean result = true;
+            if (commit) {
+                result = editor.commit();
+            } else {
+                editor.apply();
+            }
+            mFlushCount.incrementAndGet();
+            //写入期间又被修改的 key 留在覆盖层，等下一次
+            for (Map.Entry<String, Object> entry : dirty.entrySet()) {
+                mOverlay.remove(entry.getKey(), entry.getValue());
+            }
+            if (!mOverlay.isEmpty()) {
+                schedule();
+            }
+            return result;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void putValue(@NonNull Editor editor, @NonNull String key, @NonNull Object value) {
+        if (value == REMOVED) {
+            editor.remove(key);
+        } else if (value instanceof String) {
+            editor.putString(key, (String) value);
+        } else if (value instanceof Integer) {
+            editor.putInt(key, (Integer) value);
+        } else if (value instanceof Long) {
+            editor.putLong(key, (Long) value);
+        } else if (value instanceof Float) {
+            editor.putFloat(key, (Float) value);
+        } else if (value instanceof Boolean) {
+            editor.putBoolean(key, (Boolean) value);
+        } else {
+            editor.putStringSet(key, (Set<String>) value);
+        }
+    }
+
+    private void schedule() {
+        if (mScheduled.compareAndSet(false, true)) {
+            getScheduler().schedule(mFlushRunnable, mDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 通过 apply / commit 写入的次数
+     */
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    /**
+     * 真正写到底层实现的次数
+     */
+    public long getFlushCount() {
+        return mFlushCount.get();
+    }
+
+    @NonNull
+    private static ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            synchronized (WriteBehindPreferences.class) {
+                if (sScheduler == null) {
+                    sScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable runnable) {
+                            Thread thread = new Thread(runnable, "SpWriteBehind");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+            }
+        }
+        return sScheduler;
+    }
+
+    private final class EditorImpl implements Editor {
+        private final Map<String, Object> mModified = new HashMap<>();
+        private boolean mClear;
+
+        @Override
+        public Editor putString(String key, @Nullable String value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putStringSet(String key, @Nullable Set<String> values) {
+            return put(key, values == null ? null : Collections.unmodifiableSet(new HashSet<>(values)));
+        }
+
+        @Override
+        public Editor putInt(String key, int value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putLong(String key, long value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putFloat(String key, float value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            return put(key, value);
+        }
+
+        @Override
+        public Editor remove(String key) {
+            return put(key, null);
+        }
+
+        private Editor put(String key, @Nullable Object value) {
+            synchronized (this) {
+                mModified.put(key, value == null ? REMOVED : value);
+            }
+            return this;
+        }
+
+        @Override
+        public Editor clear() {
+            synchronized (this) {
+                mClear = true;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean commit() {
+            apply();
+            return sync();
+        }
+
+        @Override
+        public void apply() {
+            Map<String, Object> modified;
+            boolean clear;
+            synchronized (this) {
+                modified = new HashMap<>(mModified);
+                clear = mClear;
+                mModified.clear();
+                mClear = false;
+            }
+            mWriteCount.incrementAndGet();
+            if (clear) {
+                //clear 很少用，直接作用到底层，覆盖层里的旧值一起丢掉
+                synchronized (mFlushLock) {
+                    mOverlay.clear();
+                    mDelegate.edit().clear().apply();
+                }
+            }
+            if (!modified.isEmpty()) {
+                mOverlay.putAll(modified);
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.JsonSyntaxException;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <br> Description: {@link GsonUtils} 流式读取 json 数组
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class GsonUtilsTest {
+
+    /**
+     * close 时抛 IOException 的 Reader
+     */
+    private static final class IOFailingCloseReader extends Reader {
+        private final StringReader mReader;
+        boolean mClosed;
+
+        IOFailingCloseReader(String s) {
+            mReader = new StringReader(s);
+        }
+
+        @Override
+        public int read(@NonNull char[] buffer, int offset, int length) throws IOException {
+            return mReader.read(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mClosed = true;
+            throw new IOException("close failed");
+        }
+    }
+
+    @Test
+    public void forEachReadsAllElements() {
+        final List<Integer> values = new ArrayList<>();
+        int count = GsonUtils.forEachInArray(new StringReader("[1, 2, 3]"), Integer.class,
+                new GsonUtils.ElementCallback<Integer>() {
+                    @Override
+                    public boolean onElement(Integer element) {
+                        values.add(element);
+                        return element < 2;
+                    }
+                });
+        assertEquals(2, count);
+        assertEquals(Arrays.asList(1, 2), values);
+    }
+
+    @Test
+    public void forEachBatchSplitsLastBatch() {
+        final List<Integer> sizes = new ArrayList<>();
+        int count = GsonUtils.forEachBatchInArray(new StringReader("[1,2,3,4,5]"), Integer.class, 2,
+                new GsonUtils.BatchCallback<Integer>() {
+                    @Override
+                    public boolean onBatch(@NonNull List<Integer> batch) {
+                        sizes.add(batch.size());
+                        return true;
+                    }
+                });
+        assertEquals(5, count);
+        assertEquals(Arrays.asList(2, 2, 1), sizes);
+    }
+
+    @Test
+    public void nullArrayHasNoElements() {
+        assertEquals(0, GsonUtils.forEachInArray(new StringReader("null"), String.class,
+                new GsonUtils.ElementCallback<String>() {
+                    @Override
+                    public boolean onElement(String element) {
+                        fail();
+                        return false;
+                    }
+                }));
+    }
+
+    @Test
+    public void lenientLikeFromJson() {
+        final List<String> values = new ArrayList<>();
+        GsonUtils.forEachInArray(new StringReader("['a', b, \"c\"]"), String.class,
+                new GsonUtils.ElementCallback<String>() {
+                    @Override
+                    public boolean onElement(String element) {
+                        values.add(element);
+                        return true;
+                    }
+                });
+        assertEquals(Arrays.asList("a", "b", "c"), values);
+    }
+
+    @Test
+    public void closeFailureDoesNotDiscardResult() {
+        IOFailingCloseReader reader = new IOFailingCloseReader("[1, 2]");
+        int count = GsonUtils.forEachBatchInArray(reader, Integer.class, 10,
+                new GsonUtils.BatchCallback<Integer>() {
+                    @Override
+                    public boolean onBatch(@NonNull List<Integer> batch) {
+                        return true;
+                    }
+                });
+        assertEquals(2, count);
+        assertTrue(reader.mClosed);
+    }
+
+    @Test
+    public void closeFailureDoesNotMaskParseError() {
+        IOFailingCloseReader reader = new IOFailingCloseReader("[1, {]");
+        try {
+            GsonUtils.forEachInArray(reader, Integer.class, new GsonUtils.ElementCallback<Integer>() {
+                @Override
+                public boolean onElement(Integer element) {
+                    return true;
+                }
+            });
+            fail();
+        } catch (JsonSyntaxException expected) {
+            assertTrue(reader.mClosed);
+        }
+    }
+}
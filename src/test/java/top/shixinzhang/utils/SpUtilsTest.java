@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils;
+
+import android.content.Context;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import top.shixinzhang.utils.sp.EncryptedPreferences;
+import top.shixinzhang.utils.sp.ExpiringPreferences;
+import top.shixinzhang.utils.sp.MigratingPreferences;
+import top.shixinzhang.utils.sp.MmapPreferences;
+import top.shixinzhang.utils.sp.SpillPreferences;
+import top.shixinzhang.utils.sp.WriteBehindPreferences;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <br> Description: {@link SpUtils} 的删除、清空、批量修改、多层包装和迁移
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpUtilsTest {
+
+    /**
+     * 绕过 SpUtils 的缓存重新获取，只能看到已经 apply / commit 的修改
+     */
+    private static boolean stored(Context context, String spName, String key) {
+        return context.getSharedPreferences(spName, Context.MODE_PRIVATE).contains(key);
+    }
+
+    @Test
+    public void removeDataFromDefault() {
+        Context context = RuntimeEnvironment.application;
+        SpUtils.saveDataInDefault(context, "remove_me", "value");
+        assertEquals("value", SpUtils.getDataFromDefault(context, "remove_me", ""));
+
+        SpUtils.removeData(context, "remove_me");
+        assertEquals("", SpUtils.getDataFromDefault(context, "remove_me", ""));
+    }
+
+    @Test
+    public void removeDataIsWritten() {
+        Context context = RuntimeEnvironment.application;
+        SpUtils.saveData(context, "sp_remove", "a", "value_a");
+        SpUtils.saveData(context, "sp_remove", "b", "value_b");
+        assertTrue(stored(context, "sp_remove", "a"));
+
+        SpUtils.removeData(context, "sp_remove", "a");
+        assertFalse(stored(context, "sp_remove", "a"));
+        assertTrue(stored(context, "sp_remove", "b"));
+    }
+
+    @Test
+    public void clearIsWritten() {
+        Context context = RuntimeEnvironment.application;
+        SpUtils.saveData(context, "sp_clear", "a", "value_a");
+        assertTrue(stored(context, "sp_clear", "a"));
+
+        SpUtils.clear(context, "sp_clear");
+        assertFalse(stored(context, "sp_clear", "a"));
+    }
+
+    @Test
+    public void transactionAppliesAllMutations() {
+        Context context = RuntimeEnvironment.application;
+        SpUtils.saveData(context, "sp_tx", "old", 1);
+        assertTrue(SpUtils.edit(context, "sp_tx")
+                .put("string", "s")
+                .putInt("int", 2)
+                .putDouble("double", 0.5)
+                .remove("old")
+                .commit());
+
+        assertEquals("s", SpUtils.getString(context, "sp_tx", "string", null));
+        assertEquals(2, SpUtils.getInt(context, "sp_tx", "int", 0));
+        assertEquals(0.5, SpUtils.getDouble(context, "sp_tx", "double", 0), 0);
+        assertFalse(stored(context, "sp_tx", "old"));
+    }
+
+    @Test
+    public void wrappersAreFoundBelowOtherWrappers() {
+        Context context = RuntimeEnvironment.application;
+        WriteBehindPreferences writeBehind = SpUtils.useWriteBehind(context, "sp_chain", 60 * 1000L);
+        SpillPreferences spill = SpUtils.useSpill(context, "sp_chain", 1024);
+        ExpiringPreferences expiring = SpUtils.useExpiry(context, "sp_chain");
+        assertSame(expiring, SpUtils.getPreferences(context, "sp_chain"));
+
+        //已经在链上的包装不会再叠一层
+        assertSame(writeBehind, SpUtils.useWriteBehind(context, "sp_chain", 1000L));
+        assertSame(spill, SpUtils.useSpill(context, "sp_chain", 1024));
+        assertSame(expiring, SpUtils.useExpiry(context, "sp_chain"));
+        assertSame(expiring, SpUtils.getPreferences(context, "sp_chain"));
+        assertSame(spill, expiring.getDelegate());
+        assertSame(writeBehind, spill.getDelegate());
+
+        //延迟写入在最底下，flushAll 也要能找到
+        SpUtils.saveData(context, "sp_chain", "a", "value");
+        assertEquals("value", SpUtils.getString(context, "sp_chain", "a", null));
+        assertFalse(stored(context, "sp_chain", "a"));
+        SpUtils.flushAll();
+        assertTrue(stored(context, "sp_chain", "a"));
+
+        SpUtils.saveData(context, "sp_chain", "b", "value");
+        assertTrue(SpUtils.syncAll());
+        assertTrue(stored(context, "sp_chain", "b"));
+    }
+
+    @Test
+    public void migrationRefusesToDropWrappers() {
+        Context context = RuntimeEnvironment.application;
+        WriteBehindPreferences writeBehind = SpUtils.useWriteBehind(context, "sp_migrate_wrapped", 60 * 1000L);
+        try {
+            SpUtils.migrateToMmapStore(context, "sp_migrate_wrapped");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertSame(writeBehind, SpUtils.getPreferences(context, "sp_migrate_wrapped"));
+    }
+
+    @Test
+    public void wrappersStayOnTopOfMigration() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        assertTrue(SpUtils.migrateToMmapStore(context, "sp_migrate"));
+        WriteBehindPreferences writeBehind = SpUtils.useWriteBehind(context, "sp_migrate", 60 * 1000L);
+        MigratingPreferences migrating = (MigratingPreferences) writeBehind.getDelegate();
+        //已经在迁移，不会再开始一次
+        assertTrue(SpUtils.migrateToMmapStore(context, "sp_migrate"));
+        assertSame(migrating, writeBehind.getDelegate());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!migrating.getMigrator().isCompleted() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(migrating.getMigrator().isCompleted());
+        //完成后外面的包装还在，沿链能找到新存储
+        assertSame(writeBehind, SpUtils.getPreferences(context, "sp_migrate"));
+        SpUtils.saveData(context, "sp_migrate", "a", "value");
+        assertTrue(SpUtils.syncAll());
+        assertEquals("value", ((MmapPreferences) migrating.getDelegate()).getString("a", null));
+    }
+
+    @Test
+    public void ttlWritesGoThroughWriteBehind() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        WriteBehindPreferences writeBehind = SpUtils.useWriteBehind(context, "sp_ttl_chain", 60 * 1000L);
+        SpUtils.saveData(context, "sp_ttl_chain", "token", "value", 200);
+        SpUtils.saveData(context, "sp_ttl_chain", "name", "kept");
+        ExpiringPreferences expiring = (ExpiringPreferences) SpUtils.getPreferences(context, "sp_ttl_chain");
+        assertSame(writeBehind, expiring.getDelegate());
+        //写进了延迟写入的覆盖层，还没落盘
+        assertEquals("value", SpUtils.getString(context, "sp_ttl_chain", "token", null));
+        assertFalse(stored(context, "sp_ttl_chain", "token"));
+
+        //落盘不会清掉过期时间
+        assertTrue(SpUtils.syncAll());
+        assertTrue(stored(context, "sp_ttl_chain", "token"));
+        assertTrue(expiring.getExpireAt("token") > 0);
+
+        Thread.sleep(300);
+        assertEquals("default", SpUtils.getString(context, "sp_ttl_chain", "token", "default"));
+        assertEquals("kept", SpUtils.getString(context, "sp_ttl_chain", "name", null));
+        //事务拿到的是最外层的 Editor，可以设置过期时间
+        assertTrue(SpUtils.edit(context, "sp_ttl_chain").put("token", "again").expireAfter("token", 0).commit());
+        assertEquals("default", SpUtils.getString(context, "sp_ttl_chain", "token", "default"));
+
+        try {
+            SpUtils.useSpill(context, "sp_ttl_chain", 1024);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertSame(expiring, SpUtils.getPreferences(context, "sp_ttl_chain"));
+    }
+
+    @Test
+    public void spillRefusesToWrapEncryption() {
+        Context context = RuntimeEnvironment.application;
+        byte[] kek = new byte[32];
+        assertTrue(SpUtils.useEncryptedStore(context, "sp_spill_encrypted",
+                new EncryptedPreferences.AesKeyWrapper(new SecretKeySpec(kek, "AES"))));
+        try {
+            SpUtils.useSpill(context, "sp_spill_encrypted", 1024);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertTrue(SpUtils.getPreferences(context, "sp_spill_encrypted") instanceof EncryptedPreferences);
+    }
+}
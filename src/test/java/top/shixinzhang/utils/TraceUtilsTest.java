@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link TraceUtils} 在开关切换时 begin / end 的配对
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class TraceUtilsTest {
+
+    @Before
+    public void setUp() {
+        TraceUtils.reset();
+        TraceUtils.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        TraceUtils.setEnabled(false);
+        TraceUtils.reset();
+    }
+
+    private static TraceUtils.Stats stats(String name) {
+        for (TraceUtils.Stats stats : TraceUtils.getStats()) {
+            if (stats.name.equals(name)) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void disabledBeginInsideSectionDoesNotStealItsEnd() throws Exception {
+        TraceUtils.begin("outer");
+        TraceUtils.setEnabled(false);
+        TraceUtils.begin("inner");
+        TraceUtils.setEnabled(true);
+        TraceUtils.end();
+        Thread.sleep(20);
+        TraceUtils.end();
+
+        assertEquals(null, stats("inner"));
+        TraceUtils.Stats outer = stats("outer");
+        assertEquals(1, outer.count);
+        assertTrue(outer.totalNanos >= 20 * 1000 * 1000L);
+    }
+
+    @Test
+    public void endAfterDisablePopsTheSection() {
+        TraceUtils.begin("outer");
+        TraceUtils.setEnabled(false);
+        TraceUtils.end();
+        TraceUtils.setEnabled(true);
+        TraceUtils.begin("next");
+        TraceUtils.end();
+        //多出来的 end 不应该再弹出任何东西
+        TraceUtils.end();
+
+        assertEquals(1, stats("outer").count);
+        assertEquals(1, stats("next").count);
+    }
+
+    @Test
+    public void beginWhileDisabledThenEnabled() {
+        TraceUtils.setEnabled(false);
+        TraceUtils.begin("skipped");
+        TraceUtils.setEnabled(true);
+        TraceUtils.begin("a");
+        TraceUtils.end();
+        TraceUtils.end();
+        TraceUtils.begin("b");
+        TraceUtils.end();
+
+        assertEquals(null, stats("skipped"));
+        assertEquals(1, stats("a").count);
+        assertEquals(1, stats("b").count);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * <br> Description: {@link CachedClock} 的格式、按秒缓存和时区切换
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class CachedClockTest {
+
+    private TimeZone mDefaultZone;
+
+    @Before
+    public void setUp() {
+        mDefaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    @Test
+    public void matchesSimpleDateFormat() {
+        long now = System.currentTimeMillis();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault());
+        for (long time : new long[]{now, now + 1, now + 999, now + 1000, 5, 1508380800007L}) {
+            assertEquals(format.format(new Date(time)),
+                    CachedClock.appendWithMillis(new StringBuilder(), time).toString());
+        }
+        assertEquals("1969-12-31 23:59:59.999", CachedClock.appendWithMillis(new StringBuilder(), -1).toString());
+    }
+
+    @Test
+    public void reusesTextWithinSecond() {
+        String first = CachedClock.format(1508380800123L);
+        assertSame(first, CachedClock.format(1508380800999L));
+        assertEquals("2017-10-19 02:40:00", first);
+    }
+
+    @Test
+    public void followsDefaultTimeZoneChange() {
+        assertEquals("2017-10-19 02:40:00", CachedClock.format(1508380800000L));
+
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+08:00"));
+        assertEquals("2017-10-19 10:40:01", CachedClock.format(1508380801000L));
+
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        assertEquals("2017-10-19 02:40:02", CachedClock.format(1508380802000L));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link LogChunker} 分段后按 logcat 的行还原
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class LogChunkerTest {
+
+    private static String multiLineLog(int lines) {
+        StringBuilder builder = new StringBuilder();
+        Random random = new Random(42);
+        for (int i = 0; i < lines; i++) {
+            builder.append("line ").append(i).append(" 中文 \\path\\to\\file ");
+            for (int j = random.nextInt(80); j > 0; j--) {
+                builder.append((char) ('a' + random.nextInt(26)));
+            }
+            builder.append(i % 7 == 0 ? "\r\n" : "\n");
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 模拟 logcat：含换行的消息会被拆成多行
+     */
+    private static List<String> toLogcatLines(String log) throws Exception {
+        List<String> lines = new ArrayList<>();
+        int[] ends = LogChunker.split(log, LogChunker.MAX_CHUNK_BYTES);
+        int id = LogChunker.nextId();
+        int start = 0;
+        for (int i = 0; i < ends.length; i++) {
+            String chunk = LogChunker.chunk(log, start, ends[i], id, i + 1, ends.length);
+            assertTrue(chunk.getBytes("UTF-8").length <= LogChunker.MAX_CHUNK_BYTES + 32);
+            Collections.addAll(lines, chunk.split("\n", -1));
+            start = ends[i];
+        }
+        return lines;
+    }
+
+    @Test
+    public void multiLineLogRoundTrips() throws Exception {
+        String log = multiLineLog(500);
+        assertTrue(LogChunker.needSplit(log, LogChunker.MAX_CHUNK_BYTES));
+        List<String> lines = toLogcatLines(log);
+        assertTrue(lines.size() > 1);
+
+        LogChunker.Reassembler reassembler = new LogChunker.Reassembler();
+        String result = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            assertFalse(line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0);
+            result = reassembler.offer("tag", line);
+            if (i < lines.size() - 1) {
+                assertNull(result);
+            }
+        }
+        assertEquals(log, result);
+    }
+
+    @Test
+    public void interleavedMessagesRoundTrip() throws Exception {
+        String first = multiLineLog(300);
+        String second = multiLineLog(200).replace('a', 'b');
+        List<String> firstLines = toLogcatLines(first);
+        List<String> secondLines = toLogcatLines(second);
+
+        LogChunker.Reassembler reassembler = new LogChunker.Reassembler();
+        List<String> results = new ArrayList<>();
+        for (int i = Math.max(firstLines.size(), secondLines.size()) - 1; i >= 0; i--) {
+            if (i < firstLines.size()) {
+                String result = reassembler.offer("tag", firstLines.get(i));
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+            if (i < secondLines.size()) {
+                String result = reassembler.offer("tag", secondLines.get(i));
+                if (result != null) {
+                    results.add(result);
+                }
+            }
+        }
+        assertEquals(2, results.size());
+        assertTrue(results.contains(first));
+        assertTrue(results.contains(second));
+    }
+
+    @Test
+    public void plainLinePassesThrough() {
+        LogChunker.Reassembler reassembler = new LogChunker.Reassembler();
+        assertEquals("hello \\n world", reassembler.offer(null, "hello \\n world"));
+        assertEquals("[#x 1/2] bad", reassembler.offer(null, "[#x 1/2] bad"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import top.shixinzhang.utils.LogUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * <br> Description: 崩溃时 {@link LogCrashHandler} 把上传器内存里的批次写入 spool 目录
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LogCrashHandlerTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Thread.UncaughtExceptionHandler mOriginal;
+
+    @After
+    public void tearDown() {
+        LogUtils.setLogUploader(null);
+        if (mOriginal != null) {
+            Thread.setDefaultUncaughtExceptionHandler(mOriginal);
+        }
+    }
+
+    private static int count(File dir, String suffix) {
+        String[] names = dir.list();
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(suffix)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void crashSpoolsPendingBatch() throws Exception {
+        File spool = mFolder.newFolder("spool");
+        File reports = mFolder.newFolder("reports");
+        LogUploader uploader = new LogUploader(null, spool, new LogUploader.Transport() {
+            @Override
+            public void upload(File batch) throws IOException {
+                throw new IOException("offline");
+            }
+        });
+        //定时任务不会在测试期间触发，批次只可能是崩溃时写入的
+        uploader.setFlushInterval(60 * 60 * 1000L);
+        LogUtils.setLogUploader(uploader);
+        for (int i = 0; i < 10; i++) {
+            uploader.enqueue("tag", "message " + i, LogUtils.INFO);
+        }
+
+        final AtomicReference<Throwable> delivered = new AtomicReference<>();
+        mOriginal = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable throwable) {
+                delivered.set(throwable);
+            }
+        });
+        LogCrashHandler handler = LogCrashHandler.install(reports, LogCrashHandler.DEFAULT_DEADLINE_MILLIS);
+        RuntimeException crash = new RuntimeException("boom");
+        handler.uncaughtException(Thread.currentThread(), crash);
+
+        assertSame(crash, delivered.get());
+        assertEquals(1, count(spool, ".gz"));
+        assertEquals(1, count(reports, ".txt"));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import top.shixinzhang.utils.LogUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link LogEvent} 的 JSON 编码、对象复用，以及不输出日志时交给 LogUploader
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LogEventTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 记下每个事件的 JSON 文本和对象本身
+     */
+    private static final class CollectingSink implements LogEvent.Sink {
+        final List<String> mLines = new ArrayList<>();
+        final List<LogEvent> mEvents = new ArrayList<>();
+
+        @Override
+        public void write(@NonNull LogEvent event) {
+            String line = new String(event.getBuffer(), 0, event.getLength(), Charset.forName("UTF-8"));
+            assertTrue(line.endsWith("\n"));
+            assertEquals(line.substring(0, line.length() - 1), event.toString());
+            mLines.add(event.toString());
+            mEvents.add(event);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        LogUtils.setDebug(true);
+        LogUtils.setLogUploader(null);
+    }
+
+    private static JsonObject parse(String json) {
+        return new JsonParser().parse(json).getAsJsonObject();
+    }
+
+    @Test
+    public void commonFields() {
+        CollectingSink sink = new CollectingSink();
+        long before = System.currentTimeMillis();
+        LogEvent.obtain("Login", LogUtils.WARN, sink).log();
+
+        JsonObject json = parse(sink.mLines.get(0));
+        assertEquals("W", json.get("level").getAsString());
+        assertEquals("Login", json.get("tag").getAsString());
+        long ts = json.get("ts").getAsLong();
+        assertTrue(ts >= before && ts <= System.currentTimeMillis());
+    }
+
+    @Test
+    public void escapesStrings() {
+        CollectingSink sink = new CollectingSink();
+        String value = "quote\" backslash\\ newline\n cr\r tab\t bell\u0007 中文 emoji😀";
+        LogEvent.obtain("t", LogUtils.INFO, sink).put("s", value).put("k\"ey", "v").put("null", (String) null).log();
+
+        String line = sink.mLines.get(0);
+        assertFalse(line.contains("\n"));
+        assertTrue(line.contains("\\u0007"));
+        JsonObject json = parse(line);
+        assertEquals(value, json.get("s").getAsString());
+        assertEquals("v", json.get("k\"ey").getAsString());
+        assertTrue(json.get("null").isJsonNull());
+    }
+
+    @Test
+    public void encodesNumbersAndBooleans() {
+        CollectingSink sink = new CollectingSink();
+        LogEvent.obtain("t", LogUtils.INFO, sink)
+                .put("zero", 0L).put("neg", -42L).put("min", Long.MIN_VALUE).put("max", Long.MAX_VALUE)
+                .put("whole", 3.0).put("frac", 1.5).put("nan", Double.NaN).put("inf", Double.POSITIVE_INFINITY)
+                .put("yes", true).put("no", false)
+                .log();
+
+        String line = sink.mLines.get(0);
+        assertTrue(line.contains("\"zero\":0,"));
+        assertTrue(line.contains("\"neg\":-42,"));
+        assertTrue(line.contains("\"whole\":3,"));
+        assertTrue(line.contains("\"yes\":true,"));
+        assertTrue(line.endsWith("\"no\":false}"));
+        JsonObject json = parse(line);
+        assertEquals(Long.MIN_VALUE, json.get("min").getAsLong());
+        assertEquals(Long.MAX_VALUE, json.get("max").getAsLong());
+        assertEquals(1.5, json.get("frac").getAsDouble(), 0);
+        assertTrue(json.get("nan").isJsonNull());
+        assertTrue(json.get("inf").isJsonNull());
+    }
+
+    @Test
+    public void reusesPooledEvents() {
+        CollectingSink sink = new CollectingSink();
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("0123456789");
+        }
+        LogEvent.obtain("first", LogUtils.INFO, sink).put("large", large.toString()).put("extra", 1L).log();
+        LogEvent.obtain("second", LogUtils.DEBUG, sink).put("n", 2L).log();
+
+        //回收后再取出的是同一个对象，上一条的内容不能残留
+        assertSame(sink.mEvents.get(0), sink.mEvents.get(1));
+        JsonObject second = parse(sink.mLines.get(1));
+        assertEquals("second", second.get("tag").getAsString());
+        assertEquals(2, second.get("n").getAsLong());
+        assertFalse(second.has("large"));
+        assertFalse(second.has("extra"));
+        assertEquals(parse(sink.mLines.get(0)).get("large").getAsString(), large.toString());
+    }
+
+    @Test
+    public void disabledEventIsNoop() {
+        LogEvent.DISABLED.put("a", "b").put("n", 1L).put("d", 1.5).put("b", true).log();
+        assertEquals(0, LogEvent.DISABLED.getLength());
+    }
+
+    @Test
+    public void releaseModeRoutesToUploader() throws IOException {
+        File spool = mFolder.newFolder("spool");
+        LogUploader uploader = new LogUploader(null, spool, new LogUploader.Transport() {
+            @Override
+            public void upload(@NonNull File batch) throws IOException {
+                throw new IOException("offline");
+            }
+        });
+        LogUtils.setLogUploader(uploader);
+        LogUtils.setDebug(false);
+
+        LogEvent event = LogUtils.event("Pay");
+        assertFalse(event == LogEvent.DISABLED);
+        event.put("amount", 12L).log();
+        uploader.sealNow();
+
+        File[] batches = spool.listFiles();
+        assertNotNull(batches);
+        assertEquals(1, batches.length);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(batches[0])), "UTF-8"));
+        String line = reader.readLine();
+        reader.close();
+        assertTrue(line, line.contains(" I/Pay: {"));
+        assertTrue(line, line.endsWith("\"amount\":12}"));
+
+        //没有 uploader 时直接丢弃
+        LogUtils.setLogUploader(null);
+        assertSame(LogEvent.DISABLED, LogUtils.event("Pay"));
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link LogLevelFilter} 的精确 / 最长前缀匹配
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class LogLevelFilterTest {
+
+    @Test
+    public void exactTagWinsOverPrefix() {
+        LogLevelFilter filter = new LogLevelFilter(2);
+        filter.setTagPrefixLevel("net", 5);
+        filter.setTagLevel("net.http", 3);
+        assertTrue(filter.isLoggable("net.http", 3));
+        assertFalse(filter.isLoggable("net.dns", 4));
+        assertTrue(filter.isLoggable("other", 2));
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        LogLevelFilter filter = new LogLevelFilter(2);
+        filter.setTagPrefixLevel("a", 3);
+        filter.setTagPrefixLevel("ab", 4);
+        filter.setTagPrefixLevel("abb", 6);
+        filter.setTagPrefixLevel("abd", 7);
+        //不大于 "abc" 的最大前缀是 "abb"，不匹配，要退回到 "ab"
+        assertFalse(filter.isLoggable("abc", 3));
+        assertTrue(filter.isLoggable("abc", 4));
+        assertTrue(filter.isLoggable("abbz", 6));
+        assertFalse(filter.isLoggable("abbz", 5));
+        assertTrue(filter.isLoggable("b", 2));
+        assertTrue(filter.isLoggable("", 2));
+
+        filter.removeTagPrefixLevel("ab");
+        assertTrue(filter.isLoggable("abc", 3));
+    }
+
+    @Test
+    public void matchesBruteForce() {
+        Random random = new Random(7);
+        LogLevelFilter filter = new LogLevelFilter(0);
+        Map<String, Integer> prefixes = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            String prefix = randomTag(random, 1 + random.nextInt(4));
+            int level = random.nextInt(8);
+            prefixes.put(prefix, level);
+            filter.setTagPrefixLevel(prefix, level);
+        }
+        for (int i = 0; i < 20000; i++) {
+            String tag = randomTag(random, random.nextInt(7));
+            assertEquals(tag, expected(prefixes, tag), level(filter, tag));
+        }
+    }
+
+    private static String randomTag(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(3));
+        }
+        return new String(chars);
+    }
+
+    private static int expected(Map<String, Integer> prefixes, String tag) {
+        String best = null;
+        for (String prefix : prefixes.keySet()) {
+            if (tag.startsWith(prefix) && (best == null || prefix.length() > best.length())) {
+                best = prefix;
+            }
+        }
+        return best == null ? 0 : prefixes.get(best);
+    }
+
+    /**
+     * 能输出的最低级别
+     */
+    private static int level(LogLevelFilter filter, String tag) {
+        List<Integer> levels = new ArrayList<>();
+        for (int level = 0; level < 10; level++) {
+            if (filter.isLoggable(tag, level)) {
+                levels.add(level);
+            }
+        }
+        return levels.get(0);
+    }
+}
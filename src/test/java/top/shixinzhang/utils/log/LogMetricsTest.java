@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import top.shixinzhang.utils.LogUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: 通过 LogUtils 打日志，检查 {@link LogMetrics} 的级别计数、丢弃原因和 flush 耗时
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class LogMetricsTest {
+
+    @Before
+    public void setUp() {
+        LogUtils.setDebug(true);
+        LogUtils.setSaveLogToFile(false);
+        LogUtils.resetMetrics();
+    }
+
+    @After
+    public void tearDown() {
+        LogUtils.setDebug(true);
+        LogUtils.setSaveLogToFile(false);
+        LogUtils.clearTagLevels();
+        LogUtils.setRepeatWindow(0);
+        LogUtils.setRateLimit("Burst", 0, 0);
+        LogUtils.setSampleRate(LogUtils.VERBOSE, 1f);
+        LogUtils.flushLog();
+        new File(LogUtils.getLogFilePath()).delete();
+        new File(LogUtils.getLogIndexFilePath()).delete();
+        LogUtils.resetMetrics();
+    }
+
+    @Test
+    public void countsRecordsPerLevel() {
+        for (int i = 0; i < 3; i++) {
+            LogUtils.i("Metrics", "info " + i);
+        }
+        LogUtils.w("Metrics", "warn 1");
+        LogUtils.w("Metrics", "warn 2");
+        LogUtils.e("Metrics", "error");
+
+        LogMetrics.Snapshot snapshot = LogUtils.getMetrics();
+        assertEquals(3, snapshot.records[LogUtils.INFO]);
+        assertEquals(2, snapshot.records[LogUtils.WARN]);
+        assertEquals(1, snapshot.records[LogUtils.ERROR]);
+        assertEquals(0, snapshot.records[LogUtils.DEBUG]);
+        assertEquals("info 0".length() * 3 + "warn 1".length() * 2 + "error".length(), snapshot.logcatChars);
+
+        LogUtils.resetMetrics();
+        assertEquals(0, LogUtils.getMetrics().records[LogUtils.INFO]);
+    }
+
+    @Test
+    public void countsDropsByReason() {
+        LogUtils.i("Metrics", "");
+        LogUtils.setTagLevel("Quiet", LogUtils.WARN);
+        LogUtils.d("Quiet", "filtered");
+        LogUtils.setRepeatWindow(60 * 1000);
+        for (int i = 0; i < 3; i++) {
+            LogUtils.i("Repeat", "same");
+        }
+        LogUtils.setRepeatWindow(0);
+        LogUtils.setRateLimit("Burst", 0.001, 2);
+        for (int i = 0; i < 5; i++) {
+            LogUtils.i("Burst", "burst " + i);
+        }
+        LogUtils.setSampleRate(LogUtils.VERBOSE, 0f);
+        LogUtils.v("Sampled", "never");
+        LogUtils.setSampleRate(LogUtils.VERBOSE, 1f);
+        LogUtils.setDebug(false);
+        LogUtils.i("Release", "no uploader");
+
+        LogMetrics.Snapshot snapshot = LogUtils.getMetrics();
+        assertEquals(1, snapshot.drops[LogMetrics.DROP_EMPTY]);
+        assertEquals(1, snapshot.drops[LogMetrics.DROP_LEVEL]);
+        assertEquals(2, snapshot.drops[LogMetrics.DROP_DUPLICATE]);
+        assertEquals(3, snapshot.drops[LogMetrics.DROP_RATE_LIMITED]);
+        assertEquals(1, snapshot.drops[LogMetrics.DROP_SAMPLED]);
+        assertEquals(1, snapshot.drops[LogMetrics.DROP_NO_OUTPUT]);
+        //Repeat 一条，Burst 两条
+        assertEquals(3, snapshot.records[LogUtils.INFO]);
+    }
+
+    @Test
+    public void recordsFlushLatency() {
+        LogUtils.setSaveLogToFile(true);
+        for (int i = 0; i < 200; i++) {
+            LogUtils.i("Metrics", "to file " + i);
+        }
+
+        LogMetrics.Snapshot snapshot = LogUtils.getMetrics();
+        LatencyHistogram.Snapshot flush = snapshot.flushLatency;
+        assertEquals(200, flush.count);
+        assertTrue(flush.maxNanos > 0);
+        assertTrue(flush.percentile(0.5) <= flush.percentile(0.9));
+        assertTrue(flush.percentile(0.9) <= flush.percentile(0.99));
+        assertTrue(flush.percentile(0.99) <= flush.maxNanos);
+        assertTrue(snapshot.fileBytes > 200 * "to file ".length());
+        assertTrue(snapshot.toString().contains("flush(us): count=200"));
+
+        LogUtils.syncLog();
+        assertEquals(1, LogUtils.getMetrics().syncLatency.count);
+    }
+
+    @Test
+    public void histogramPercentilesWithinBucketError() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(1000 * 1000L, snapshot.maxNanos);
+        assertEquals(500500L, snapshot.mean());
+        assertWithin(500 * 1000L, snapshot.percentile(0.5));
+        assertWithin(900 * 1000L, snapshot.percentile(0.9));
+        assertWithin(990 * 1000L, snapshot.percentile(0.99));
+        assertEquals(snapshot.maxNanos, snapshot.percentile(1));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " vs " + expected, actual >= expected && actual <= expected * 1.25);
+    }
+
+    @Test
+    public void stripedCounterSumsAcrossThreads() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 16;
+        final int perThread = 10000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        counter.increment();
+                    }
+                    counter.add(5);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        assertEquals(threads * (perThread + 5L), counter.sum());
+        counter.reset();
+        assertEquals(0, counter.sum());
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+import top.shixinzhang.utils.LogUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: 按 LogUtils.saveLog 的格式生成日志，验证 {@link LogIndex} 跳块和 {@link LogQuery} 的过滤
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class LogQueryTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LEVELS = "??VDIWEA";
+    private static final String[] TAGS = {"Net", "Db", "Ui", "Player", "Push"};
+    private static final long BASE_TIME = 1508380800000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private TimeZone mDefaultZone;
+    private File mLogFile;
+    private File mIndexFile;
+    private LogIndex mIndex;
+    private FileOutputStream mOut;
+    /**
+     * 写入的全部日志，用来计算期望结果
+     */
+    private final List<Expected> mWritten = new ArrayList<>();
+
+    private static final class Expected {
+        final long mTime;
+        final int mLevel;
+        final String mTag;
+        final String mMessage;
+
+        Expected(long time, int level, String tag, String message) {
+            mTime = time;
+            mLevel = level;
+            mTag = tag;
+            mMessage = message;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mDefaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        mLogFile = new File(mFolder.getRoot(), "log.txt");
+        mIndexFile = new File(mFolder.getRoot(), "log.idx");
+        mIndex = LogIndex.open(mLogFile, mIndexFile);
+        mOut = new FileOutputStream(mLogFile, true);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mOut.close();
+        TimeZone.setDefault(mDefaultZone);
+    }
+
+    /**
+     * 和 LogUtils.saveLog 相同的格式
+     */
+    private void write(long time, int level, String tag, String message, boolean indexed) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        CachedClock.append(builder, time);
+        builder.append(' ').append(LEVELS.charAt(level)).append('/').append(tag).append("\n ").append(message).append('\n');
+        byte[] bytes = builder.toString().getBytes(UTF_8);
+        mOut.write(bytes);
+        if (indexed) {
+            mIndex.append(bytes.length, time, level, tag);
+        }
+        mWritten.add(new Expected(time / 1000 * 1000, level, tag, message));
+    }
+
+    /**
+     * 两小时内的日志，约 10 个索引块。前一小时只有 VERBOSE ~ INFO，ERROR 只出现在 Push
+     */
+    private void generate(int count) throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < count; i++) {
+            long time = BASE_TIME + i * 7200L * 1000 / count;
+            boolean firstHour = time < BASE_TIME + 3600 * 1000;
+            String tag = TAGS[random.nextInt(TAGS.length - 1)];
+            int level = LogUtils.VERBOSE + random.nextInt(firstHour ? 3 : 4);
+            if (!firstHour && i % 97 == 0) {
+                tag = "Push";
+                level = LogUtils.ERROR;
+            }
+            StringBuilder message = new StringBuilder("record ").append(i).append(' ');
+            for (int j = random.nextInt(120); j > 0; j--) {
+                message.append((char) ('a' + random.nextInt(26)));
+            }
+            if (i % 50 == 0) {
+                //多行日志，续行看起来像时间但不是完整的头
+                message.append("\n2017-10-19 stack frame\n2017-10-19 02:40:0x not a header\n\tat Foo.bar");
+            }
+            write(time, level, tag, message.toString(), true);
+        }
+    }
+
+    private List<Expected> expected(long from, long to, int minLevel, String tag) {
+        List<Expected> result = new ArrayList<>();
+        for (Expected e : mWritten) {
+            if (e.mTime >= from / 1000 * 1000 && e.mTime <= to && e.mLevel >= minLevel
+                    && (tag == null || tag.equals(e.mTag))) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    private static void assertRecords(List<Expected> expected, List<LogQuery.Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Expected e = expected.get(i);
+            LogQuery.Record r = actual.get(i);
+            assertEquals(CachedClock.format(e.mTime), r.time);
+            assertEquals(e.mLevel, r.level);
+            assertEquals(e.mTag, r.tag);
+            assertEquals(e.mMessage, r.message);
+        }
+    }
+
+    private LogQuery query() {
+        return new LogQuery(mLogFile, mIndexFile);
+    }
+
+    @Test
+    public void indexSplitsIntoBlocks() throws IOException {
+        generate(6000);
+        mIndex.flush();
+        List<LogIndex.Block> blocks = LogIndex.readBlocks(mIndexFile);
+        assertTrue(blocks.size() > 4);
+        long cursor = 0;
+        for (LogIndex.Block block : blocks) {
+            assertEquals(cursor, block.offset);
+            assertTrue(block.firstTime <= block.lastTime);
+            cursor += block.length;
+        }
+        assertEquals(mLogFile.length(), cursor);
+    }
+
+    @Test
+    public void filtersByTimeLevelAndTag() throws IOException {
+        generate(6000);
+        mIndex.flush();
+        long from = BASE_TIME + 1800 * 1000;
+        long to = BASE_TIME + 2700 * 1000;
+
+        assertRecords(mWritten, query().execute());
+        assertRecords(expected(from, to, 0, null), query().timeRange(from, to).execute());
+        assertRecords(expected(Long.MIN_VALUE, Long.MAX_VALUE, LogUtils.WARN, null),
+                query().minLevel(LogUtils.WARN).execute());
+        assertRecords(expected(Long.MIN_VALUE, Long.MAX_VALUE, 0, "Db"), query().tag("Db").execute());
+        assertRecords(expected(BASE_TIME + 3600 * 1000, Long.MAX_VALUE, LogUtils.ERROR, "Push"),
+                query().timeRange(BASE_TIME + 3600 * 1000, Long.MAX_VALUE).minLevel(LogUtils.ERROR).tag("Push").execute());
+        assertEquals(3, query().tag("Net").limit(3).execute().size());
+    }
+
+    @Test
+    public void skipsBlocksThatCannotMatch() throws IOException {
+        generate(6000);
+        mIndex.flush();
+        List<LogIndex.Block> blocks = LogIndex.readBlocks(mIndexFile);
+        LogIndex.Block first = blocks.get(0);
+        assertTrue(first.lastTime < BASE_TIME + 3600 * 1000);
+        assertFalse(first.mayMatch(Long.MIN_VALUE, Long.MAX_VALUE, LogUtils.ERROR, null));
+
+        //改写第一块中间的内容：跳过时读不到，整体扫描时才会出现
+        String fake = "\n2017-10-19 02:40:00 E/Push\n fake\n";
+        RandomAccessFile raf = new RandomAccessFile(mLogFile, "rw");
+        raf.seek(first.length / 2);
+        raf.write(fake.getBytes(UTF_8));
+        raf.close();
+
+        List<Expected> errors = expected(Long.MIN_VALUE, Long.MAX_VALUE, LogUtils.ERROR, null);
+        assertRecords(errors, query().minLevel(LogUtils.ERROR).execute());
+        assertTrue(mIndexFile.delete());
+        assertEquals(errors.size() + 1, query().minLevel(LogUtils.ERROR).execute().size());
+    }
+
+    @Test
+    public void scansGapsAndUnflushedTail() throws IOException {
+        generate(3000);
+        mIndex.flush();
+        //没有写入索引的区域，比如写入失败后重新打开索引前
+        long gapTime = BASE_TIME + 3 * 3600 * 1000;
+        write(gapTime, LogUtils.ERROR, "Gap", "in gap", false);
+        mOut.flush();
+        mIndex = LogIndex.open(mLogFile, mIndexFile);
+        generate(3000);
+        mIndex.flush();
+        //崩溃时最后一块还没写入索引
+        write(gapTime + 1000, LogUtils.ERROR, "Tail", "unflushed", true);
+
+        List<LogQuery.Record> gap = query().tag("Gap").execute();
+        assertEquals(1, gap.size());
+        assertEquals("in gap", gap.get(0).message);
+        List<LogQuery.Record> tail = query().timeRange(gapTime + 1000, Long.MAX_VALUE).execute();
+        assertEquals(1, tail.size());
+        assertEquals("Tail", tail.get(0).tag);
+        assertRecords(expected(Long.MIN_VALUE, Long.MAX_VALUE, LogUtils.ERROR, null),
+                query().minLevel(LogUtils.ERROR).execute());
+    }
+
+    @Test
+    public void dropsIndexLongerThanLog() throws IOException {
+        generate(3000);
+        mIndex.flush();
+        assertFalse(LogIndex.readBlocks(mIndexFile).isEmpty());
+
+        new FileOutputStream(mLogFile).close();
+        LogIndex.open(mLogFile, mIndexFile);
+        assertTrue(LogIndex.readBlocks(mIndexFile).isEmpty());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link LogSuppressor} 的重复合并和汇总补发
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class LogSuppressorTest {
+
+    private LogSuppressor mSuppressor;
+    private final List<String> mSummaries = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mSuppressor = new LogSuppressor();
+        mSuppressor.setSummaryListener(new LogSuppressor.SummaryListener() {
+            @Override
+            public void onSummary(@NonNull String tag, @NonNull String template, int level, int repeated) {
+                mSummaries.add(tag + "/" + template + "/" + level + "x" + repeated);
+            }
+        });
+    }
+
+    @Test
+    public void reportsOnReturnAfterWindow() throws Exception {
+        mSuppressor.setRepeatWindow(50);
+        assertEquals(0, mSuppressor.check("t", "m", 3));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(LogSuppressor.DROP, mSuppressor.check("t", "m", 3));
+        }
+        Thread.sleep(80);
+        //同一条再出现时可能由 sweep 补发，也可能直接返回次数，总数不变
+        int returned = mSuppressor.check("t", "m", 3);
+        assertEquals(4, returned + summarized());
+    }
+
+    @Test
+    public void flushesSummaryWhenBurstStops() throws Exception {
+        mSuppressor.setRepeatWindow(50);
+        mSuppressor.check("t", "m", 3);
+        mSuppressor.check("t", "m", 3);
+        mSuppressor.check("t", "m", 3);
+        Thread.sleep(80);
+        //另一个 key 的检查触发补发
+        assertEquals(0, mSuppressor.check("other", "x", 3));
+        assertEquals(1, mSummaries.size());
+        assertEquals("t/m/3x2", mSummaries.get(0));
+    }
+
+    @Test
+    public void flushSummariesDrainsPendingCounts() {
+        mSuppressor.setRepeatWindow(60000);
+        for (int i = 0; i < 10; i++) {
+            mSuppressor.check("t", "m", 4);
+        }
+        mSuppressor.check("single", "s", 4);
+        mSuppressor.flushSummaries();
+        assertEquals(1, mSummaries.size());
+        assertEquals("t/m/4x9", mSummaries.get(0));
+        //已经汇总过，不会重复
+        mSuppressor.flushSummaries();
+        assertEquals(1, mSummaries.size());
+    }
+
+    @Test
+    public void disablingWindowFlushes() {
+        mSuppressor.setRepeatWindow(60000);
+        mSuppressor.check("t", "m", 4);
+        mSuppressor.check("t", "m", 4);
+        mSuppressor.setRepeatWindow(0);
+        assertEquals(1, mSummaries.size());
+        assertTrue(mSummaries.get(0).endsWith("x1"));
+    }
+
+    private int summarized() {
+        int total = 0;
+        for (String summary : mSummaries) {
+            total += Integer.parseInt(summary.substring(summary.lastIndexOf('x') + 1));
+        }
+        return total;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import top.shixinzhang.utils.LogUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: 用本地 HttpServer 验证 {@link LogUploader} 的分批、失败重试和退避
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class LogUploaderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private URL mUrl;
+    /**
+     * 前几次请求返回 503
+     */
+    private final AtomicInteger mFailuresLeft = new AtomicInteger();
+    private final AtomicInteger mLines = new AtomicInteger();
+    private final List<Integer> mBatchLines = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<Long> mFailedAt = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/log", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (mFailuresLeft.getAndDecrement() > 0) {
+                    mFailedAt.add(System.currentTimeMillis());
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new GZIPInputStream(exchange.getRequestBody()), "UTF-8"));
+                int lines = 0;
+                while (reader.readLine() != null) {
+                    lines++;
+                }
+                mBatchLines.add(lines);
+                mLines.addAndGet(lines);
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/log");
+    }
+
+    @After
+    public void tearDown() {
+        LogUtils.setLogUploader(null);
+        mServer.stop(0);
+    }
+
+    private LogUploader newUploader() {
+        LogUploader uploader = new LogUploader(null, mFolder.getRoot(), new LogUploader.HttpTransport(mUrl));
+        uploader.setMaxBatchRecords(5000);
+        uploader.setFlushInterval(100);
+        uploader.setBackoff(200, 1000);
+        return uploader;
+    }
+
+    private void awaitLines(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (mLines.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void uploadsInBatchesAndRetriesWithBackoff() throws Exception {
+        mFailuresLeft.set(2);
+        LogUploader uploader = newUploader();
+        uploader.start();
+        for (int i = 0; i < 12000; i++) {
+            uploader.enqueue("tag", "message " + i, LogUtils.INFO);
+        }
+        awaitLines(12000);
+        uploader.shutdown();
+
+        assertEquals(12000, mLines.get());
+        //至少 5000 + 5000 + 定时封的 2000，机器慢时定时任务可能提前封批
+        assertTrue(mBatchLines.size() >= 3);
+        for (int lines : mBatchLines) {
+            assertTrue(lines <= 5000);
+        }
+        assertEquals(2, mFailedAt.size());
+        //第二次失败时退避时间翻倍，加上抖动后至少是 base 的一半
+        assertTrue(mFailedAt.get(1) - mFailedAt.get(0) >= 100);
+        //服务端收到请求后上传线程才删除批次文件
+        long deadline = System.currentTimeMillis() + 5000;
+        String[] left = mFolder.getRoot().list();
+        while (left != null && left.length > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            left = mFolder.getRoot().list();
+        }
+        assertEquals(0, left == null ? 0 : left.length);
+    }
+
+    @Test
+    public void startsWhenInstalled() throws Exception {
+        LogUploader uploader = newUploader();
+        LogUtils.setLogUploader(uploader);
+        for (int i = 0; i < 10; i++) {
+            uploader.enqueue("tag", "message " + i, LogUtils.INFO);
+        }
+        //没有手动 start，依赖定时任务封批上传
+        awaitLines(10);
+        assertEquals(10, mLines.get());
+    }
+}
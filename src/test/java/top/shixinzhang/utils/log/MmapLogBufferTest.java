@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.log;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link MmapLogBuffer} 的崩溃恢复和关闭
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class MmapLogBufferTest {
+
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static String read(File file) throws IOException {
+        if (!file.exists()) {
+            return "";
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] line(int i) throws IOException {
+        return ("line " + i + "\n").getBytes("UTF-8");
+    }
+
+    @Test
+    public void recoversUnflushedLinesAfterCrash() throws Exception {
+        File mmap = new File(mFolder.getRoot(), "log.mmap");
+        File log = new File(mFolder.getRoot(), "log.txt");
+        MmapLogBuffer buffer = MmapLogBuffer.open(mmap, log, CAPACITY);
+        assertNotNull(buffer);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            buffer.write(line(i));
+            expected.append("line ").append(i).append('\n');
+        }
+        //没有 flush 就“崩溃”了，内容只在映射文件里
+        assertEquals("", read(log));
+
+        MmapLogBuffer reopened = MmapLogBuffer.open(mmap, log, CAPACITY);
+        assertNotNull(reopened);
+        assertEquals(expected.toString(), read(log));
+
+        //恢复后映射文件被清空，再打开一次不会重复写入
+        MmapLogBuffer.open(mmap, log, CAPACITY).close();
+        assertEquals(expected.toString(), read(log));
+        reopened.close();
+    }
+
+    @Test
+    public void keepsOrderAcrossRegionsAndOversizedWrites() throws Exception {
+        File mmap = new File(mFolder.getRoot(), "log.mmap");
+        File log = new File(mFolder.getRoot(), "log.txt");
+        MmapLogBuffer buffer = MmapLogBuffer.open(mmap, log, CAPACITY);
+        assertNotNull(buffer);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            buffer.write(line(i));
+            expected.append("line ").append(i).append('\n');
+        }
+        char[] big = new char[CAPACITY];
+        Arrays.fill(big, 'x');
+        String oversized = new String(big) + "\n";
+        buffer.write(oversized.getBytes("UTF-8"));
+        expected.append(oversized);
+        buffer.write(line(500));
+        expected.append("line 500\n");
+        buffer.close();
+        assertEquals(expected.toString(), read(log));
+    }
+
+    @Test
+    public void closeStopsFlusherThread() throws Exception {
+        File log = new File(mFolder.getRoot(), "log.txt");
+        int before = countFlusherThreads();
+        for (int cycle = 0; cycle < 5; cycle++) {
+            MmapLogBuffer buffer = MmapLogBuffer.open(new File(mFolder.getRoot(), "log.mmap"), log, CAPACITY);
+            assertNotNull(buffer);
+            //写满一半，启动后台线程
+            for (int i = 0; i < 300; i++) {
+                buffer.write(line(i));
+            }
+            buffer.close();
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (countFlusherThreads() > before && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(countFlusherThreads() > before);
+        assertTrue(read(log).endsWith("line 299\n"));
+    }
+
+    private static int countFlusherThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("MmapLogFlusher".equals(thread.getName()) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * <br> Description: {@link EncryptedPreferences} 的 AES-GCM 往返、篡改检测、监听和提交失败
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class EncryptedPreferencesTest {
+
+    private SharedPreferences mDelegate;
+    private EncryptedPreferences.KeyWrapper mWrapper;
+
+    @Before
+    public void setUp() {
+        mDelegate = RuntimeEnvironment.application.getSharedPreferences("encrypted", Context.MODE_PRIVATE);
+        mWrapper = wrapper((byte) 1);
+    }
+
+    private static EncryptedPreferences.KeyWrapper wrapper(byte seed) {
+        byte[] kek = new byte[32];
+        Arrays.fill(kek, seed);
+        return new EncryptedPreferences.AesKeyWrapper(new SecretKeySpec(kek, "AES"));
+    }
+
+    /**
+     * failing 为 true 时 commit 不写入直接返回失败
+     */
+    private static SharedPreferences failingWhen(final SharedPreferences target, final AtomicBoolean failing) {
+        return (SharedPreferences) Proxy.newProxyInstance(SharedPreferences.class.getClassLoader(),
+                new Class<?>[]{SharedPreferences.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeOn(target, method, args);
+                        if (!"edit".equals(method.getName())) {
+                            return result;
+                        }
+                        final SharedPreferences.Editor editor = (SharedPreferences.Editor) result;
+                        return Proxy.newProxyInstance(SharedPreferences.Editor.class.getClassLoader(),
+                                new Class<?>[]{SharedPreferences.Editor.class}, new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object editorProxy, Method method, Object[] args)
+                                            throws Throwable {
+                                        if ("commit".equals(method.getName()) && failing.get()) {
+                                            return false;
+                                        }
+                                        Object result = invokeOn(editor, method, args);
+                                        return result == editor ? editorProxy : result;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void roundTripsAllTypes() throws Exception {
+        EncryptedPreferences preferences = EncryptedPreferences.create(mDelegate, mWrapper);
+        assertTrue(preferences.edit()
+                .putString("string", "secret 中文")
+                .putInt("int", 42)
+                .putLong("long", -1L)
+                .putFloat("float", 1.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .commit());
+
+        String stored = mDelegate.getString("string", null);
+        assertFalse(stored == null || stored.contains("secret"));
+
+        //新实例没有缓存，走解密
+        EncryptedPreferences reopened = EncryptedPreferences.create(mDelegate, mWrapper);
+        assertEquals("secret 中文", reopened.getString("string", null));
+        assertEquals(42, reopened.getInt("int", 0));
+        assertEquals(-1L, reopened.getLong("long", 0));
+        assertEquals(1.5f, reopened.getFloat("float", 0), 0);
+        assertTrue(reopened.getBoolean("boolean", false));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), reopened.getStringSet("set", null));
+        assertEquals(preferences.getAll(), reopened.getAll());
+        assertFalse(reopened.getAll().containsKey(EncryptedPreferences.KEY_DATA_KEY));
+    }
+
+    @Test
+    public void tamperedOrMovedValuesAreRejected() throws Exception {
+        EncryptedPreferences preferences = EncryptedPreferences.create(mDelegate, mWrapper);
+        assertTrue(preferences.edit().putString("a", "value a").putString("b", "value b").commit());
+
+        String cipherA = mDelegate.getString("a", null);
+        char[] chars = mDelegate.getString("b", null).toCharArray();
+        chars[chars.length / 2] = chars[chars.length / 2] == 'A' ? 'B' : 'A';
+        //a 的密文挪到 c 下，b 的密文被改了一个字符
+        mDelegate.edit().putString("c", cipherA).putString("b", new String(chars)).commit();
+
+        EncryptedPreferences reopened = EncryptedPreferences.create(mDelegate, mWrapper);
+        assertEquals("value a", reopened.getString("a", null));
+        assertNull(reopened.getString("b", null));
+        assertNull(reopened.getString("c", null));
+    }
+
+    @Test
+    public void wrongKeyEncryptionKeyFails() throws Exception {
+        EncryptedPreferences.create(mDelegate, mWrapper).edit().putString("a", "value").commit();
+        try {
+            EncryptedPreferences.create(mDelegate, wrapper((byte) 2));
+            fail();
+        } catch (GeneralSecurityException expected) {
+        }
+    }
+
+    @Test
+    public void listenersSeeThisInstance() throws Exception {
+        final EncryptedPreferences preferences = EncryptedPreferences.create(mDelegate, mWrapper);
+        final List<String> keys = new ArrayList<>();
+        final List<Object> values = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        assertSame(preferences, sharedPreferences);
+                        keys.add(key);
+                        values.add(sharedPreferences.getString(key, null));
+                    }
+                };
+        preferences.registerOnSharedPreferenceChangeListener(listener);
+        preferences.edit().putString("a", "plain").apply();
+        //clear 会重新写入数据密钥，不应该通知
+        preferences.edit().clear().putString("b", "plain b").commit();
+        preferences.unregisterOnSharedPreferenceChangeListener(listener);
+        preferences.edit().putString("c", "ignored").commit();
+
+        assertFalse(keys.contains(EncryptedPreferences.KEY_DATA_KEY));
+        assertFalse(keys.contains("c"));
+        assertTrue(keys.contains("a"));
+        assertEquals("plain", values.get(keys.indexOf("a")));
+        assertEquals("plain b", values.get(keys.lastIndexOf("b")));
+    }
+
+    @Test
+    public void failedCommitRestoresCache() throws Exception {
+        AtomicBoolean failing = new AtomicBoolean();
+        EncryptedPreferences preferences = EncryptedPreferences.create(failingWhen(mDelegate, failing), mWrapper);
+        assertTrue(preferences.edit().putString("a", "before").putInt("n", 1).commit());
+
+        failing.set(true);
+        assertFalse(preferences.edit().putString("a", "after").remove("n").putString("b", "new").commit());
+        assertEquals("before", preferences.getString("a", null));
+        assertEquals(1, preferences.getInt("n", 0));
+        assertFalse(preferences.contains("b"));
+
+        assertFalse(preferences.edit().clear().commit());
+        assertEquals("before", preferences.getString("a", null));
+        assertTrue(preferences.contains("n"));
+
+        failing.set(false);
+        assertTrue(preferences.edit().putString("a", "after").commit());
+        assertEquals("after", EncryptedPreferences.create(mDelegate, mWrapper).getString("a", null));
+    }
+}
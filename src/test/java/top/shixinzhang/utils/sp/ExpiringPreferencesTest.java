@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link ExpiringPreferences} 的读取时过期、后台分批清理和重新打开
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class ExpiringPreferencesTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MmapPreferences mData;
+    private MmapPreferences mMeta;
+
+    @Before
+    public void setUp() throws Exception {
+        mData = MmapPreferences.openUncached(new File(mFolder.getRoot(), "data.kv"), false);
+        mMeta = MmapPreferences.openUncached(new File(mFolder.getRoot(), "data_expiry.kv"), false);
+    }
+
+    private static void awaitEmpty(MmapPreferences preferences, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!preferences.getAll().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    public void expiredKeysReadAsMissing() throws Exception {
+        ExpiringPreferences preferences = new ExpiringPreferences(mData, mMeta);
+        preferences.edit().putString("token", "t").expireAfter("token", 100)
+                .putString("plain", "p").commit();
+        assertEquals("t", preferences.getString("token", null));
+        assertTrue(preferences.getExpireAt("token") > 0);
+
+        Thread.sleep(150);
+        assertNull(preferences.getString("token", null));
+        assertFalse(preferences.contains("token"));
+        assertFalse(preferences.getAll().containsKey("token"));
+        assertEquals("p", preferences.getString("plain", null));
+    }
+
+    @Test
+    public void sweepPurgesInBatches() throws Exception {
+        ExpiringPreferences preferences = new ExpiringPreferences(mData, mMeta);
+        int count = ExpiringPreferences.SWEEP_BATCH * 2 + 50;
+        ExpiringPreferences.ExpiringEditor editor = preferences.edit();
+        for (int i = 0; i < count; i++) {
+            editor.putInt("cooldown_" + i, i).expireAfter("cooldown_" + i, 50);
+        }
+        editor.putInt("keep", 1).commit();
+        assertEquals(count + 1, mData.getAll().size());
+
+        //不读也会被后台清理，底层存储和元数据都删掉
+        awaitEmpty(mMeta, 5000);
+        assertTrue(mMeta.getAll().isEmpty());
+        assertEquals(1, mData.getAll().size());
+        assertEquals(1, mData.getInt("keep", 0));
+    }
+
+    @Test
+    public void rewriteWithoutTtlClearsExpiry() throws Exception {
+        ExpiringPreferences preferences = new ExpiringPreferences(mData, mMeta);
+        preferences.edit().putString("flag", "old").expireAfter("flag", 50).commit();
+        preferences.edit().putString("flag", "new").commit();
+        assertEquals(0, preferences.getExpireAt("flag"));
+
+        Thread.sleep(100);
+        assertEquals("new", preferences.getString("flag", null));
+        assertFalse(mMeta.contains("flag"));
+    }
+
+    @Test
+    public void expiriesSurviveReopen() throws Exception {
+        new ExpiringPreferences(mData, mMeta).edit()
+                .putString("short", "s").expireAfter("short", 100)
+                .putString("long", "l").expireAfter("long", 60 * 60 * 1000L)
+                .commit();
+
+        ExpiringPreferences reopened = new ExpiringPreferences(
+                MmapPreferences.openUncached(new File(mFolder.getRoot(), "data.kv"), false),
+                MmapPreferences.openUncached(new File(mFolder.getRoot(), "data_expiry.kv"), false));
+        assertEquals("s", reopened.getString("short", null));
+        assertTrue(reopened.getExpireAt("long") > System.currentTimeMillis());
+
+        Thread.sleep(150);
+        assertNull(reopened.getString("short", null));
+        assertEquals("l", reopened.getString("long", null));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link MmapPreferences} 多进程模式：另一个实例或另一个 JVM 进程的写入、压缩都能被看到
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class MmapPreferencesMultiProcessTest {
+
+    private static final int CHILD_WRITES = 2000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 子进程入口：参数为文件路径和写入次数
+     */
+    public static void main(String[] args) throws IOException {
+        MmapPreferences preferences = MmapPreferences.openUncached(new File(args[0]), true);
+        int count = Integer.parseInt(args[1]);
+        for (int i = 0; i < count; i++) {
+            preferences.edit().putInt("child_" + i, i).putInt("child_last", i).apply();
+        }
+        preferences.edit().putBoolean("child_done", true).commit();
+    }
+
+    @Test
+    public void readersCatchUpWithOtherInstance() throws Exception {
+        File file = new File(mFolder.getRoot(), "shared.kv");
+        MmapPreferences first = MmapPreferences.openUncached(file, true);
+        MmapPreferences second = MmapPreferences.openUncached(file, true);
+
+        first.edit().putString("a", "1").apply();
+        assertEquals("1", second.getString("a", null));
+
+        second.edit().putString("b", "2").remove("a").apply();
+        assertEquals("2", first.getString("b", null));
+        assertTrue(!first.contains("a"));
+
+        //第一个实例压缩后换了文件，第二个实例要完整重新加载。
+        //同一个 JVM 里两个实例同时加 FileLock 会抛异常，写入量保持在后台压缩的阈值以下
+        String large = new String(new char[500]).replace('\0', 'x');
+        for (int i = 0; i < 5; i++) {
+            first.edit().putString("large", large + i).apply();
+        }
+        assertTrue(first.compact());
+        assertEquals(large + 4, second.getString("large", null));
+        second.edit().putString("c", "3").apply();
+        assertEquals("3", first.getString("c", null));
+        assertEquals(first.getAll(), second.getAll());
+    }
+
+    @Test
+    public void childProcessWritesAreVisible() throws Exception {
+        File file = new File(mFolder.getRoot(), "process.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, true);
+        preferences.edit().putString("parent", "before").commit();
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                MmapPreferencesMultiProcessTest.class.getName(), file.getPath(), String.valueOf(CHILD_WRITES))
+                .redirectErrorStream(true)
+                .inheritIO()
+                .start();
+        //两个进程同时追加
+        for (int i = 0; i < CHILD_WRITES; i++) {
+            preferences.edit().putInt("parent_" + i, i).apply();
+        }
+        assertEquals(0, child.waitFor());
+
+        assertTrue(preferences.getBoolean("child_done", false));
+        assertEquals(CHILD_WRITES - 1, preferences.getInt("child_last", -1));
+        for (int i = 0; i < CHILD_WRITES; i++) {
+            assertEquals(i, preferences.getInt("child_" + i, -1));
+            assertEquals(i, preferences.getInt("parent_" + i, -1));
+        }
+        assertEquals("before", preferences.getString("parent", null));
+        assertEquals(preferences.getAll(), MmapPreferences.openUncached(file, true).getAll());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link MmapPreferences} 的重新打开回放、CRC 截断、压缩和写入失败
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class MmapPreferencesTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final String LARGE = new String(new char[200]).replace('\0', 'x');
+
+    @Test
+    public void replaysAllTypesAfterReopen() throws Exception {
+        File file = new File(mFolder.getRoot(), "types.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        assertTrue(preferences.edit()
+                .putString("string", "中文")
+                .putInt("int", 1)
+                .putLong("long", Long.MAX_VALUE)
+                .putFloat("float", 0.5f)
+                .putBoolean("boolean", true)
+                .putStringSet("set", new HashSet<>(Arrays.asList("a", "b")))
+                .commit());
+        preferences.edit().remove("int").putInt("int2", 2).apply();
+
+        MmapPreferences reopened = MmapPreferences.openUncached(file, false);
+        assertEquals(preferences.getAll(), reopened.getAll());
+        assertFalse(reopened.contains("int"));
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), reopened.getStringSet("set", null));
+    }
+
+    @Test
+    public void truncatesCorruptTail() throws Exception {
+        File file = new File(mFolder.getRoot(), "crc.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        assertTrue(preferences.edit().putString("a", "first").commit());
+        assertTrue(preferences.edit().putString("b", "second").commit());
+
+        //破坏最后一条记录的最后一个字节，模拟写了一半时断电
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(12);
+            int end = raf.readInt();
+            raf.seek(end - 1);
+            int last = raf.read();
+            raf.seek(end - 1);
+            raf.write(last ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        MmapPreferences reopened = MmapPreferences.openUncached(file, false);
+        assertEquals("first", reopened.getString("a", null));
+        assertFalse(reopened.contains("b"));
+
+        //截断后可以继续写
+        assertTrue(reopened.edit().putString("c", "third").commit());
+        MmapPreferences again = MmapPreferences.openUncached(file, false);
+        assertEquals("first", again.getString("a", null));
+        assertFalse(again.contains("b"));
+        assertEquals("third", again.getString("c", null));
+    }
+
+    @Test
+    public void clearPersists() throws Exception {
+        File file = new File(mFolder.getRoot(), "clear.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        preferences.edit().putString("a", "1").putString("b", "2").apply();
+        assertTrue(preferences.edit().clear().putString("c", "3").commit());
+
+        Map<String, ?> all = MmapPreferences.openUncached(file, false).getAll();
+        assertEquals(1, all.size());
+        assertEquals("3", all.get("c"));
+    }
+
+    @Test
+    public void compactsInBackgroundWithoutLosingWrites() throws Exception {
+        File file = new File(mFolder.getRoot(), "compact.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        long largest = 0;
+        for (int i = 0; i < 20000; i++) {
+            preferences.edit().putString("key_" + (i % 10), LARGE + i).putInt("count", i).apply();
+            largest = Math.max(largest, file.length());
+        }
+        //写入时后台压缩和追加交错进行，最后再压缩一次
+        assertTrue(preferences.compact());
+        assertTrue(file.length() < largest);
+
+        MmapPreferences reopened = MmapPreferences.openUncached(file, false);
+        assertEquals(preferences.getAll(), reopened.getAll());
+        assertEquals(19999, reopened.getInt("count", -1));
+        assertEquals(LARGE + 19999, reopened.getString("key_9", null));
+    }
+
+    @Test
+    public void writesAfterCompactionSurviveReopen() throws Exception {
+        File file = new File(mFolder.getRoot(), "after.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        for (int i = 0; i < 100; i++) {
+            preferences.edit().putString("key", LARGE + i).apply();
+        }
+        assertTrue(preferences.compact());
+        preferences.edit().putString("after", "value").remove("missing").apply();
+
+        MmapPreferences reopened = MmapPreferences.openUncached(file, false);
+        assertEquals(LARGE + 99, reopened.getString("key", null));
+        assertEquals("value", reopened.getString("after", null));
+    }
+
+    @Test
+    public void failedWriteRollsBackWithoutNotifying() throws Exception {
+        File file = new File(mFolder.getRoot(), "failed.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        assertTrue(preferences.edit().putString("a", "before").commit());
+        final List<String> changed = new ArrayList<>();
+        SharedPreferences.OnSharedPreferenceChangeListener listener =
+                new SharedPreferences.OnSharedPreferenceChangeListener() {
+                    @Override
+                    public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+                        changed.add(key);
+                    }
+                };
+        preferences.registerOnSharedPreferenceChangeListener(listener);
+
+        //关掉文件，需要扩容时重新映射失败
+        Field raf = MmapPreferences.class.getDeclaredField("mRaf");
+        raf.setAccessible(true);
+        ((RandomAccessFile) raf.get(preferences)).close();
+        String large = new String(new char[8192]).replace('\0', 'y');
+        assertFalse(preferences.edit().putString("a", "after").putString("b", large).commit());
+
+        assertTrue(changed.isEmpty());
+        assertEquals("before", preferences.getString("a", null));
+        assertFalse(preferences.contains("b"));
+
+        //重新加载后可以继续写，成功时才通知
+        assertTrue(preferences.edit().putString("a", "again").commit());
+        assertEquals(Arrays.asList("a"), changed);
+        assertEquals("again", MmapPreferences.openUncached(file, false).getString("a", null));
+    }
+
+    @Test
+    public void headerReservedFieldStaysZero() throws Exception {
+        File file = new File(mFolder.getRoot(), "header.kv");
+        MmapPreferences preferences = MmapPreferences.openUncached(file, false);
+        for (int i = 0; i < 100; i++) {
+            preferences.edit().putString("key", LARGE + i).apply();
+        }
+        assertTrue(preferences.compact());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(8);
+            assertEquals(0, raf.readInt());
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import top.shixinzhang.utils.FileUtils;
+import top.shixinzhang.utils.log.LatencyHistogram;
+
+/**
+ * <br> Description: SharedPreferences 各种实现的性能测试
+ * <p>
+ * <br> 对每个实现、每种 key 数量和值大小，测量：一次写入全部 key 的耗时、单线程 get / put 的延迟分布、
+ * <br> 多线程读写（90% 读）的延迟和吞吐、从磁盘冷加载到第一次读到数据的耗时。
+ * <br> 同样的 get / put / 多线程测量也可以用在 SpUtils 这类门面上（{@link Accessor}），
+ * <br> 另外可以比较一次修改多个 key 的不同写法（{@link BatchWriter}）。
+ * <br> 每次测试结束前等后台压缩做完，之后删除目录不会和压缩冲突。由 {@link SpBenchmarkTest} 在 Robolectric 里运行。
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+
+public final class SpBenchmark {
+
+    /**
+     * 被测试的实现
+     */
+    public interface Backend {
+        @NonNull
+        String getName();
+
+        /**
+         * 打开一个空的存储
+         */
+        @NonNull
+        SharedPreferences create(@NonNull String name) throws IOException;
+
+        /**
+         * 从磁盘重新加载 name，不能用内存里的缓存
+         *
+         * @return 不支持冷加载时返回 null
+         */
+        @Nullable
+        SharedPreferences reload(@NonNull String name) throws IOException;
+    }
+
+    /**
+     * 按 key 读写字符串的一种方式，比如直接用 SharedPreferences，或者经过 SpUtils
+     */
+    public interface Accessor {
+        void put(@NonNull String key, @NonNull String value);
+
+        @Nullable
+        String get(@NonNull String key);
+    }
+
+    /**
+     * 一次修改多个 key 的一种写法
+     */
+    public interface BatchWriter {
+        void write(@NonNull String[] keys, @NonNull String value);
+    }
+
+    private final int[] mKeyCounts;
+    private final int[] mValueSizes;
+    private final int mThreads;
+    private final int mOperations;
+
+    /**
+     * @param keyCounts  测试的 key 数量
+     * @param valueSizes 测试的值大小，字符数
+     * @param threads    多线程测试的线程数
+     * @param operations 每个延迟测试的操作次数，多线程时为每个线程的次数
+     */
+    public SpBenchmark(@NonNull int[] keyCounts, @NonNull int[] valueSizes, int threads, int operations) {
+        mKeyCounts = keyCounts;
+        mValueSizes = valueSizes;
+        mThreads = threads;
+        mOperations = operations;
+    }
+
+    /**
+     * 依次测试所有实现，耗时较长
+     *
+     * @return 结果表格
+     */
+    @NonNull
+    @WorkerThread
+    public String run(@NonNull List<Backend> backends) throws IOException, InterruptedException {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-16s %7s %7s %10s %18s %18s %26s %10s%n",
+                "backend", "keys", "size", "bulk(ms)", "get p50/p99(ns)", "put p50/p99(ns)",
+                "mt p50/p99(ns) ops/s", "cold(ms)"));
+        for (Backend backend : backends) {
+            for (int keyCount : mKeyCounts) {
+                for (int valueSize : mValueSizes) {
+                    report.append(runCase(backend, keyCount, valueSize));
+                }
+            }
+        }
+        MmapPreferences.awaitCompactions();
+        return report.toString();
+    }
+
+    /**
+     * 依次测试每种读写方式的 get / put / 多线程延迟，每种 key 数量先用 put 写入全部 key
+     *
+     * @return 结果表格
+     */
+    @NonNull
+    @WorkerThread
+    public String compare(@NonNull Map<String, Accessor> accessors) throws InterruptedException {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-16s %7s %7s %18s %18s %26s%n",
+                "accessor", "keys", "size", "get p50/p99(ns)", "put p50/p99(ns)", "mt p50/p99(ns) ops/s"));
+        for (Map.Entry<String, Accessor> entry : accessors.entrySet()) {
+            for (int keyCount : mKeyCounts) {
+                for (int valueSize : mValueSizes) {
+                    String[] keys = keys(keyCount);
+                    String value = value(valueSize);
+                    for (String key : keys) {
+                        entry.getValue().put(key, value);
+                    }
+                    report.append(String.format(Locale.US, "%-16s %7d %7d %s%n", entry.getKey(), keyCount, valueSize,
+                            measure(entry.getValue(), keys, value)));
+                }
+            }
+        }
+        MmapPreferences.awaitCompactions();
+        return report.toString();
+    }
+
+    /**
+     * 每轮用每种写法修改 batch 个 key，比较一轮的耗时。第 i 轮写入的值是 String.valueOf(i)
+     *
+     * @return 结果表格
+     */
+    @NonNull
+    @WorkerThread
+    public String compareBatches(@NonNull Map<String, BatchWriter> writers, int batch) throws InterruptedException {
+        String[] keys = keys(batch);
+        int rounds = Math.max(mOperations / batch, 1);
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "%-16s %7s %22s%n", "writer", "keys", "round p50/p99(ns)"));
+        for (Map.Entry<String, BatchWriter> entry : writers.entrySet()) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (int round = 0; round < rounds; round++) {
+                String value = String.valueOf(round);
+                long begin = System.nanoTime();
+                entry.getValue().write(keys, value);
+                histogram.record(System.nanoTime() - begin);
+            }
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            report.append(String.format(Locale.US, "%-16s %7d %22s%n", entry.getKey(), batch,
+                    snapshot.percentile(0.5) + "/" + snapshot.percentile(0.99)));
+        }
+        MmapPreferences.awaitCompactions();
+        return report.toString();
+    }
+
+    /**
+     * @return compareBatches 最后一轮写入的值
+     */
+    @NonNull
+    public String lastBatchValue(int batch) {
+        return String.valueOf(Math.max(mOperations / batch, 1) - 1);
+    }
+
+    @NonNull
+    private String runCase(@NonNull Backend backend, int keyCount, int valueSize)
+            throws IOException, InterruptedException {
+        String name = String.format(Locale.US, "bench_%d_%d", keyCount, valueSize);
+        String[] keys = keys(keyCount);
+        String value = value(valueSize);
+
+        SharedPreferences sp = backend.create(name);
+        long start = System.nanoTime();
+        SharedPreferences.Editor editor = sp.edit();
+        for (String key : keys) {
+            editor.putString(key, value);
+        }
+        editor.commit();
+        long bulkNanos = System.nanoTime() - start;
+
+        String latency = measure(accessorOf(sp), keys, value);
+        //冷加载前确保数据都写到了磁盘
+        sp.edit().commit();
+
+        long coldNanos = -1;
+        start = System.nanoTime();
+        SharedPreferences reloaded = backend.reload(name);
+        if (reloaded != null) {
+            reloaded.getString(keys[0], null);
+            coldNanos = System.nanoTime() - start;
+        }
+
+        return String.format(Locale.US, "%-16s %7d %7d %10.1f %s %10.1f%n",
+                backend.getName(), keyCount, valueSize, bulkNanos / 1e6, latency,
+                coldNanos < 0 ? Double.NaN : coldNanos / 1e6);
+    }
+
+    @NonNull
+    private static String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = "key_" + i;
+        }
+        return keys;
+    }
+
+    @NonNull
+    private static String value(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'v');
+        return new String(chars);
+    }
+
+    @NonNull
+    private static Accessor accessorOf(@NonNull final SharedPreferences sp) {
+        return new Accessor() {
+            @Override
+            public void put(@NonNull String key, @NonNull String value) {
+                sp.edit().putString(key, value).apply();
+            }
+
+            @Nullable
+            @Override
+            public String get(@NonNull String key) {
+                return sp.getString(key, null);
+            }
+        };
+    }
+
+    /**
+     * 单线程 get、put 和多线程读写
+     *
+     * @return get、put、多线程三列
+     */
+    @NonNull
+    private String measure(@NonNull Accessor accessor, @NonNull String[] keys, @NonNull String value)
+            throws InterruptedException {
+        Random random = new Random(keys.length);
+        LatencyHistogram get = new LatencyHistogram();
+        for (int i = 0; i < mOperations; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            long begin = System.nanoTime();
+            accessor.get(key);
+            get.record(System.nanoTime() - begin);
+        }
+        LatencyHistogram put = new LatencyHistogram();
+        for (int i = 0; i < mOperations; i++) {
+            String key = keys[random.nextInt(keys.length)];
+            long begin = System.nanoTime();
+            accessor.put(key, value);
+            put.record(System.nanoTime() - begin);
+        }
+
+        LatencyHistogram mixed = new LatencyHistogram();
+        long mixedNanos = runThreads(accessor, keys, value, mixed);
+
+        LatencyHistogram.Snapshot getSnapshot = get.snapshot();
+        LatencyHistogram.Snapshot putSnapshot = put.snapshot();
+        LatencyHistogram.Snapshot mixedSnapshot = mixed.snapshot();
+        double opsPerSecond = mixedSnapshot.count * 1e9 / Math.max(mixedNanos, 1);
+        return String.format(Locale.US, "%18s %18s %26s",
+                getSnapshot.percentile(0.5) + "/" + getSnapshot.percentile(0.99),
+                putSnapshot.percentile(0.5) + "/" + putSnapshot.percentile(0.99),
+                mixedSnapshot.percentile(0.5) + "/" + mixedSnapshot.percentile(0.99) + " " + (long) opsPerSecond);
+    }
+
+    /**
+     * 多个线程同时读写，90% 读
+     *
+     * @return 总耗时
+     */
+    private long runThreads(@NonNull final Accessor accessor, @NonNull final String[] keys,
+                            @NonNull final String value, @NonNull final LatencyHistogram histogram)
+            throws InterruptedException {
+        final CountDownLatch ready = new CountDownLatch(mThreads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(mThreads);
+        final AtomicInteger seed = new AtomicInteger();
+        for (int t = 0; t < mThreads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random random = new Random(seed.incrementAndGet());
+                    ready.countDown();
+                    try {
+                        go.await();
+                        for (int i = 0; i < mOperations; i++) {
+                            String key = keys[random.nextInt(keys.length)];
+                            long begin = System.nanoTime();
+                            if (random.nextInt(10) == 0) {
+                                accessor.put(key, value);
+                            } else {
+                                accessor.get(key);
+                            }
+                            histogram.record(System.nanoTime() - begin);
+                        }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "SpBenchmark-" + t);
+            thread.start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 系统的 SharedPreferences，进程内有缓存，不支持冷加载
+     */
+    @NonNull
+    public static Backend systemBackend(@NonNull final Context context) {
+        return new Backend() {
+            @NonNull
+            @Override
+            public String getName() {
+                return "system";
+            }
+
+            @NonNull
+            @Override
+            public SharedPreferences create(@NonNull String name) {
+                SharedPreferences sp = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+                sp.edit().clear().commit();
+                return sp;
+            }
+
+            @Nullable
+            @Override
+            public SharedPreferences reload(@NonNull String name) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * {@link MmapPreferences}，实例按路径缓存，所以重新加载时复制一份文件再打开
+     */
+    @NonNull
+    public static Backend mmapBackend(@NonNull final File dir) {
+        return new Backend() {
+            private int mReloads;
+
+            @NonNull
+            @Override
+            public String getName() {
+                return "mmap";
+            }
+
+            @NonNull
+            @Override
+            public SharedPreferences create(@NonNull String name) throws IOException {
+                File file = new File(dir, name + ".kv");
+                SharedPreferences sp = MmapPreferences.open(file);
+                sp.edit().clear().commit();
+                return sp;
+            }
+
+            @Nullable
+            @Override
+            public SharedPreferences reload(@NonNull String name) throws IOException {
+                File copy = new File(dir, name + "_reload" + (mReloads++) + ".kv");
+                copy(new File(dir, name + ".kv"), copy);
+                return MmapPreferences.open(copy);
+            }
+        };
+    }
+
+    /**
+     * {@link MmapPreferences} 外面加一层 {@link WriteBehindPreferences}
+     */
+    @NonNull
+    public static Backend writeBehindBackend(@NonNull final Backend backend, final long delayMillis) {
+        return new Backend() {
+            @NonNull
+            @Override
+            public String getName() {
+                return backend.getName() + "+wb";
+            }
+
+            @NonNull
+            @Override
+            public SharedPreferences create(@NonNull String name) throws IOException {
+                return new WriteBehindPreferences(backend.create(name), delayMillis);
+            }
+
+            @Nullable
+            @Override
+            public SharedPreferences reload(@NonNull String name) throws IOException {
+                SharedPreferences sp = backend.reload(name);
+                return sp == null ? null : new WriteBehindPreferences(sp, delayMillis);
+            }
+        };
+    }
+
+    /**
+     * backend 外面加一层 {@link EncryptedPreferences}，和明文的同一个 backend 对比读写开销
+     */
+    @NonNull
+    public static Backend encryptedBackend(@NonNull final Backend backend,
+                                           @NonNull final EncryptedPreferences.KeyWrapper wrapper) {
+        return new Backend() {
+            @NonNull
+            @Override
+            public String getName() {
+                return backend.getName() + "+enc";
+            }
+
+            @NonNull
+            @Override
+            public SharedPreferences create(@NonNull String name) throws IOException {
+                return encrypt(backend.create(name));
+            }
+
+            @Nullable
+            @Override
+            public SharedPreferences reload(@NonNull String name) throws IOException {
+                SharedPreferences sp = backend.reload(name);
+                return sp == null ? null : encrypt(sp);
+            }
+
+            @NonNull
+            private SharedPreferences encrypt(@NonNull SharedPreferences sp) throws IOException {
+                try {
+                    return EncryptedPreferences.create(sp, wrapper);
+                } catch (GeneralSecurityException e) {
+                    throw new IOException(e);
+                }
+            }
+        };
+    }
+
+    private static void copy(@NonNull File from, @NonNull File to) throws IOException {
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            FileUtils.close(in);
+            FileUtils.close(out);
+        }
+    }
+}
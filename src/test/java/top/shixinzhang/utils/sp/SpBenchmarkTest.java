@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import top.shixinzhang.utils.LegacySpUtils;
+import top.shixinzhang.utils.SpUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: 运行 {@link SpBenchmark}：比较系统实现、mmap、mmap + 延迟写入和 mmap + 加密；
+ * <br> 比较改动前的 SpUtils（{@link LegacySpUtils}）和现在的 SpUtils；比较逐个 saveData 和 {@link SpUtils#edit} 批量提交。
+ * <br> Robolectric 的 SharedPreferences 只在内存里，磁盘写入的差别看 mmap 那几行。
+ * <br> 默认只跑小规模，用 -Psp.benchmark.full 跑完整的矩阵
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpBenchmarkTest {
+
+    /**
+     * 批量修改时一次改多少个 key
+     */
+    private static final int BATCH = 20;
+
+    static boolean isFull() {
+        return Boolean.getBoolean("sp.benchmark.full");
+    }
+
+    @NonNull
+    private static SpBenchmark benchmark() {
+        return isFull()
+                ? new SpBenchmark(new int[]{100, 10000}, new int[]{16, 1024}, 4, 20000)
+                : new SpBenchmark(new int[]{100}, new int[]{16}, 2, 2000);
+    }
+
+    @Test
+    public void compareBackends() throws Exception {
+        File dir = new File(RuntimeEnvironment.application.getFilesDir(), "sp_benchmark");
+        assertTrue(dir.isDirectory() || dir.mkdirs());
+
+        List<SpBenchmark.Backend> backends = new ArrayList<>();
+        backends.add(SpBenchmark.systemBackend(RuntimeEnvironment.application));
+        SpBenchmark.Backend mmap = SpBenchmark.mmapBackend(dir);
+        backends.add(mmap);
+        backends.add(SpBenchmark.writeBehindBackend(mmap, 100));
+        backends.add(SpBenchmark.encryptedBackend(mmap,
+                new EncryptedPreferences.AesKeyWrapper(new SecretKeySpec(new byte[32], "AES"))));
+
+        String report = benchmark().run(backends);
+        System.out.print(report);
+        assertTrue(report.contains("system"));
+    }
+
+    @Test
+    public void compareFacades() throws Exception {
+        final Context context = RuntimeEnvironment.application;
+        Map<String, SpBenchmark.Accessor> accessors = new LinkedHashMap<>();
+        accessors.put("legacy", new SpBenchmark.Accessor() {
+            @Override
+            public void put(@NonNull String key, @NonNull String value) {
+                LegacySpUtils.saveData(context, "bench_legacy", key, value);
+            }
+
+            @Nullable
+            @Override
+            public String get(@NonNull String key) {
+                return (String) LegacySpUtils.getData(context, "bench_legacy", key, "");
+            }
+        });
+        accessors.put("current", new SpBenchmark.Accessor() {
+            @Override
+            public void put(@NonNull String key, @NonNull String value) {
+                SpUtils.putString(context, "bench_current", key, value);
+            }
+
+            @Nullable
+            @Override
+            public String get(@NonNull String key) {
+                return SpUtils.getString(context, "bench_current", key, "");
+            }
+        });
+
+        String report = benchmark().compare(accessors);
+        System.out.print(report);
+        assertTrue(SpUtils.getString(context, "bench_current", "key_0", "").length() > 0);
+    }
+
+    @Test
+    public void compareBatchUpdates() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        assertTrue(SpUtils.useMmapStore(context, "bench_batch_mmap"));
+        Map<String, SpBenchmark.BatchWriter> writers = new LinkedHashMap<>();
+        for (String store : new String[]{"system", "mmap"}) {
+            writers.put(store + " per-key", perKey(context, "bench_batch_" + store));
+            writers.put(store + " edit()", transaction(context, "bench_batch_" + store));
+        }
+
+        SpBenchmark benchmark = benchmark();
+        String report = benchmark.compareBatches(writers, BATCH);
+        System.out.print(report);
+        for (int i = 0; i < BATCH; i++) {
+            assertEquals(benchmark.lastBatchValue(BATCH), SpUtils.getString(context, "bench_batch_mmap", "key_" + i, null));
+        }
+    }
+
+    @NonNull
+    private static SpBenchmark.BatchWriter perKey(@NonNull final Context context, @NonNull final String spName) {
+        return new SpBenchmark.BatchWriter() {
+            @Override
+            public void write(@NonNull String[] keys, @NonNull String value) {
+                for (String key : keys) {
+                    SpUtils.saveData(context, spName, key, value);
+                }
+            }
+        };
+    }
+
+    @NonNull
+    private static SpBenchmark.BatchWriter transaction(@NonNull final Context context, @NonNull final String spName) {
+        return new SpBenchmark.BatchWriter() {
+            @Override
+            public void write(@NonNull String[] keys, @NonNull String value) {
+                SpUtils.Transaction transaction = SpUtils.edit(context, spName);
+                for (String key : keys) {
+                    transaction.put(key, value);
+                }
+                transaction.apply();
+            }
+        };
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import top.shixinzhang.utils.SpUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link SpChangeDispatcher} 的窗口合并、key / 前缀过滤、clear 标记和弱引用订阅
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpChangeDispatcherTest {
+
+    private static final long WINDOW = 100;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private SharedPreferences mPreferences;
+    private SpChangeDispatcher mDispatcher;
+
+    @Before
+    public void setUp() {
+        mPreferences = RuntimeEnvironment.application.getSharedPreferences("dispatch", Context.MODE_PRIVATE);
+        mDispatcher = new SpChangeDispatcher("dispatch");
+        mPreferences.registerOnSharedPreferenceChangeListener(mDispatcher);
+    }
+
+    /**
+     * 一次回调的内容
+     */
+    private static final class Change {
+        final String mName;
+        final Set<String> mKeys;
+        final boolean mCleared;
+
+        Change(String name, Set<String> keys, boolean cleared) {
+            mName = name;
+            mKeys = keys;
+            mCleared = cleared;
+        }
+    }
+
+    private static final class Recorder implements SpChangeDispatcher.OnChangesListener {
+        final LinkedBlockingQueue<Change> mChanges = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onChanged(@NonNull String name, @NonNull Set<String> keys, boolean cleared) {
+            mChanges.add(new Change(name, new HashSet<>(keys), cleared));
+        }
+
+        Change next() throws InterruptedException {
+            return mChanges.poll(WINDOW * 20, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 再等一个窗口，确认没有多余的回调
+         */
+        Change none() throws InterruptedException {
+            return mChanges.poll(WINDOW * 3, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Set<String> setOf(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    @Test
+    public void coalescesChangesWithinWindow() throws Exception {
+        Recorder recorder = new Recorder();
+        mDispatcher.subscribe(null, null, WINDOW, DIRECT, recorder);
+        mPreferences.edit().putString("a", "1").apply();
+        mPreferences.edit().putString("b", "2").apply();
+        mPreferences.edit().putString("a", "3").putInt("c", 4).apply();
+
+        Change change = recorder.next();
+        assertNotNull(change);
+        assertEquals("dispatch", change.mName);
+        assertEquals(setOf("a", "b", "c"), change.mKeys);
+        assertFalse(change.mCleared);
+        assertNull(recorder.none());
+
+        //窗口过后的修改是新的一次回调
+        mPreferences.edit().putString("d", "5").apply();
+        assertEquals(setOf("d"), recorder.next().mKeys);
+    }
+
+    @Test
+    public void filtersByKeysOrPrefix() throws Exception {
+        Recorder byKey = new Recorder();
+        Recorder byPrefix = new Recorder();
+        Recorder both = new Recorder();
+        mDispatcher.subscribe(Collections.singleton("token"), null, WINDOW, DIRECT, byKey);
+        mDispatcher.subscribe(null, "user_", WINDOW, DIRECT, byPrefix);
+        mDispatcher.subscribe(Collections.singleton("token"), "user_", WINDOW, DIRECT, both);
+        mPreferences.edit().putString("token", "t").putString("user_name", "n").putString("other", "o").apply();
+
+        assertEquals(setOf("token"), byKey.next().mKeys);
+        assertEquals(setOf("user_name"), byPrefix.next().mKeys);
+        assertEquals(setOf("token", "user_name"), both.next().mKeys);
+
+        //不匹配的修改不回调
+        mPreferences.edit().putString("other", "again").apply();
+        assertNull(byKey.none());
+        assertNull(byPrefix.none());
+        assertNull(both.none());
+    }
+
+    @Test
+    public void clearIsReportedToEverySubscription() throws Exception {
+        Recorder recorder = new Recorder();
+        mDispatcher.subscribe(Collections.singleton("token"), null, WINDOW, DIRECT, recorder);
+        //系统实现在 API 30 之前 clear 不回调，这里直接模拟 key 为 null 的回调
+        mDispatcher.onSharedPreferenceChanged(mPreferences, null);
+        mPreferences.edit().putString("token", "t").apply();
+
+        Change change = recorder.next();
+        assertTrue(change.mCleared);
+        assertEquals(setOf("token"), change.mKeys);
+    }
+
+    @Test
+    public void collectedListenersArePruned() throws Exception {
+        Recorder kept = new Recorder();
+        mDispatcher.subscribe(null, null, WINDOW, DIRECT, kept);
+        WeakReference<Recorder> collected = subscribeUnreferenced();
+        for (int i = 0; i < 20 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(collected.get());
+
+        //回调时发现被回收的订阅，顺便移除
+        mPreferences.edit().putString("a", "1").apply();
+        assertEquals(setOf("a"), kept.next().mKeys);
+        assertTrue(mDispatcher.hasSubscriptions());
+
+        SpChangeDispatcher.Subscription subscription = mDispatcher.subscribe(null, null, WINDOW, DIRECT, kept);
+        subscription.unsubscribe();
+        kept = null;
+        for (int i = 0; i < 20 && mDispatcher.hasSubscriptions(); i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertFalse(mDispatcher.hasSubscriptions());
+    }
+
+    private WeakReference<Recorder> subscribeUnreferenced() {
+        Recorder recorder = new Recorder();
+        mDispatcher.subscribe(null, null, WINDOW, DIRECT, recorder);
+        return new WeakReference<>(recorder);
+    }
+
+    @Test
+    public void subscriptionFollowsMigrationCompletion() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        assertTrue(SpUtils.migrateToMmapStore(context, "dispatch_migrate"));
+        Recorder recorder = new Recorder();
+        SpUtils.subscribe(context, "dispatch_migrate", null, null, WINDOW, DIRECT, recorder);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(SpUtils.getPreferences(context, "dispatch_migrate") instanceof MmapPreferences)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(SpUtils.getPreferences(context, "dispatch_migrate") instanceof MmapPreferences);
+
+        //切换到新存储后订阅还在
+        SpUtils.saveData(context, "dispatch_migrate", "a", "value");
+        assertEquals(setOf("a"), recorder.next().mKeys);
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import top.shixinzhang.utils.FileUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link SpMigrator} 中断后按 key 继续迁移
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpMigratorTest {
+
+    private static final int KEYS = SpMigrator.BATCH_SIZE * 2 + 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mXml;
+    private File mState;
+    private MmapPreferences mTarget;
+
+    @Before
+    public void setUp() throws Exception {
+        mXml = new File(mFolder.getRoot(), "prefs.xml");
+        mState = new File(mFolder.getRoot(), "prefs");
+        mTarget = MmapPreferences.openUncached(new File(mFolder.getRoot(), "prefs.kv"), false);
+        writeXml(null);
+    }
+
+    /**
+     * @param first 额外写在最前面的 key，模拟双写改写了 xml，后面条目的位置都变了
+     */
+    private void writeXml(String first) {
+        StringBuilder xml = new StringBuilder("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n");
+        if (first != null) {
+            xml.append("    <string name=\"").append(first).append("\">inserted</string>\n");
+        }
+        for (int i = 0; i < KEYS; i++) {
+            xml.append("    <string name=\"key_").append(i).append("\">value_").append(i).append("</string>\n");
+        }
+        xml.append("    <int name=\"int\" value=\"7\" />\n")
+                .append("    <set name=\"set\">\n        <string>a</string>\n    </set>\n")
+                .append("</map>\n");
+        FileUtils.writeFile(mXml.getPath(), xml.toString(), false);
+    }
+
+    /**
+     * 第 failAt 次 commit 返回失败，之前的提交正常写入 target
+     */
+    private static SharedPreferences failingAt(final SharedPreferences target, final int failAt) {
+        final AtomicInteger commits = new AtomicInteger();
+        return (SharedPreferences) Proxy.newProxyInstance(SharedPreferences.class.getClassLoader(),
+                new Class<?>[]{SharedPreferences.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeOn(target, method, args);
+                        if (!"edit".equals(method.getName())) {
+                            return result;
+                        }
+                        final SharedPreferences.Editor editor = (SharedPreferences.Editor) result;
+                        return Proxy.newProxyInstance(SharedPreferences.Editor.class.getClassLoader(),
+                                new Class<?>[]{SharedPreferences.Editor.class}, new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object editorProxy, Method method, Object[] args)
+                                            throws Throwable {
+                                        if ("commit".equals(method.getName())
+                                                && commits.incrementAndGet() == failAt) {
+                                            return false;
+                                        }
+                                        Object result = invokeOn(editor, method, args);
+                                        return result == editor ? editorProxy : result;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void migratesAllTypes() {
+        SpMigrator migrator = new SpMigrator(mXml, mTarget, mState, null);
+        migrator.run();
+
+        assertTrue(migrator.isCompleted());
+        assertEquals(KEYS + 2, migrator.getMigratedCount());
+        assertEquals("value_0", mTarget.getString("key_0", null));
+        assertEquals(7, mTarget.getInt("int", 0));
+        assertEquals(1, mTarget.getStringSet("set", null).size());
+        assertTrue(new File(mState.getPath() + ".migrated").exists());
+    }
+
+    @Test
+    public void resumesByKeyAfterInterruption() {
+        SpMigrator first = new SpMigrator(mXml, failingAt(mTarget, 2), mState, null);
+        first.run();
+        assertEquals(SpMigrator.STATE_FAILED, first.getState());
+        assertEquals(SpMigrator.BATCH_SIZE, first.getMigratedCount());
+
+        //中断期间双写：新值写进两边，xml 里多了一条排在最前面的 key
+        mTarget.edit().putString("key_0", "newer").commit();
+        writeXml("aaa_first");
+
+        SpMigrator second = new SpMigrator(mXml, mTarget, mState, null);
+        assertFalse(second.isCompleted());
+        second.run();
+
+        assertTrue(second.isCompleted());
+        //第一批已经在新存储里，不再写
+        assertEquals(KEYS - SpMigrator.BATCH_SIZE + 3, second.getMigratedCount());
+        assertEquals("newer", mTarget.getString("key_0", null));
+        assertEquals("inserted", mTarget.getString("aaa_first", null));
+        for (int i = 1; i < KEYS; i++) {
+            assertEquals("value_" + i, mTarget.getString("key_" + i, null));
+        }
+        assertEquals(7, mTarget.getInt("int", 0));
+    }
+}
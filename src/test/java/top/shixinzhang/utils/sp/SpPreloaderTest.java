@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import top.shixinzhang.utils.SpUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link SpPreloader} 的状态变化、读取方等待同一个 Task，以及各阶段耗时
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpPreloaderTest {
+
+    private static final long LOAD_MILLIS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * 等 release 之后才返回的加载任务
+     */
+    private static Callable<SharedPreferences> blockingLoader(final CountDownLatch release,
+                                                              final SharedPreferences result,
+                                                              final AtomicInteger calls) {
+        return new Callable<SharedPreferences>() {
+            @Override
+            public SharedPreferences call() throws Exception {
+                calls.incrementAndGet();
+                release.await();
+                return result;
+            }
+        };
+    }
+
+    private static void awaitCondition(Callable<Boolean> condition) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void concurrentReadWaitsOnSameTask() throws Exception {
+        final String name = "preload_wait";
+        SharedPreferences loaded = MmapPreferences.openUncached(new File(mFolder.getRoot(), "wait.kv"), false);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        final SpPreloader.Task task = SpPreloader.submit(name, blockingLoader(release, loaded, calls));
+        //同名再次提交得到同一个任务
+        assertSame(task, SpPreloader.submit(name, blockingLoader(release, loaded, calls)));
+        awaitCondition(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return task.getState() == SpPreloader.STATE_LOADING;
+            }
+        });
+
+        final AtomicReference<SharedPreferences> read = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read.set(SpUtils.getPreferences(RuntimeEnvironment.application, name));
+            }
+        });
+        reader.start();
+        awaitCondition(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return task.getWaiterCount() == 1;
+            }
+        });
+        Thread.sleep(LOAD_MILLIS);
+        release.countDown();
+        reader.join(5000);
+
+        assertSame(loaded, read.get());
+        assertEquals(1, calls.get());
+        assertEquals(SpPreloader.STATE_LOADED, task.getState());
+        assertTrue(task.getLoadMillis() >= LOAD_MILLIS);
+        //读取方只等了加载剩下的那部分
+        assertTrue(task.getWaitMillis() >= LOAD_MILLIS - 20);
+        assertTrue(task.getWaitMillis() <= task.getLoadMillis() + 20);
+
+        //加载完成后的读取不再计入等待
+        assertSame(loaded, SpPreloader.await(name));
+        assertEquals(1, task.getWaiterCount());
+        assertTrue(task.toString().contains("waiters=1"));
+    }
+
+    @Test
+    public void pendingTasksQueueBehindBusyThreads() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        SharedPreferences loaded = MmapPreferences.openUncached(new File(mFolder.getRoot(), "queue.kv"), false);
+        List<SpPreloader.Task> tasks = new ArrayList<>();
+        //比线程数多，后面的任务只能排队
+        for (int i = 0; i < 8; i++) {
+            tasks.add(SpPreloader.submit("preload_queue_" + i, blockingLoader(release, loaded, calls)));
+        }
+        SpPreloader.Task last = tasks.get(tasks.size() - 1);
+        Thread.sleep(50);
+        assertEquals(SpPreloader.STATE_PENDING, last.getState());
+        assertEquals(0, last.getQueueMillis());
+        assertEquals(0, last.getLoadMillis());
+
+        release.countDown();
+        for (SpPreloader.Task task : tasks) {
+            assertSame(loaded, task.get(5, TimeUnit.SECONDS));
+            assertEquals(SpPreloader.STATE_LOADED, task.getState());
+        }
+        assertEquals(8, calls.get());
+        assertTrue(last.getQueueMillis() >= 40);
+        assertTrue(SpPreloader.getTasks().keySet().containsAll(
+                Arrays.asList("preload_queue_0", "preload_queue_7")));
+    }
+
+    @Test
+    public void failedLoadFallsBackToNormalOpen() throws Exception {
+        String name = "preload_failed";
+        SpPreloader.Task task = SpPreloader.submit(name, new Callable<SharedPreferences>() {
+            @Override
+            public SharedPreferences call() throws Exception {
+                throw new IllegalStateException("broken");
+            }
+        });
+        try {
+            task.get(5, TimeUnit.SECONDS);
+        } catch (Exception expected) {
+        }
+        assertEquals(SpPreloader.STATE_FAILED, task.getState());
+        assertNull(SpPreloader.await(name));
+
+        SharedPreferences sp = SpUtils.getPreferences(RuntimeEnvironment.application, name);
+        assertNotNull(sp);
+        assertTrue(sp.edit().putInt("n", 1).commit());
+        assertEquals(1, RuntimeEnvironment.application.getSharedPreferences(name, Context.MODE_PRIVATE).getInt("n", 0));
+    }
+
+    @Test
+    public void preloadCachesInstanceForSpUtils() throws Exception {
+        String name = "preload_cached";
+        List<SpPreloader.Task> tasks = SpUtils.preload(RuntimeEnvironment.application, name);
+        SharedPreferences loaded = tasks.get(0).get(5, TimeUnit.SECONDS);
+        assertSame(loaded, SpUtils.getPreferences(RuntimeEnvironment.application, name));
+        assertSame(tasks.get(0), SpPreloader.getTask(name));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link SpillPreferences} 大字符串单独存文件、覆盖不同类型的值、apply 和清理遗留文件
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class SpillPreferencesTest {
+
+    private static final int THRESHOLD = 16;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private SharedPreferences mDelegate;
+    private File mDir;
+    private SpillPreferences mPreferences;
+
+    @Before
+    public void setUp() throws Exception {
+        mDelegate = RuntimeEnvironment.application.getSharedPreferences("spill", Context.MODE_PRIVATE);
+        mDelegate.edit().clear().commit();
+        mDir = new File(mFolder.getRoot(), "spill");
+        mPreferences = new SpillPreferences(mDelegate, mDir, THRESHOLD);
+    }
+
+    private static String large(char c) {
+        char[] chars = new char[THRESHOLD * 4];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private int fileCount() {
+        String[] names = mDir.list();
+        return names == null ? 0 : names.length;
+    }
+
+    @Test
+    public void largeStringGoesToFile() {
+        String value = large('a');
+        assertTrue(mPreferences.edit().putString("big", value).putString("small", "s").commit());
+
+        assertEquals(value, mPreferences.getString("big", null));
+        assertEquals(value, mPreferences.getAll().get("big"));
+        assertEquals("s", mPreferences.getString("small", null));
+        assertEquals(1, fileCount());
+        //底层只存引用
+        assertTrue(mDelegate.getString("big", "").length() < value.length());
+    }
+
+    @Test
+    public void overwriteDeletesStaleFile() {
+        mPreferences.edit().putString("big", large('a')).commit();
+        mPreferences.edit().putString("big", large('b')).commit();
+        assertEquals(large('b'), mPreferences.getString("big", null));
+        assertEquals(1, fileCount());
+
+        mPreferences.edit().remove("big").commit();
+        assertNull(mPreferences.getString("big", null));
+        assertEquals(0, fileCount());
+    }
+
+    @Test
+    public void overwriteNonStringWithLargeString() {
+        mPreferences.edit().putInt("value", 1).putBoolean("flag", true).commit();
+
+        assertTrue(mPreferences.edit().putString("value", large('a')).putString("flag", "small").commit());
+        assertEquals(large('a'), mPreferences.getString("value", null));
+        assertEquals("small", mPreferences.getString("flag", null));
+        assertEquals(1, fileCount());
+    }
+
+    @Test
+    public void overwriteLargeStringWithNonString() {
+        mPreferences.edit().putString("value", large('a')).commit();
+
+        assertTrue(mPreferences.edit().putLong("value", 2L).commit());
+        assertEquals(2L, mPreferences.getLong("value", 0L));
+        assertEquals(0, fileCount());
+
+        //旧值是 long 时再改回字符串
+        assertTrue(mPreferences.edit().putString("value", large('b')).commit());
+        assertEquals(large('b'), mPreferences.getString("value", null));
+    }
+
+    @Test
+    public void clearDeletesAllFiles() {
+        mPreferences.edit().putString("a", large('a')).putString("b", large('b')).putInt("c", 3).commit();
+        assertEquals(2, fileCount());
+
+        mPreferences.edit().clear().commit();
+        assertEquals(0, fileCount());
+        assertTrue(mPreferences.getAll().isEmpty());
+    }
+
+    @Test
+    public void removeOrphanFilesKeepsReferenced() throws Exception {
+        mPreferences.edit().putString("big", large('a')).commit();
+        FileOutputStream out = new FileOutputStream(new File(mDir, "orphan.val"));
+        out.write(1);
+        out.close();
+        assertEquals(2, fileCount());
+
+        assertEquals(1, mPreferences.removeOrphanFiles());
+        assertFalse(new File(mDir, "orphan.val").exists());
+        assertEquals(large('a'), mPreferences.getString("big", null));
+    }
+
+    @Test
+    public void applyLeavesStaleFileForOrphanCleanup() {
+        mPreferences.edit().putString("big", large('a')).commit();
+        mPreferences.edit().putString("big", large('b')).apply();
+        //apply 不知道什么时候落盘，旧文件先留着
+        assertEquals(large('b'), mPreferences.getString("big", null));
+        assertEquals(2, fileCount());
+
+        assertEquals(1, mPreferences.removeOrphanFiles());
+        assertEquals(large('b'), mPreferences.getString("big", null));
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2017. shixinzhang (shixinzhang2016@gmail.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package top.shixinzhang.utils.sp;
+
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * <br> Description: {@link WriteBehindPreferences} 的覆盖层读取、延迟合并写入、写入期间的修改和 sync
+ * <p>
+ * <br> Created on 26/10/19.
+ */
+public class WriteBehindPreferencesTest {
+
+    private static final long DELAY_MILLIS = 100;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+    private MmapPreferences mDelegate;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = new File(mFolder.getRoot(), "write_behind.kv");
+        mDelegate = MmapPreferences.openUncached(mFile, false);
+    }
+
+    /**
+     * 底层 Editor 提交前先执行 hook，模拟写入期间其他线程的修改
+     */
+    private static SharedPreferences beforeWrite(final SharedPreferences target, final AtomicReference<Runnable> hook) {
+        return (SharedPreferences) Proxy.newProxyInstance(SharedPreferences.class.getClassLoader(),
+                new Class<?>[]{SharedPreferences.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeOn(target, method, args);
+                        if (!"edit".equals(method.getName())) {
+                            return result;
+                        }
+                        final SharedPreferences.Editor editor = (SharedPreferences.Editor) result;
+                        return Proxy.newProxyInstance(SharedPreferences.Editor.class.getClassLoader(),
+                                new Class<?>[]{SharedPreferences.Editor.class}, new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object editorProxy, Method method, Object[] args)
+                                            throws Throwable {
+                                        String name = method.getName();
+                                        if ("apply".equals(name) || "commit".equals(name)) {
+                                            Runnable runnable = hook.getAndSet(null);
+                                            if (runnable != null) {
+                                                runnable.run();
+                                            }
+                                        }
+                                        Object result = invokeOn(editor, method, args);
+                                        return result == editor ? editorProxy : result;
+                                    }
+                                });
+                    }
+                });
+    }
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void readsOverlayBeforeFlush() {
+        mDelegate.edit().putString("old", "disk").putInt("count", 1).commit();
+        WriteBehindPreferences preferences = new WriteBehindPreferences(mDelegate, 60 * 1000);
+        preferences.edit().putInt("count", 2).remove("old").putLong("time", 3L).apply();
+
+        assertEquals(2, preferences.getInt("count", 0));
+        assertEquals(3L, preferences.getLong("time", 0));
+        assertFalse(preferences.contains("old"));
+        assertEquals("default", preferences.getString("old", "default"));
+        assertEquals(2, preferences.getAll().size());
+        //还没写进底层
+        assertEquals(1, mDelegate.getInt("count", 0));
+        assertTrue(mDelegate.contains("old"));
+
+        preferences.flush();
+        assertEquals(2, mDelegate.getInt("count", 0));
+        assertFalse(mDelegate.contains("old"));
+        assertEquals(1, preferences.getFlushCount());
+    }
+
+    @Test
+    public void coalescesWritesWithinDelay() throws Exception {
+        WriteBehindPreferences preferences = new WriteBehindPreferences(mDelegate, DELAY_MILLIS);
+        int writes = 1000;
+        for (int i = 1; i <= writes; i++) {
+            preferences.edit().putInt("counter", i).apply();
+        }
+        assertEquals(writes, preferences.getWriteCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (mDelegate.getInt("counter", 0) != writes && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(writes, mDelegate.getInt("counter", 0));
+        //每个延迟窗口最多写一次
+        assertTrue(preferences.getFlushCount() >= 1);
+        assertTrue(preferences.getFlushCount() <= 3);
+    }
+
+    @Test
+    public void keysChangedDuringFlushStayDirty() {
+        final AtomicReference<Runnable> hook = new AtomicReference<>();
+        final WriteBehindPreferences preferences =
+                new WriteBehindPreferences(beforeWrite(mDelegate, hook), 60 * 1000);
+        preferences.edit().putInt("counter", 1).putString("name", "a").apply();
+        hook.set(new Runnable() {
+            @Override
+            public void run() {
+                preferences.edit().putInt("counter", 2).apply();
+            }
+        });
+
+        preferences.flush();
+        assertEquals(1, mDelegate.getInt("counter", 0));
+        assertEquals("a", mDelegate.getString("name", null));
+        //写入期间的新值还在覆盖层里
+        assertEquals(2, preferences.getInt("counter", 0));
+
+        preferences.flush();
+        assertEquals(2, mDelegate.getInt("counter", 0));
+        assertEquals(2, preferences.getFlushCount());
+    }
+
+    @Test
+    public void syncWritesToDisk() throws Exception {
+        WriteBehindPreferences preferences = new WriteBehindPreferences(mDelegate, 60 * 1000);
+        preferences.edit().putString("token", "t").apply();
+        assertTrue(preferences.sync());
+        assertEquals("t", MmapPreferences.openUncached(mFile, false).getString("token", null));
+
+        //commit 等于 apply 之后 sync
+        assertTrue(preferences.edit().putString("token", "u").commit());
+        assertEquals("u", MmapPreferences.openUncached(mFile, false).getString("token", null));
+        //没有脏数据时 sync 也成功
+        assertTrue(preferences.sync());
+    }
+
+    @Test
+    public void clearDropsOverlay() {
+        mDelegate.edit().putString("a", "1").commit();
+        WriteBehindPreferences preferences = new WriteBehindPreferences(mDelegate, 60 * 1000);
+        preferences.edit().putString("b", "2").apply();
+        preferences.edit().clear().putString("c", "3").apply();
+
+        assertFalse(preferences.contains("a"));
+        assertFalse(preferences.contains("b"));
+        assertEquals("3", preferences.getString("c", null));
+        preferences.flush();
+        assertEquals(1, mDelegate.getAll().size());
+        assertEquals("3", mDelegate.getString("c", null));
+    }
+}